@@ -0,0 +1,40 @@
+package PhotoEditor;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+final class BenchImages {
+    private BenchImages() {}
+
+    /** A noisy gradient of roughly {@code megapixels} million pixels with a 3:2 aspect ratio. */
+    static BufferedImage create(int megapixels, int type) {
+        int w = (int) Math.round(Math.sqrt(megapixels * 1_000_000 * 1.5));
+        int h = megapixels * 1_000_000 / w;
+        BufferedImage img = new BufferedImage(w, h, type);
+        Graphics2D g = img.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(30, 90, 200), w, h, new Color(240, 180, 40)));
+        g.fillRect(0, 0, w, h);
+        Random rnd = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            g.setColor(new Color(rnd.nextInt(), true));
+            g.fillOval(rnd.nextInt(w), rnd.nextInt(h), 1 + rnd.nextInt(w / 8), 1 + rnd.nextInt(h / 8));
+        }
+        g.dispose();
+        return img;
+    }
+
+    static int type(String name) {
+        switch (name) {
+            case "INT_ARGB": return BufferedImage.TYPE_INT_ARGB;
+            case "INT_RGB": return BufferedImage.TYPE_INT_RGB;
+            case "3BYTE_BGR": return BufferedImage.TYPE_3BYTE_BGR;
+            case "BYTE_INDEXED": return BufferedImage.TYPE_BYTE_INDEXED;
+            default: throw new IllegalArgumentException("Unknown image type: " + name);
+        }
+    }
+
+    static void configureThreads(int threads) {
+        TileScheduler.configure(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+    }
+}
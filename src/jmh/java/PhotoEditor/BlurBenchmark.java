@@ -0,0 +1,52 @@
+package PhotoEditor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The large-radius blur and unsharp mask. The target is a 50 MP, radius-50 Gaussian
+ * in under a second with one thread per core ({@code threads=0}); the cost should not
+ * change with the radius.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g", "-Djava.awt.headless=true", "--add-modules=jdk.incubator.vector"})
+public class BlurBenchmark {
+    @Param({"12", "50"})
+    public int megapixels;
+
+    @Param({"5", "50"})
+    public double radius;
+
+    /** Worker threads for TileScheduler; 0 means one per core. */
+    @Param({"1", "0"})
+    public int threads;
+
+    private BufferedImage image;
+
+    @Setup
+    public void setUp() {
+        BenchImages.configureThreads(threads);
+        image = BenchImages.create(megapixels, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    @Benchmark
+    public BufferedImage gaussian() {
+        return Filters.gaussianBlur(image, radius, BoxBlur.Edge.CLAMP);
+    }
+
+    @Benchmark
+    public BufferedImage gaussianMirror() {
+        return Filters.gaussianBlur(image, radius, BoxBlur.Edge.MIRROR);
+    }
+
+    @Benchmark
+    public BufferedImage unsharp() {
+        return Filters.unsharpMask(image, radius, 1.0, 0, BoxBlur.Edge.CLAMP);
+    }
+}
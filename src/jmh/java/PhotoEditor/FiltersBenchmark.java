@@ -0,0 +1,81 @@
+package PhotoEditor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g", "-Djava.awt.headless=true", "--add-modules=jdk.incubator.vector"})
+public class FiltersBenchmark {
+    @Param({"1", "12", "50"})
+    public int megapixels;
+
+    /** Worker threads for TileScheduler; 0 means one per core. */
+    @Param({"1", "0"})
+    public int threads;
+
+    private BufferedImage image;
+    private Filters.Op chain;
+
+    @Setup
+    public void setUp() {
+        BenchImages.configureThreads(threads);
+        image = BenchImages.create(megapixels, BufferedImage.TYPE_INT_ARGB);
+        chain = Filters.chain(Filters.brightnessContrast(10, 0), Filters.brightnessContrast(0, 20), Filters.sepia());
+    }
+
+    @Benchmark
+    public BufferedImage grayscale() {
+        return Filters.toGrayscale(image);
+    }
+
+    @Benchmark
+    public BufferedImage sepia() {
+        return Filters.toSepia(image);
+    }
+
+    @Benchmark
+    public BufferedImage blur3x3() {
+        return Filters.blur3x3(image);
+    }
+
+    @Benchmark
+    public BufferedImage sharpen3x3() {
+        return Filters.sharpen3x3(image);
+    }
+
+    @Benchmark
+    public BufferedImage rotate90() {
+        return Filters.rotate(image, Math.PI / 2);
+    }
+
+    @Benchmark
+    public BufferedImage rotate30() {
+        return Filters.rotate(image, Math.toRadians(30));
+    }
+
+    @Benchmark
+    public BufferedImage flipHorizontal() {
+        return Filters.flipHorizontal(image);
+    }
+
+    @Benchmark
+    public BufferedImage flipVertical() {
+        return Filters.flipVertical(image);
+    }
+
+    @Benchmark
+    public BufferedImage adjust() {
+        return Filters.adjust(image, 10, 20, 30);
+    }
+
+    @Benchmark
+    public BufferedImage fusedChain() {
+        return chain.apply(image);
+    }
+}
@@ -0,0 +1,67 @@
+package PhotoEditor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every benchmark leaves the history as it found it, so the number of states stays
+ * constant across invocations and the measurements do not include history growth.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g", "-Djava.awt.headless=true"})
+public class HistoryBenchmark {
+    @Param({"1", "12", "50"})
+    public int megapixels;
+
+    @Param({"1", "0"})
+    public int threads;
+
+    private BufferedImage original;
+    private BufferedImage edited;
+    private HistoryManager history;
+    private CanvasPanel canvas;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        BenchImages.configureThreads(threads);
+        original = BenchImages.create(megapixels, BufferedImage.TYPE_INT_ARGB);
+        edited = Filters.toSepia(original);
+        history = new HistoryManager(Long.MAX_VALUE);
+        canvas = new CanvasPanel();
+        canvas.setImage(Utils.deepCopy(original));
+        history.reset(canvas.getImage());
+    }
+
+    /** A full-image edit: every tile is compared and copied, then written back by undo. */
+    @Benchmark
+    public void recordFullEditThenUndo() {
+        history.record(edited);
+        history.undo(canvas);
+    }
+
+    /** A one-pixel edit: only the tile under the dirty rectangle is looked at. */
+    @Benchmark
+    public void recordSmallEditThenUndo() {
+        BufferedImage img = canvas.getImage();
+        img.setRGB(10, 10, img.getRGB(10, 10) ^ 1);
+        history.record(img, new Rectangle(10, 10, 1, 1));
+        history.undo(canvas);
+    }
+
+    @Benchmark
+    public void undoRedoFullEdit() {
+        if (history.canRedo()) {
+            history.redo(canvas);
+        } else {
+            history.record(edited);
+        }
+        history.undo(canvas);
+    }
+}
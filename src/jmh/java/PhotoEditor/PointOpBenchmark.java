@@ -0,0 +1,65 @@
+package PhotoEditor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The point ops with the SIMD kernels on and off. Run on one thread so the comparison
+ * is per core; the kernels in use are printed at setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g", "-Djava.awt.headless=true", "--add-modules=jdk.incubator.vector"})
+public class PointOpBenchmark {
+    @Param({"12"})
+    public int megapixels;
+
+    @Param({"true", "false"})
+    public boolean simd;
+
+    private BufferedImage image;
+    private PointOp sepia, grayscale, brightnessContrast, saturation, adjust;
+
+    @Setup
+    public void setUp() {
+        BenchImages.configureThreads(1);
+        PointOp.setVectorized(simd);
+        System.out.println("Point op kernels: " + PointOp.kernelInfo());
+        image = BenchImages.create(megapixels, BufferedImage.TYPE_INT_ARGB);
+        sepia = Filters.sepia();
+        grayscale = Filters.grayscale();
+        brightnessContrast = Filters.brightnessContrast(10, 20);
+        saturation = Filters.saturation(30);
+        adjust = Filters.brightnessContrast(10, 20).fuse(Filters.saturation(30));
+    }
+
+    @Benchmark
+    public BufferedImage sepia() {
+        return sepia.apply(image);
+    }
+
+    @Benchmark
+    public BufferedImage grayscale() {
+        return grayscale.apply(image);
+    }
+
+    @Benchmark
+    public BufferedImage brightnessContrast() {
+        return brightnessContrast.apply(image);
+    }
+
+    @Benchmark
+    public BufferedImage saturation() {
+        return saturation.apply(image);
+    }
+
+    @Benchmark
+    public BufferedImage adjust() {
+        return adjust.apply(image);
+    }
+}
@@ -0,0 +1,38 @@
+package PhotoEditor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g", "-Djava.awt.headless=true"})
+public class UtilsBenchmark {
+    @Param({"1", "12", "50"})
+    public int megapixels;
+
+    /** 3BYTE_BGR is what ImageIO returns for JPEG, BYTE_INDEXED for GIF. */
+    @Param({"3BYTE_BGR", "INT_RGB", "BYTE_INDEXED"})
+    public String type;
+
+    private BufferedImage image;
+
+    @Setup
+    public void setUp() {
+        image = BenchImages.create(megapixels, BenchImages.type(type));
+    }
+
+    @Benchmark
+    public BufferedImage toARGB() {
+        return Utils.toARGB(image);
+    }
+
+    @Benchmark
+    public BufferedImage deepCopy() {
+        return Utils.deepCopy(image);
+    }
+}
@@ -0,0 +1,138 @@
+package PhotoEditor;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Headless batch mode: applies one operation chain to every image in a directory or
+ * glob. Files are streamed from the directory listing and handed to a fixed worker
+ * pool; a semaphore caps the number of images in flight, so memory stays flat no
+ * matter how many files there are.
+ */
+class BatchProcessor {
+    private static final String IMAGE_GLOB = "*.{png,PNG,jpg,JPG,jpeg,JPEG,bmp,BMP,gif,GIF}";
+
+    private final Path inputDir;
+    private final String pattern;
+    private final Path outputDir;
+    private final Filters.Op op;
+    private final int workers;
+    private final ExportOptions options;
+
+    BatchProcessor(String input, Path outputDir, Filters.Op op, int workers, ExportOptions options) {
+        Path in = Paths.get(input);
+        if (Files.isDirectory(in)) {
+            this.inputDir = in;
+            this.pattern = IMAGE_GLOB;
+        } else {
+            Path parent = in.getParent();
+            this.inputDir = parent != null ? parent : Paths.get(".");
+            this.pattern = in.getFileName().toString();
+        }
+        this.outputDir = outputDir;
+        this.op = op;
+        this.workers = Math.max(1, workers);
+        this.options = options;
+    }
+
+    static int run(String[] args) {
+        String in = null, out = null, ops = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExportOptions options = ExportOptions.DEFAULT;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--batch": break;
+                    case "--in": in = args[++i]; break;
+                    case "--out": out = args[++i]; break;
+                    case "--ops": ops = args[++i]; break;
+                    case "--threads": threads = Integer.parseInt(args[++i]); break;
+                    case "--png-level": options = options.withPngLevel(Integer.parseInt(args[++i])); break;
+                    case "--png-filter": options = options.withPngFilter(pngFilter(args[++i])); break;
+                    case "--jpeg-quality": options = options.withJpegQuality(Float.parseFloat(args[++i])); break;
+                    case "--progressive": options = options.withProgressive(true); break;
+                    default: throw new IllegalArgumentException("Unknown argument: " + args[i]);
+                }
+            }
+            if (in == null || out == null || ops == null) {
+                throw new IllegalArgumentException("--in, --out and --ops are required");
+            }
+            return new BatchProcessor(in, Paths.get(out), OpSpec.parse(ops), threads, options).process();
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            System.err.println("Usage: --batch --in <dir|glob> --out <dir> --ops <op,op,...> [--threads N]");
+            System.err.println("       [--png-level 0-9] [--png-filter none|sub|up|average|paeth|adaptive]");
+            System.err.println("       [--jpeg-quality 0-1] [--progressive]");
+            System.err.println("Operations:\n" + OpSpec.HELP);
+            return 2;
+        } catch (IOException | InterruptedException ex) {
+            System.err.println("Batch failed: " + ex.getMessage());
+            return 1;
+        }
+    }
+
+    int process() throws IOException, InterruptedException {
+        Files.createDirectories(outputDir);
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        Semaphore inFlight = new Semaphore(workers * 2);
+        AtomicInteger done = new AtomicInteger(), failed = new AtomicInteger();
+        long start = System.nanoTime();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(inputDir, pattern)) {
+            for (Path file : files) {
+                if (!Files.isRegularFile(file)) continue;
+                inFlight.acquire();
+                pool.execute(() -> {
+                    try {
+                        long t0 = System.nanoTime();
+                        processFile(file);
+                        done.incrementAndGet();
+                        System.out.printf(Locale.ROOT, "%-40s %8.1f ms%n",
+                                file.getFileName(), (System.nanoTime() - t0) / 1e6);
+                    } catch (Exception ex) {
+                        failed.incrementAndGet();
+                        System.err.println(file.getFileName() + ": " + ex.getMessage());
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf(Locale.ROOT, "%d images in %.2f s (%.2f images/s), %d failed%n",
+                done.get(), seconds, done.get() / Math.max(seconds, 1e-9), failed.get());
+        return failed.get() == 0 ? 0 : 1;
+    }
+
+    private void processFile(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        // ImageLoader times the decode as an OPEN sample once it knows the image size.
+        BufferedImage img = ImageLoader.read(file.toFile(), null, p -> {}, () -> false);
+        int w = img.getWidth(), h = img.getHeight();
+        BufferedImage result = Metrics.time(Metrics.Kind.FILTER, "batch", w, h, () -> op.apply(img));
+        Utils.saveImage(result, new File(outputDir.toFile(), name), options);
+    }
+
+    private static PngEncoder.Filter pngFilter(String name) {
+        try {
+            return PngEncoder.Filter.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unknown PNG filter: " + name);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package PhotoEditor;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Gaussian blur approximated by three successive box blurs per axis. Every box pass is
+ * a running sum, so the cost per pixel does not depend on the radius. Each pass reads
+ * rows and writes its result transposed, so the vertical passes also run along
+ * contiguous rows. Rows are handled in strips whose transposed writes fill whole
+ * cache lines. Colours are blurred premultiplied by alpha, so fully transparent pixels
+ * contribute nothing to the colour of their neighbours.
+ */
+final class BoxBlur {
+    enum Edge { CLAMP, MIRROR }
+
+    private static final int PASSES = 3;
+    private static final int STRIP = 16;
+
+    private BoxBlur() {}
+
+    /** Blurs with a Gaussian of standard deviation {@code sigma} pixels. */
+    static BufferedImage gaussian(BufferedImage src, double sigma, Edge edge) {
+        int w = src.getWidth(), h = src.getHeight();
+        BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        int[] a = new int[w * h];
+        Pixels.read(src, 0, 0, w, h, a);
+        if (sigma > 0) {
+            boolean translucent = premultiply(a, w, h);
+            int[] b = new int[w * h];
+            int[] radii = boxRadii(sigma);
+            int cols = w, rows = h;
+            for (int pass = 0; pass < PASSES * 2; pass++) {
+                boxPass(a, b, cols, rows, radii[pass / 2], edge);
+                int[] t = a; a = b; b = t;
+                int c = cols; cols = rows; rows = c;
+            }
+            if (translucent) unpremultiply(a, w, h);
+        }
+        Pixels.write(out, 0, 0, w, h, a);
+        return out;
+    }
+
+    /**
+     * Sharpens by adding {@code amount} times the difference from a Gaussian blur,
+     * leaving channels whose difference is below {@code threshold} unchanged.
+     */
+    static BufferedImage unsharpMask(BufferedImage src, double sigma, double amount, int threshold, Edge edge) {
+        BufferedImage blurred = gaussian(src, sigma, edge);
+        BufferedImage out = blurred;
+        int w = src.getWidth();
+        TileScheduler.shared().forEachBand(src.getHeight(), (y0, y1) -> {
+            int[] orig = new int[w], soft = new int[w];
+            for (int y = y0; y < y1; y++) {
+                Pixels.read(src, 0, y, w, 1, orig);
+                Pixels.read(blurred, 0, y, w, 1, soft);
+                for (int x = 0; x < w; x++) {
+                    int o = orig[x], s = soft[x];
+                    int r = sharpen((o >>> 16) & 0xFF, (s >>> 16) & 0xFF, amount, threshold);
+                    int g = sharpen((o >>> 8) & 0xFF, (s >>> 8) & 0xFF, amount, threshold);
+                    int b = sharpen(o & 0xFF, s & 0xFF, amount, threshold);
+                    soft[x] = (o & 0xFF000000) | (r << 16) | (g << 8) | b;
+                }
+                Pixels.write(out, 0, y, w, 1, soft);
+            }
+        });
+        return out;
+    }
+
+    // Premultiplies in place and reports whether any pixel is not opaque; when none is,
+    // premultiplying changed nothing and the result needs no unpremultiplying.
+    private static boolean premultiply(int[] px, int w, int h) {
+        AtomicBoolean translucent = new AtomicBoolean();
+        TileScheduler.shared().forEachBand(h, (y0, y1) -> {
+            boolean seen = false;
+            for (int i = y0 * w, end = y1 * w; i < end; i++) {
+                int p = px[i], a = p >>> 24;
+                if (a == 255) continue;
+                seen = true;
+                px[i] = (a << 24) | (mul((p >>> 16) & 0xFF, a) << 16) | (mul((p >>> 8) & 0xFF, a) << 8) | mul(p & 0xFF, a);
+            }
+            if (seen) translucent.set(true);
+        });
+        return translucent.get();
+    }
+
+    private static void unpremultiply(int[] px, int w, int h) {
+        TileScheduler.shared().forEachBand(h, (y0, y1) -> {
+            for (int i = y0 * w, end = y1 * w; i < end; i++) {
+                int p = px[i], a = p >>> 24;
+                if (a == 255) continue;
+                px[i] = a == 0 ? 0 : (a << 24) | (div((p >>> 16) & 0xFF, a) << 16)
+                        | (div((p >>> 8) & 0xFF, a) << 8) | div(p & 0xFF, a);
+            }
+        });
+    }
+
+    private static int mul(int c, int a) {
+        return (c * a + 127) / 255;
+    }
+
+    private static int div(int c, int a) {
+        return Math.min(255, (c * 255 + a / 2) / a);
+    }
+
+    private static int sharpen(int orig, int blurred, double amount, int threshold) {
+        int diff = orig - blurred;
+        if (Math.abs(diff) < threshold) return orig;
+        return Utils.clamp((int) Math.round(orig + amount * diff));
+    }
+
+    /**
+     * The standard deviation of a blur of {@code radius} pixels. Radius is what the user
+     * sets: the Gaussian is taken to reach three standard deviations, which is also about
+     * the {@link #support} of the three box passes.
+     */
+    static double sigma(double radius) {
+        return radius / 3;
+    }
+
+    /** Distance beyond which source pixels no longer affect a blurred pixel. */
+    static int support(double sigma) {
+        int sum = 0;
+        for (int r : boxRadii(sigma)) sum += r;
+        return sigma > 0 ? sum : 0;
+    }
+
+    // Box widths whose three-fold convolution has the variance of the requested Gaussian.
+    static int[] boxRadii(double sigma) {
+        double ideal = Math.sqrt(12 * sigma * sigma / PASSES + 1);
+        int wl = (int) Math.floor(ideal);
+        if (wl % 2 == 0) wl--;
+        int wu = wl + 2;
+        double mIdeal = (12 * sigma * sigma - PASSES * wl * wl - 4 * PASSES * wl - 3 * PASSES) / (-4.0 * wl - 4);
+        int m = (int) Math.round(mIdeal);
+        int[] radii = new int[PASSES];
+        for (int i = 0; i < PASSES; i++) {
+            radii[i] = ((i < m ? wl : wu) - 1) / 2;
+        }
+        return radii;
+    }
+
+    // One box pass along the rows of a cols x rows image, written transposed into dst.
+    private static void boxPass(int[] src, int[] dst, int cols, int rows, int radius, Edge edge) {
+        float inv = 1f / (2 * radius + 1);
+        TileScheduler.shared().forEachBand(rows, STRIP, (y0, y1) -> {
+            int[] strip = new int[STRIP * cols];
+            for (int ys = y0; ys < y1; ys += STRIP) {
+                int n = Math.min(STRIP, y1 - ys);
+                for (int j = 0; j < n; j++) {
+                    blurRow(src, (ys + j) * cols, cols, radius, inv, edge, strip, j * cols);
+                }
+                for (int x = 0; x < cols; x++) {
+                    int o = x * rows + ys;
+                    for (int j = 0; j < n; j++) {
+                        dst[o + j] = strip[j * cols + x];
+                    }
+                }
+            }
+        });
+    }
+
+    private static void blurRow(int[] src, int off, int len, int radius, float inv, Edge edge,
+                                int[] out, int outOff) {
+        int sa = 0, sr = 0, sg = 0, sb = 0;
+        for (int k = -radius; k <= radius; k++) {
+            int p = src[off + index(k, len, edge)];
+            sa += p >>> 24;
+            sr += (p >>> 16) & 0xFF;
+            sg += (p >>> 8) & 0xFF;
+            sb += p & 0xFF;
+        }
+        for (int x = 0; x < len; x++) {
+            out[outOff + x] = ((int) (sa * inv + 0.5f) << 24)
+                    | ((int) (sr * inv + 0.5f) << 16)
+                    | ((int) (sg * inv + 0.5f) << 8)
+                    | (int) (sb * inv + 0.5f);
+            int in = x + radius + 1, gone = x - radius;
+            int pi = src[off + (in < len ? in : index(in, len, edge))];
+            int po = src[off + (gone >= 0 ? gone : index(gone, len, edge))];
+            sa += (pi >>> 24) - (po >>> 24);
+            sr += ((pi >>> 16) & 0xFF) - ((po >>> 16) & 0xFF);
+            sg += ((pi >>> 8) & 0xFF) - ((po >>> 8) & 0xFF);
+            sb += (pi & 0xFF) - (po & 0xFF);
+        }
+    }
+
+    private static int index(int i, int len, Edge edge) {
+        if (i >= 0 && i < len) return i;
+        if (edge == Edge.CLAMP || len == 1) return i < 0 ? 0 : len - 1;
+        int period = 2 * len;
+        int m = Math.floorMod(i, period);
+        return m < len ? m : period - 1 - m;
+    }
+}
@@ -0,0 +1,118 @@
+package PhotoEditor;
+
+import java.awt.*;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+
+/**
+ * Paints {@link Stroke}s on the canvas image as the mouse moves. Every mouse event
+ * paints just the new segment and repaints just its rectangle. When the button is
+ * released the stroke becomes one step of the edit graph and one history state that
+ * covers only the stroke's bounds.
+ *
+ * <p>For the clone stamp, Alt-click sets the source; the offset from there to the start
+ * of the next stroke is then kept for later strokes until the source is set again.
+ */
+class BrushTool implements CanvasPanel.PaintTool {
+    private final CanvasPanel canvas;
+    private final HistoryManager history;
+    private final EditGraph graph;
+    private final JobQueue jobs;
+    private Stroke.Mode mode = Stroke.Mode.BRUSH;
+    private double radius = 20, hardness = 0.5;
+    private int flow = 100;
+    private Color color = Color.BLACK;
+    private Point cloneSource, cloneOffset;
+    private Stroke stroke;
+
+    BrushTool(CanvasPanel canvas, HistoryManager history, EditGraph graph, JobQueue jobs) {
+        this.canvas = canvas;
+        this.history = history;
+        this.graph = graph;
+        this.jobs = jobs;
+    }
+
+    void setMode(Stroke.Mode mode) {
+        this.mode = mode;
+    }
+
+    double radius() {
+        return radius;
+    }
+
+    double hardness() {
+        return hardness;
+    }
+
+    int flow() {
+        return flow;
+    }
+
+    Color color() {
+        return color;
+    }
+
+    void setBrush(double radius, double hardness, int flow, Color color) {
+        this.radius = radius;
+        this.hardness = hardness;
+        this.flow = flow;
+        this.color = color;
+    }
+
+    @Override
+    public void pressed(double x, double y, MouseEvent e) {
+        if (graph.isEmpty() || canvas.getTiledImage() != null) return;
+        // A queued edit would be rendered from steps without this stroke.
+        if (jobs.isBusy()) {
+            Toolkit.getDefaultToolkit().beep();
+            return;
+        }
+        int dx = 0, dy = 0;
+        if (mode == Stroke.Mode.CLONE) {
+            if (e.isAltDown()) {
+                cloneSource = new Point((int) x, (int) y);
+                cloneOffset = null;
+                return;
+            }
+            if (cloneSource == null) {
+                Toolkit.getDefaultToolkit().beep();
+                return;
+            }
+            if (cloneOffset == null) cloneOffset = new Point(cloneSource.x - (int) x, cloneSource.y - (int) y);
+            dx = cloneOffset.x;
+            dy = cloneOffset.y;
+        }
+        stroke = new Stroke(mode, radius, hardness, flow, color.getRGB(), dx, dy);
+        paint(x, y);
+    }
+
+    @Override
+    public void dragged(double x, double y) {
+        if (stroke != null) paint(x, y);
+    }
+
+    private void paint(double x, double y) {
+        BufferedImage img = canvas.writableImage();
+        Rectangle dirty = stroke.add(img, x, y);
+        if (!dirty.isEmpty()) canvas.imageUpdated(dirty);
+    }
+
+    // With layers the stroke was painted over the flattened image for feedback; a job
+    // then puts the step on the background and composites the stroke's tiles again,
+    // which replace the feedback when it commits.
+    @Override
+    public void released() {
+        if (stroke == null) return;
+        Rectangle bounds = stroke.bounds();
+        String spec = stroke.spec();
+        stroke = null;
+        if (bounds.isEmpty()) return;
+        if (graph.layers().isEmpty()) {
+            graph.append(spec);
+            history.record(canvas.getImage(), bounds, graph.state());
+        } else {
+            ToolPanel.submitSteps(jobs, canvas, history, graph, "Brush",
+                    ToolPanel.appending(EditGraph.Step.of(spec)), bounds, null);
+        }
+    }
+}
@@ -3,16 +3,50 @@ package PhotoEditor;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
 
 class CanvasPanel extends JComponent {
+    /** Told on the EDT about every change of the image pixels or of the preview. */
+    interface ImageListener {
+        /** {@code dirty} is the changed part in image coordinates, or null for a new image. */
+        void imageChanged(Rectangle dirty);
+
+        default void previewChanged(BufferedImage preview) {}
+    }
+
+    /** Gets the mouse in image coordinates, in place of the marquee, while it is the active tool. */
+    interface PaintTool {
+        void pressed(double x, double y, MouseEvent e);
+
+        void dragged(double x, double y);
+
+        void released();
+    }
+
+    private final java.util.List<ImageListener> listeners = new ArrayList<>();
     private BufferedImage image;
-    private BufferedImage originalImage;
-    private BufferedImage checkerboard;
+    private boolean shared;  // image belongs to someone else and must not be changed in place
+    private TiledImage tiled;
+    private BufferedImage preview;
+    private ImagePyramid pyramid;  // of the image, or of the tiled image's overview
+    private long imageVersion;
+    private TexturePaint checkerboard;
     private double scale = 1.0;
     private Rectangle selection;
     private Point dragStart;
     private StatusBar statusBar;
+    private PaintTool paintTool;
+    private boolean painting;
+    private boolean paintingEnabled = true;
+    // The checkerboard and image under the viewport, kept while a marquee is dragged so
+    // that each drag step only blits the area the marquee left or entered.
+    private BufferedImage marqueeBase;
+    private Rectangle marqueeBaseBounds;
+    // Cursor read-outs are shown at most once per display frame, for the latest position.
+    private final Timer statusTimer = new Timer(frameMillis(), e -> showStatus());
+    private Point statusPoint;
 
     CanvasPanel() {
         setOpaque(true);
@@ -21,23 +55,35 @@ class CanvasPanel extends JComponent {
         MouseAdapter ma = new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
+                if (paintTool != null) {
+                    painting = image != null && paintingEnabled;
+                    if (painting) paintTool.pressed(e.getX() / scale, e.getY() / scale, e);
+                    return;
+                }
                 dragStart = e.getPoint();
-                selection = new Rectangle(dragStart);
-                repaint();
+                setSelection(new Rectangle(dragStart));
+                captureMarqueeBase();
             }
 
             @Override
             public void mouseDragged(MouseEvent e) {
-                if (dragStart != null) {
-                    selection = createRectangle(dragStart, e.getPoint());
-                    repaint();
+                if (painting) {
+                    paintTool.dragged(e.getX() / scale, e.getY() / scale);
+                    updateStatus(e.getPoint());
+                } else if (dragStart != null) {
+                    setSelection(createRectangle(dragStart, e.getPoint()));
                     updateStatus(e.getPoint());
                 }
             }
 
             @Override
             public void mouseReleased(MouseEvent e) {
+                if (painting) {
+                    painting = false;
+                    paintTool.released();
+                }
                 dragStart = null;
+                marqueeBase = null;
                 updateStatus(e.getPoint());
             }
 
@@ -55,60 +101,198 @@ class CanvasPanel extends JComponent {
         addMouseListener(ma);
         addMouseMotionListener(ma);
         addMouseWheelListener(ma);
+        statusTimer.setRepeats(false);
     }
 
     void setStatusBar(StatusBar sb) {
         this.statusBar = sb;
     }
 
+    /** Makes {@code tool} get the mouse instead of the marquee; null goes back to selecting. */
+    void setPaintTool(PaintTool tool) {
+        if (painting) {
+            painting = false;
+            paintTool.released();
+        }
+        paintTool = tool;
+        clearSelection();
+        setCursor(tool == null ? Cursor.getDefaultCursor() : Cursor.getPredefinedCursor(Cursor.CROSSHAIR_CURSOR));
+    }
+
+    /**
+     * Lets paint tools change the image or not, for while a load or save reads it; the
+     * view can still be zoomed. Turning painting off ends a stroke in progress.
+     */
+    void setPaintingEnabled(boolean enabled) {
+        if (!enabled && painting) {
+            painting = false;
+            paintTool.released();
+        }
+        paintingEnabled = enabled;
+    }
+
+    void addImageListener(ImageListener listener) {
+        listeners.add(listener);
+    }
+
+    private void fireImageChanged(Rectangle dirty) {
+        for (ImageListener l : listeners) l.imageChanged(dirty);
+    }
+
     void setImage(BufferedImage img) {
-        this.image = Utils.toARGB(img);
-        this.originalImage = Utils.deepCopy(img);
-        generateCheckerboard();
+        this.image = img == null ? null : Utils.toARGB(img);
+        this.shared = false;
+        imageVersion++;
+        closeTiled(null);
+        this.preview = null;
+        this.pyramid = null;
+        if (checkerboard == null) generateCheckerboard();
         resetView();
+        fireImageChanged(null);
     }
 
     BufferedImage getImage() {
         return image;
     }
 
-    void resetImage() {
-        if (originalImage != null) {
-            this.image = Utils.deepCopy(originalImage);
-            resetView();
+    /**
+     * Shows {@code img} without copying it, such as the edit graph's output for a freshly
+     * opened image. Whatever changes the canvas image in place gets it through
+     * {@link #writableImage()}, which swaps in a copy first.
+     */
+    void shareImage(BufferedImage img) {
+        setImage(img);
+        shared = image == img && img != null;
+    }
+
+    /** Whether the image is shared and so may only be read or replaced. */
+    boolean isImageShared() {
+        return shared;
+    }
+
+    /** The image, to be changed in place: a shared image is first replaced by a copy. */
+    BufferedImage writableImage() {
+        if (shared) {
+            image = Utils.deepCopy(image);
+            shared = false;
+            if (pyramid != null) pyramid.rebase(image);
         }
+        return image;
+    }
+
+    /**
+     * Shows an out-of-core image. Zoomed out it is drawn from the image's overview;
+     * zoomed in, only the tiles under the visible region are paged in.
+     * The canvas owns the tiled image and closes it once it is replaced.
+     */
+    void setTiledImage(TiledImage img) {
+        this.image = null;
+        this.shared = false;
+        closeTiled(img);
+        this.tiled = img;
+        imageVersion++;
+        this.preview = null;
+        this.pyramid = null;
+        if (checkerboard == null) generateCheckerboard();
+        resetView();
+        fireImageChanged(null);
+    }
+
+    /**
+     * Tells the canvas that the pixels of its image inside {@code dirty} were changed in
+     * place; only that part of the display is refreshed and the view is kept.
+     */
+    void imageUpdated(Rectangle dirty) {
+        imageVersion++;
+        preview = null;
+        marqueeBase = null;
+        if (pyramid != null) pyramid.update(dirty);
+        repaint(new Rectangle(
+                (int) Math.floor(dirty.x * scale) - 1, (int) Math.floor(dirty.y * scale) - 1,
+                (int) Math.ceil(dirty.width * scale) + 3, (int) Math.ceil(dirty.height * scale) + 3));
+        fireImageChanged(dirty);
+    }
+
+    /** Changes whenever the canvas image or its pixels change. */
+    long getImageVersion() {
+        return imageVersion;
+    }
+
+    TiledImage getTiledImage() {
+        return tiled;
+    }
+
+    boolean hasImage() {
+        return image != null || tiled != null;
+    }
+
+    private void closeTiled(TiledImage next) {
+        if (tiled != null && tiled != next) tiled.close();
+        tiled = null;
+    }
+
+    private Dimension imageSize() {
+        if (image != null) return new Dimension(image.getWidth(), image.getHeight());
+        if (tiled != null) return new Dimension(tiled.getWidth(), tiled.getHeight());
+        return null;
+    }
+
+    /** Shows {@code img}, usually a downscaled proxy, stretched over the image bounds; null restores the image. */
+    void setPreview(BufferedImage img) {
+        if (img == preview) return;
+        this.preview = img;
+        marqueeBase = null;
+        repaint();
+        for (ImageListener l : listeners) l.previewChanged(img);
+    }
+
+    double getScale() {
+        return scale;
     }
 
     void zoomToFit() {
-        if (image == null || getParent() == null) return;
+        Dimension size = imageSize();
+        if (size == null || getParent() == null) return;
         Dimension vp = (getParent() instanceof JViewport)
                 ? ((JViewport) getParent()).getExtentSize()
                 : getSize();
         if (vp.width == 0 || vp.height == 0) return;
-        double sx = vp.width / (double) image.getWidth();
-        double sy = vp.height / (double) image.getHeight();
+        double sx = vp.width / (double) size.width;
+        double sy = vp.height / (double) size.height;
         adjustZoom(Math.min(sx, sy));
     }
 
     Rectangle getSelectionImageSpace() {
-        if (selection == null || image == null) return null;
+        Dimension size = imageSize();
+        if (selection == null || size == null) return null;
         Rectangle scaled = new Rectangle(
                 (int) (selection.x / scale),
                 (int) (selection.y / scale),
                 (int) (selection.width / scale),
                 (int) (selection.height / scale)
         );
-        scaled = scaled.intersection(new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+        scaled = scaled.intersection(new Rectangle(0, 0, size.width, size.height));
         return (scaled.width > 0 && scaled.height > 0) ? scaled : null;
     }
 
     void clearSelection() {
-        selection = null;
-        repaint();
+        setSelection(null);
+    }
+
+    // Repaints only the union of the old and new marquee, with room for its stroke.
+    private void setSelection(Rectangle next) {
+        Rectangle old = selection;
+        selection = next;
+        Rectangle dirty = old == null ? next : next == null ? old : old.union(next);
+        if (dirty == null) return;
+        dirty = new Rectangle(dirty);
+        dirty.grow(2, 2);
+        repaint(dirty);
     }
 
     private void resetView() {
         selection = null;
+        marqueeBase = null;
         scale = 1.0;
         revalidate();
         repaint();
@@ -119,6 +303,7 @@ class CanvasPanel extends JComponent {
         double newScale = Math.max(0.05, Math.min(10, scale * factor));
         if (Math.abs(newScale - scale) > 1e-6) {
             scale = newScale;
+            marqueeBase = null;
             revalidate();
             repaint();
             updateStatus(null);
@@ -127,8 +312,8 @@ class CanvasPanel extends JComponent {
 
     private void generateCheckerboard() {
         int size = 20;
-        checkerboard = new BufferedImage(size * 2, size * 2, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g = checkerboard.createGraphics();
+        BufferedImage tile = new BufferedImage(size * 2, size * 2, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = tile.createGraphics();
         Color c1 = new Color(200, 200, 200);
         Color c2 = new Color(150, 150, 150);
         g.setColor(c1);
@@ -138,15 +323,17 @@ class CanvasPanel extends JComponent {
         g.fillRect(size, 0, size, size);
         g.fillRect(0, size, size, size);
         g.dispose();
+        checkerboard = new TexturePaint(tile, new Rectangle(0, 0, tile.getWidth(), tile.getHeight()));
     }
 
     @Override
     public Dimension getPreferredSize() {
-        return image == null
+        Dimension size = imageSize();
+        return size == null
                 ? new Dimension(800, 600)
                 : new Dimension(
-                (int) Math.round(image.getWidth() * scale),
-                (int) Math.round(image.getHeight() * scale)
+                (int) Math.round(size.width * scale),
+                (int) Math.round(size.height * scale)
         );
     }
 
@@ -154,20 +341,14 @@ class CanvasPanel extends JComponent {
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
         Graphics2D g2 = (Graphics2D) g.create();
-        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
-                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        Rectangle clip = g2.getClipBounds();
+        if (clip == null) clip = new Rectangle(0, 0, getWidth(), getHeight());
 
-        if (checkerboard != null) {
-            TexturePaint paint = new TexturePaint(checkerboard,
-                    new Rectangle(0, 0, checkerboard.getWidth(), checkerboard.getHeight()));
-            g2.setPaint(paint);
-            g2.fillRect(0, 0, getWidth(), getHeight());
-        }
-
-        if (image != null) {
-            int iw = (int) Math.round(image.getWidth() * scale);
-            int ih = (int) Math.round(image.getHeight() * scale);
-            g2.drawImage(image, 0, 0, iw, ih, null);
+        Rectangle base = marqueeBaseBounds;
+        if (marqueeBase != null && base.contains(clip)) {
+            g2.drawImage(marqueeBase, base.x, base.y, base.width, base.height, null);
+        } else {
+            paintImageLayer(g2, clip);
         }
 
         if (selection != null && selection.width > 1 && selection.height > 1) {
@@ -181,6 +362,109 @@ class CanvasPanel extends JComponent {
         g2.dispose();
     }
 
+    private void paintImageLayer(Graphics2D g2, Rectangle clip) {
+        if (checkerboard != null) {
+            g2.setPaint(checkerboard);
+            g2.fill(clip);
+        }
+        if (image != null) {
+            Metrics.time(Metrics.Kind.PAINT, "image", clip.width, clip.height, () -> {
+                drawVisibleRegion(g2, clip);
+                return null;
+            });
+        } else if (tiled != null) {
+            Metrics.time(Metrics.Kind.PAINT, "tiled", clip.width, clip.height, () -> {
+                drawVisibleTiles(g2, clip);
+                return null;
+            });
+        }
+    }
+
+    // Renders the image layer under the viewport once, at device resolution, for the
+    // marquee drag that is starting.
+    private void captureMarqueeBase() {
+        Rectangle visible = getVisibleRect();
+        GraphicsConfiguration gc = getGraphicsConfiguration();
+        if (!hasImage() || visible.isEmpty() || gc == null) return;
+        double ds = gc.getDefaultTransform().getScaleX();
+        BufferedImage base = gc.createCompatibleImage(
+                (int) Math.ceil(visible.width * ds), (int) Math.ceil(visible.height * ds));
+        Graphics2D g = base.createGraphics();
+        g.setColor(getBackground());
+        g.fillRect(0, 0, base.getWidth(), base.getHeight());
+        g.scale(ds, ds);
+        g.translate(-visible.x, -visible.y);
+        g.clip(visible);
+        paintImageLayer(g, visible);
+        g.dispose();
+        marqueeBase = base;
+        marqueeBaseBounds = visible;
+    }
+
+    // Draws only the part of the nearest pyramid level (or the preview proxy) that
+    // falls inside the clip, with a one-pixel margin so bilinear filtering at the
+    // clip edge matches a full repaint. At half size and below the pyramid's
+    // display-size image is used once it is ready, drawn one to one.
+    private void drawVisibleRegion(Graphics2D g2, Rectangle clip) {
+        int iw = (int) Math.round(image.getWidth() * scale);
+        int ih = (int) Math.round(image.getHeight() * scale);
+        if (pyramid == null) pyramid = new ImagePyramid(image, getGraphicsConfiguration(), this::repaint);
+        BufferedImage src = preview;
+        if (src == null && scale <= 0.5) src = pyramid.displayLevel(scale, iw, ih);
+        if (src == null) src = pyramid.levelFor(scale);
+        drawScaled(g2, clip, src, iw, ih);
+    }
+
+    // Draws the part of src, stretched over iw x ih on screen, that falls inside the clip.
+    private void drawScaled(Graphics2D g2, Rectangle clip, BufferedImage src, int iw, int ih) {
+        Rectangle dest = clip.intersection(new Rectangle(0, 0, iw, ih));
+        if (dest.isEmpty()) return;
+        double fx = src.getWidth() / (double) iw;
+        double fy = src.getHeight() / (double) ih;
+        int sx0 = Math.max(0, (int) Math.floor(dest.x * fx) - 1);
+        int sy0 = Math.max(0, (int) Math.floor(dest.y * fy) - 1);
+        int sx1 = Math.min(src.getWidth(), (int) Math.ceil((dest.x + dest.width) * fx) + 1);
+        int sy1 = Math.min(src.getHeight(), (int) Math.ceil((dest.y + dest.height) * fy) + 1);
+        if (sx1 <= sx0 || sy1 <= sy0) return;
+
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, scale >= 2
+                ? RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR
+                : RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        AffineTransform at = AffineTransform.getScaleInstance(1 / fx, 1 / fy);
+        at.translate(sx0, sy0);
+        g2.clip(dest);
+        g2.drawImage(src.getSubimage(sx0, sy0, sx1 - sx0, sy1 - sy0), at, null);
+        g2.setClip(clip);
+    }
+
+    // Zoomed out, draws the tiled image's overview like an image in memory. Zoomed in,
+    // reads just the visible part of the tiles at source resolution and scales it up
+    // nearest-neighbour.
+    private void drawVisibleTiles(Graphics2D g2, Rectangle clip) {
+        int iw = (int) Math.round(tiled.getWidth() * scale);
+        int ih = (int) Math.round(tiled.getHeight() * scale);
+        if (scale < 1) {
+            if (pyramid == null) pyramid = new ImagePyramid(tiled.overview(), getGraphicsConfiguration(), this::repaint);
+            double s = scale * tiled.overviewStep();
+            BufferedImage src = s <= 0.5 ? pyramid.displayLevel(s, iw, ih) : null;
+            drawScaled(g2, clip, src != null ? src : pyramid.levelFor(s), iw, ih);
+            return;
+        }
+        Rectangle dest = clip.intersection(new Rectangle(0, 0, iw, ih));
+        if (dest.isEmpty()) return;
+        int sx0 = (int) Math.floor(dest.x / scale), sy0 = (int) Math.floor(dest.y / scale);
+        int sx1 = Math.min(tiled.getWidth(), (int) Math.ceil((dest.x + dest.width) / scale));
+        int sy1 = Math.min(tiled.getHeight(), (int) Math.ceil((dest.y + dest.height) / scale));
+        if (sx1 <= sx0 || sy1 <= sy0) return;
+        Rectangle src = new Rectangle(sx0, sy0, sx1 - sx0, sy1 - sy0);
+        int dx0 = (int) Math.floor(sx0 * scale), dy0 = (int) Math.floor(sy0 * scale);
+        int dw = (int) Math.ceil(sx1 * scale) - dx0, dh = (int) Math.ceil(sy1 * scale) - dy0;
+        BufferedImage region = new BufferedImage(src.width, src.height, BufferedImage.TYPE_INT_ARGB);
+        tiled.readRegion(src, Pixels.data(region));
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        g2.drawImage(region, dx0, dy0, dw, dh, null);
+    }
+
     private Rectangle createRectangle(Point p1, Point p2) {
         int x = Math.min(p1.x, p2.x);
         int y = Math.min(p1.y, p2.y);
@@ -190,16 +474,40 @@ class CanvasPanel extends JComponent {
     }
 
     private void updateStatus(Point p) {
+        statusPoint = p == null ? null : new Point(p);
+        if (!statusTimer.isRunning()) statusTimer.start();
+    }
+
+    private static int frameMillis() {
+        int hz = DisplayMode.REFRESH_RATE_UNKNOWN;
+        if (!GraphicsEnvironment.isHeadless()) {
+            hz = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                    .getDisplayMode().getRefreshRate();
+        }
+        return 1000 / (hz > 0 ? hz : 60);
+    }
+
+    // Reads the pixel straight from the raster and builds the text without formatting.
+    private void showStatus() {
+        Point p = statusPoint;
+        if (statusBar != null && tiled != null) {
+            statusBar.setMessage("Image size: " + tiled.getWidth() + "x" + tiled.getHeight() + " (tiled)");
+            return;
+        }
         if (statusBar != null && image != null) {
             if (p != null) {
                 int ix = (int) (p.x / scale);
                 int iy = (int) (p.y / scale);
                 if (ix >= 0 && iy >= 0 && ix < image.getWidth() && iy < image.getHeight()) {
-                    int rgb = image.getRGB(ix, iy);
-                    Color c = new Color(rgb, true);
-                    statusBar.setMessage(
-                            String.format("x=%d y=%d  |  R=%d G=%d B=%d A=%d",
-                                    ix, iy, c.getRed(), c.getGreen(), c.getBlue(), c.getAlpha()));
+                    int argb = Pixels.isDirect(image)
+                            ? Pixels.data(image)[Pixels.offset(image, ix, iy)]
+                            : image.getRGB(ix, iy);
+                    statusBar.setMessage(new StringBuilder(48)
+                            .append("x=").append(ix).append(" y=").append(iy)
+                            .append("  |  R=").append((argb >> 16) & 0xFF)
+                            .append(" G=").append((argb >> 8) & 0xFF)
+                            .append(" B=").append(argb & 0xFF)
+                            .append(" A=").append(argb >>> 24).toString());
                     return;
                 }
             }
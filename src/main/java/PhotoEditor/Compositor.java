@@ -0,0 +1,325 @@
+package PhotoEditor;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Flattens the background and its layers into one image, 256-pixel tile by tile. The
+ * flattened image is kept between updates, and an update recomposites only the tiles
+ * under what changed: the region of the background the caller names, and the bounds
+ * of the layers that differ from the last update. Dirty tiles are blended in parallel.
+ *
+ * <p>Updates are made by {@link JobQueue} jobs with {@link #prepare} and {@link #commit}:
+ * the job composites the dirty tiles into an image of its own, and the EDT only copies
+ * them into place.
+ *
+ * <p>Edits usually hit the same layer many times in a row, such as an opacity slider
+ * being dragged, so the composite of everything below the lowest changed layer is
+ * also kept per tile. While the same layer keeps changing, a tile only blends that
+ * layer and the ones above it.
+ */
+final class Compositor {
+    static final int TILE = 256;
+
+    /**
+     * Tiles composited aside by {@link #prepare}: {@code pixels} holds {@code region} of
+     * the flattened image, or all of a new one when {@code region} is null.
+     */
+    record Pending(BufferedImage bg, List<Layer> layers, Rectangle region, BufferedImage pixels) {}
+
+    // What differs from the last update, and the lowest layer that does (-1 for the
+    // background); dirty is null when nothing does.
+    private record Change(Rectangle dirty, int lowest) {}
+
+    private BufferedImage output;
+    private BufferedImage background;  // null when unknown
+    private List<Layer> layers = List.of();
+    private BufferedImage below;
+    private boolean[] belowValid;
+    private int focus = -1;
+
+    /** The flattened image; the canvas shows it and history may rewrite it in place. */
+    BufferedImage image() {
+        return output;
+    }
+
+    /** Forgets the flattened image, for when the canvas stops showing it. */
+    void reset() {
+        output = null;
+        background = null;
+        layers = List.of();
+        below = null;
+        belowValid = null;
+        focus = -1;
+    }
+
+    /**
+     * Takes {@code current} as the flattened image of {@code bg} under {@code layers}
+     * without compositing anything, as after undo has put those pixels back. A null
+     * {@code bg} means the background is not known and the next update redoes it all.
+     */
+    void adopt(BufferedImage current, BufferedImage bg, List<Layer> next) {
+        if (current == null || current.getType() != BufferedImage.TYPE_INT_ARGB) {
+            reset();
+            return;
+        }
+        output = current;
+        background = bg;
+        layers = next;
+        below = null;
+        belowValid = null;
+        focus = -1;
+    }
+
+    /**
+     * Composites the tiles that change when the background becomes {@code bg}, of which
+     * only {@code bgChanged} differs (all of it when null), and the layers become
+     * {@code next}. They go into an image of their own, so a job can do it off the EDT
+     * while {@code current} stays on screen. Nothing changes here but the composite kept
+     * below the edited layer, which only depends on layers the edit leaves alone. When
+     * {@code current} is not this compositor's image, its background and layers are
+     * taken as unknown; when it is null, or must not be written to, everything is
+     * composited into a new image.
+     */
+    Pending prepare(BufferedImage current, BufferedImage bg, Rectangle bgChanged, List<Layer> next) {
+        int w = bg.getWidth(), h = bg.getHeight();
+        if (!fits(current, bg) || current.getType() != BufferedImage.TYPE_INT_ARGB) {
+            BufferedImage all = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            composite(bg, next, new Rectangle(w, h), -1, all, 0, 0);
+            return new Pending(bg, next, null, all);
+        }
+        boolean known = current == output;
+        Change change = changed(known ? background : null, known ? layers : List.of(), bg, bgChanged, next);
+        if (change.dirty() == null || change.dirty().isEmpty()) {
+            return new Pending(bg, next, new Rectangle(), null);
+        }
+        // Whole tiles are composited, so the region is widened to them.
+        Rectangle d = change.dirty();
+        int x0 = d.x / TILE * TILE, y0 = d.y / TILE * TILE;
+        Rectangle region = new Rectangle(x0, y0, d.x + d.width - x0, d.y + d.height - y0);
+        region.add(new Point(Math.min(w, (d.x + d.width + TILE - 1) / TILE * TILE),
+                Math.min(h, (d.y + d.height + TILE - 1) / TILE * TILE)));
+        int from = -1;
+        if (known) {
+            if (change.lowest() != focus) {
+                focus = change.lowest();
+                if (belowValid != null) Arrays.fill(belowValid, false);
+            }
+            from = focus;
+        }
+        BufferedImage pixels = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_ARGB);
+        composite(bg, next, region, from, pixels, region.x, region.y);
+        return new Pending(bg, next, region, pixels);
+    }
+
+    /**
+     * Puts the tiles of {@code pending} into {@code current}, or makes its new image
+     * this compositor's, and takes its background and layers as the last update.
+     * Returns the changed region, or null when a new image was started.
+     */
+    Rectangle commit(Pending pending, BufferedImage current) {
+        if (pending.region() == null || current != output || pending.bg() != background) forgetBelow();
+        background = pending.bg();
+        layers = pending.layers();
+        if (pending.region() == null) {
+            output = pending.pixels();
+            return null;
+        }
+        output = current;
+        Rectangle r = pending.region();
+        int[] row = new int[r.width];
+        for (int y = 0; y < r.height; y++) {
+            Pixels.read(pending.pixels(), 0, y, r.width, 1, row);
+            Pixels.write(current, r.x, r.y + y, r.width, 1, row);
+        }
+        return r;
+    }
+
+    private static boolean fits(BufferedImage img, BufferedImage bg) {
+        return img != null && img.getWidth() == bg.getWidth() && img.getHeight() == bg.getHeight();
+    }
+
+    private void forgetBelow() {
+        below = null;
+        belowValid = null;
+        focus = -1;
+    }
+
+    private static Change changed(BufferedImage lastBg, List<Layer> last, BufferedImage bg, Rectangle bgChanged,
+                                  List<Layer> next) {
+        Rectangle all = new Rectangle(bg.getWidth(), bg.getHeight());
+        Rectangle dirty = null;
+        int lowest = Integer.MAX_VALUE;
+        if (bg != lastBg) {
+            dirty = lastBg == null || bgChanged == null ? all : bgChanged.intersection(all);
+            lowest = -1;
+        }
+        // Layers in the common prefix and suffix of the two lists are unchanged; this
+        // covers edits, inserts, removals and moves alike.
+        int p = 0, s = 0;
+        while (p < last.size() && p < next.size() && last.get(p) == next.get(p)) p++;
+        while (s < last.size() - p && s < next.size() - p
+                && last.get(last.size() - 1 - s) == next.get(next.size() - 1 - s)) s++;
+        for (int i = p; i < last.size() - s; i++) dirty = union(dirty, last.get(i).bounds(), all);
+        for (int i = p; i < next.size() - s; i++) dirty = union(dirty, next.get(i).bounds(), all);
+        if (p < Math.max(last.size(), next.size()) - s) lowest = Math.min(lowest, p);
+        return new Change(dirty, lowest);
+    }
+
+    private static Rectangle union(Rectangle dirty, Rectangle bounds, Rectangle all) {
+        Rectangle r = bounds == null ? all : bounds.intersection(all);
+        if (r.isEmpty()) return dirty;
+        return dirty == null ? r : dirty.union(r);
+    }
+
+    // Recomposites every tile that meets region into target, whose top left is (ox, oy)
+    // of the image. With focus >= 0 the composite below layer focus is read from, or
+    // saved to, the below cache.
+    private void composite(BufferedImage bg, List<Layer> stack, Rectangle region, int focus,
+                           BufferedImage target, int ox, int oy) {
+        int w = bg.getWidth(), h = bg.getHeight();
+        int cols = (w + TILE - 1) / TILE, rows = (h + TILE - 1) / TILE;
+        if (focus >= 0 && below == null) {
+            below = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            belowValid = new boolean[cols * rows];
+        }
+        int c0 = region.x / TILE, r0 = region.y / TILE;
+        int c1 = (region.x + region.width - 1) / TILE, r1 = (region.y + region.height - 1) / TILE;
+        int across = c1 - c0 + 1, count = across * (r1 - r0 + 1);
+        Metrics.time(Metrics.Kind.FILTER, "composite", region.width, region.height, () -> {
+            TileScheduler.shared().forEachBand(count, 1, (t0, t1) -> {
+                int[] buf = new int[TILE * TILE], tmp = new int[TILE * TILE];
+                for (int t = t0; t < t1; t++) {
+                    int col = c0 + t % across, row = r0 + t / across;
+                    Rectangle tile = new Rectangle(col * TILE, row * TILE, TILE, TILE).intersection(new Rectangle(w, h));
+                    compositeTile(bg, stack, tile, row * cols + col, focus, buf, tmp, target, ox, oy);
+                }
+            });
+            return null;
+        });
+    }
+
+    private void compositeTile(BufferedImage bg, List<Layer> stack, Rectangle tile, int index,
+                               int focus, int[] buf, int[] tmp, BufferedImage target, int ox, int oy) {
+        boolean cached = focus >= 0 && belowValid[index];
+        Pixels.read(cached ? below : bg, tile.x, tile.y, tile.width, tile.height, buf);
+        for (int i = cached ? focus : 0; i <= stack.size(); i++) {
+            if (i == focus && !cached) {
+                Pixels.write(below, tile.x, tile.y, tile.width, tile.height, buf);
+                belowValid[index] = true;
+            }
+            if (i == stack.size()) break;
+            Layer layer = stack.get(i);
+            if (layer.visible && layer.opacity > 0) blend(layer, tile, buf, tmp);
+        }
+        Pixels.write(target, tile.x - ox, tile.y - oy, tile.width, tile.height, buf);
+    }
+
+    // Blends one layer over buf, which holds the composite so far of tile.
+    private static void blend(Layer layer, Rectangle tile, int[] buf, int[] tmp) {
+        int alpha = (layer.opacity * 255 + 50) / 100;
+        if (layer.isAdjustment()) {
+            int n = tile.width * tile.height;
+            adjust(layer.op, buf, tmp, tile.width, tile.height);
+            for (int i = 0; i < n; i++) {
+                int b = buf[i];
+                // Alpha is kept: the adjusted pixel covers exactly what the backdrop covers.
+                buf[i] = (b & 0xFF000000) | mix(layer.blend, b, tmp[i], alpha);
+            }
+            return;
+        }
+        Rectangle r = layer.bounds().intersection(tile);
+        if (r.isEmpty()) return;
+        BufferedImage src = layer.pixels;
+        boolean direct = Pixels.isDirect(src);
+        int[] data = direct ? Pixels.data(src) : tmp;
+        for (int y = r.y; y < r.y + r.height; y++) {
+            int so;
+            if (direct) {
+                so = Pixels.offset(src, r.x - layer.x, y - layer.y);
+            } else {
+                Pixels.read(src, r.x - layer.x, y - layer.y, r.width, 1, tmp);
+                so = 0;
+            }
+            int bo = (y - tile.y) * tile.width + (r.x - tile.x);
+            for (int x = 0; x < r.width; x++) {
+                int s = data[so + x];
+                int sa = s >>> 24;
+                if (sa == 0) continue;
+                buf[bo + x] = over(layer.blend, buf[bo + x], s, mul(sa, alpha));
+            }
+        }
+    }
+
+    // Runs an adjustment over the w x h pixels of buf into out.
+    private static void adjust(Filters.Op op, int[] buf, int[] out, int w, int h) {
+        if (op instanceof PointOp p) {
+            p.applyRow(buf, 0, out, 0, w * h);
+            return;
+        }
+        BufferedImage in = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Pixels.write(in, 0, 0, w, h, buf);
+        Pixels.read(op.apply(in), 0, 0, w, h, out);
+    }
+
+    /**
+     * Source-over with blend mode {@code mode} of {@code s} (with coverage {@code sa}
+     * 0..255 in place of its own alpha) onto the straight-alpha backdrop {@code b}.
+     */
+    static int over(Layer.Blend mode, int b, int s, int sa) {
+        int ba = b >>> 24;
+        if (ba == 255) return 0xFF000000 | mix(mode, b, s, sa);
+        // Where the backdrop is transparent the source shows as is; the blend mode only
+        // applies in proportion to the backdrop's coverage.
+        int oa = sa + mul(ba, 255 - sa);
+        if (oa == 0) return 0;
+        int out = oa << 24;
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            int cb = (b >> shift) & 0xFF, cs = (s >> shift) & 0xFF;
+            int mixed = cs + signedMul(channel(mode, cb, cs) - cs, ba);
+            int c = (sa * mixed + mul(ba, 255 - sa) * cb + oa / 2) / oa;
+            out |= Math.min(255, c) << shift;
+        }
+        return out;
+    }
+
+    // b + sa * (B(b, s) - b) per channel, for an opaque backdrop; alpha is left zero.
+    private static int mix(Layer.Blend mode, int b, int s, int sa) {
+        int c = mode == Layer.Blend.NORMAL ? s : blendColor(mode, b, s);
+        // Red and blue are interpolated together, with sa scaled to 0..256 so the
+        // divide is a shift.
+        int a = sa + (sa >> 7), ia = 256 - a;
+        int rb = (((c & 0xFF00FF) * a + (b & 0xFF00FF) * ia) >>> 8) & 0xFF00FF;
+        int g = (((c & 0xFF00) * a + (b & 0xFF00) * ia) >>> 8) & 0xFF00;
+        return rb | g;
+    }
+
+    private static int blendColor(Layer.Blend mode, int b, int s) {
+        int out = 0;
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            out |= channel(mode, (b >> shift) & 0xFF, (s >> shift) & 0xFF) << shift;
+        }
+        return out;
+    }
+
+    private static int channel(Layer.Blend mode, int cb, int cs) {
+        return switch (mode) {
+            case NORMAL -> cs;
+            case MULTIPLY -> mul(cb, cs);
+            case SCREEN -> cb + cs - mul(cb, cs);
+            case OVERLAY -> cb < 128 ? mul(cs, 2 * cb) : 255 - mul(255 - cs, 2 * (255 - cb));
+        };
+    }
+
+    private static int signedMul(int d, int a) {
+        return d >= 0 ? mul(d, a) : -mul(-d, a);
+    }
+
+    // a * b / 255, rounded.
+    private static int mul(int a, int b) {
+        int t = a * b + 128;
+        return (t + (t >> 8)) >> 8;
+    }
+}
@@ -0,0 +1,178 @@
+package PhotoEditor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A 3D colour lookup table read from an Adobe / Resolve {@code .cube} file, applied
+ * with tetrahedral interpolation. Each output colour blends the four corners of the
+ * tetrahedron around the input inside its lattice cell, which keeps the grey axis
+ * exact and avoids the hue shifts trilinear interpolation gives on steep LUTs.
+ *
+ * <p>Parsed tables are cached by path, so the GUI and batch runs share them and a
+ * table is only read again when its file changes.
+ */
+final class CubeLut {
+    private static final int CACHE_ENTRIES = 8;
+    private static final Map<String, CubeLut> CACHE = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CubeLut> eldest) {
+            return size() > CACHE_ENTRIES;
+        }
+    };
+
+    final String title;
+    final int size;
+    // Output colours scaled to 0..255, red varying fastest as in the file.
+    private final float[] table;
+    private final float[] domainMin, domainMax;
+
+    private CubeLut(String title, int size, float[] table, float[] domainMin, float[] domainMax) {
+        this.title = title;
+        this.size = size;
+        this.table = table;
+        this.domainMin = domainMin;
+        this.domainMax = domainMax;
+    }
+
+    /** The table in {@code file}, parsed once and then reused until the file changes. */
+    static CubeLut load(Path file) throws IOException {
+        Path real = file.toRealPath();
+        String key = real + "|" + Files.getLastModifiedTime(real).toMillis() + "|" + Files.size(real);
+        synchronized (CACHE) {
+            CubeLut cached = CACHE.get(key);
+            if (cached != null) return cached;
+        }
+        CubeLut lut = parse(real);
+        synchronized (CACHE) {
+            CACHE.put(key, lut);
+        }
+        return lut;
+    }
+
+    static CubeLut parse(Path file) throws IOException {
+        String title = file.getFileName().toString();
+        int size = 0, n = 0;
+        float[] table = null;
+        float[] min = {0, 0, 0}, max = {1, 1, 1};
+        try (BufferedReader in = Files.newBufferedReader(file)) {
+            String line;
+            int lineNo = 0;
+            while ((line = in.readLine()) != null) {
+                lineNo++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] t = line.split("\\s+");
+                char c = t[0].charAt(0);
+                if (c == '-' || c == '.' || Character.isDigit(c)) {
+                    if (table == null) throw new IOException("Line " + lineNo + ": data before LUT_3D_SIZE");
+                    if (n == table.length) throw new IOException("Line " + lineNo + ": more than " + size + "^3 entries");
+                    if (t.length != 3) throw new IOException("Line " + lineNo + ": expected three values");
+                    for (int k = 0; k < 3; k++) table[n++] = number(t[k], lineNo);
+                    continue;
+                }
+                switch (t[0]) {
+                    case "TITLE" -> title = line.substring(5).trim().replaceAll("^\"|\"$", "");
+                    case "LUT_3D_SIZE" -> {
+                        size = (int) number(t.length > 1 ? t[1] : "", lineNo);
+                        if (size < 2 || size > 256) throw new IOException("Unsupported LUT_3D_SIZE " + size);
+                        table = new float[size * size * size * 3];
+                    }
+                    case "DOMAIN_MIN" -> min = triple(t, lineNo);
+                    case "DOMAIN_MAX" -> max = triple(t, lineNo);
+                    case "LUT_1D_SIZE" -> throw new IOException("1D LUTs are not supported");
+                    default -> { } // LUT_3D_INPUT_RANGE and vendor keywords
+                }
+            }
+        }
+        if (table == null) throw new IOException("No LUT_3D_SIZE in " + file.getFileName());
+        if (n != table.length) throw new IOException("Expected " + size + "^3 entries, found " + n / 3);
+        for (int k = 0; k < 3; k++) {
+            if (!(max[k] > min[k])) throw new IOException("DOMAIN_MAX must exceed DOMAIN_MIN");
+        }
+        for (int i = 0; i < table.length; i++) table[i] = Math.max(0f, Math.min(1f, table[i])) * 255f;
+        return new CubeLut(title, size, table, min, max);
+    }
+
+    private static float[] triple(String[] t, int lineNo) throws IOException {
+        if (t.length != 4) throw new IOException("Line " + lineNo + ": " + t[0] + " needs three values");
+        return new float[]{number(t[1], lineNo), number(t[2], lineNo), number(t[3], lineNo)};
+    }
+
+    private static float number(String s, int lineNo) throws IOException {
+        try {
+            return Float.parseFloat(s);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Line " + lineNo + ": bad number '" + s + "'");
+        }
+    }
+
+    /**
+     * Lattice coordinates of the 8-bit levels {@code map[0..255]} of {@code channel}:
+     * the table offset of the cell goes to {@code cell} and the position inside it to
+     * {@code frac}.
+     */
+    void coordinates(int channel, int[] map, int[] cell, float[] frac) {
+        float lo = domainMin[channel], range = domainMax[channel] - lo;
+        int stride = channel == 0 ? 3 : channel == 1 ? 3 * size : 3 * size * size;
+        for (int v = 0; v < 256; v++) {
+            float pos = (map[v] / 255f - lo) / range * (size - 1);
+            pos = Math.max(0, Math.min(size - 1, pos));
+            int i = Math.min((int) pos, size - 2);
+            cell[v] = i * stride;
+            frac[v] = pos - i;
+        }
+    }
+
+    /**
+     * Maps pixels through the table. {@code rc, gc, bc} and {@code rf, gf, bf} are from
+     * {@link #coordinates}, indexed by the input level of each channel.
+     */
+    void apply(int[] rc, int[] gc, int[] bc, float[] rf, float[] gf, float[] bf,
+               int[] src, int srcOff, int[] dst, int dstOff, int len) {
+        float[] t = table;
+        int dr = 3, dg = 3 * size, db = 3 * size * size;
+        for (int i = 0; i < len; i++) {
+            int p = src[srcOff + i];
+            int r = (p >>> 16) & 0xFF, g = (p >>> 8) & 0xFF, b = p & 0xFF;
+            float fr = rf[r], fg = gf[g], fb = bf[b];
+            int c000 = rc[r] + gc[g] + bc[b];
+            // The cell splits into six tetrahedra along its diagonal; pick the one the
+            // input lies in by the order of its fractions and walk c000 -> c1 -> c2 -> c111.
+            int c1, c2;
+            float w0, w1, w2, w3;
+            if (fr > fg) {
+                if (fg > fb) {
+                    c1 = c000 + dr; c2 = c1 + dg;
+                    w0 = 1 - fr; w1 = fr - fg; w2 = fg - fb; w3 = fb;
+                } else if (fr > fb) {
+                    c1 = c000 + dr; c2 = c1 + db;
+                    w0 = 1 - fr; w1 = fr - fb; w2 = fb - fg; w3 = fg;
+                } else {
+                    c1 = c000 + db; c2 = c1 + dr;
+                    w0 = 1 - fb; w1 = fb - fr; w2 = fr - fg; w3 = fg;
+                }
+            } else {
+                if (fb > fg) {
+                    c1 = c000 + db; c2 = c1 + dg;
+                    w0 = 1 - fb; w1 = fb - fg; w2 = fg - fr; w3 = fr;
+                } else if (fb > fr) {
+                    c1 = c000 + dg; c2 = c1 + db;
+                    w0 = 1 - fg; w1 = fg - fb; w2 = fb - fr; w3 = fr;
+                } else {
+                    c1 = c000 + dg; c2 = c1 + dr;
+                    w0 = 1 - fg; w1 = fg - fr; w2 = fr - fb; w3 = fb;
+                }
+            }
+            int c111 = c000 + dr + dg + db;
+            int or = (int) (w0 * t[c000] + w1 * t[c1] + w2 * t[c2] + w3 * t[c111] + 0.5f);
+            int og = (int) (w0 * t[c000 + 1] + w1 * t[c1 + 1] + w2 * t[c2 + 1] + w3 * t[c111 + 1] + 0.5f);
+            int ob = (int) (w0 * t[c000 + 2] + w1 * t[c1 + 2] + w2 * t[c2 + 2] + w3 * t[c111 + 2] + 0.5f);
+            dst[dstOff + i] = (p & 0xFF000000) | (Math.min(255, or) << 16) | (Math.min(255, og) << 8) | Math.min(255, ob);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package PhotoEditor;
+
+import java.awt.image.BufferedImage;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The document as a list of parameterized steps over the original image. Each step is
+ * an {@link OpSpec} string such as {@code "rotate:90"}. The output after every step is
+ * cached under the keys of all steps up to it, a step's key being its spec or, for long
+ * specs, a digest of it, so changing step k recomputes steps
+ * k..n from the cached output of step k-1. Going back to earlier parameters, or undoing
+ * to an earlier list of steps, is a cache hit. The cache is bounded by
+ * {@code -Dphotoeditor.graphCacheMB} (default 256) and drops the least recently used
+ * results first.
+ *
+ * <p>The result of the steps is the background of the document; {@link Layer}s above it
+ * are flattened onto it by the graph's {@link Compositor}.
+ */
+final class EditGraph {
+    record Step(String spec, Filters.Op op, String key) {
+        // Longer specs, such as strokes listing every point, are keyed by a digest.
+        private static final int MAX_KEY = 64;
+
+        static Step of(String spec) {
+            return new Step(spec, OpSpec.parse(spec), key(spec));
+        }
+
+        /** The op name alone, for metrics and the status bar. */
+        String name() {
+            return OpSpec.name(spec);
+        }
+
+        private static String key(String spec) {
+            if (spec.length() <= MAX_KEY) return spec;
+            try {
+                MessageDigest sha = MessageDigest.getInstance("SHA-1");
+                return OpSpec.name(spec) + '#' + HexFormat.of().formatHex(sha.digest(spec.getBytes(StandardCharsets.UTF_8)));
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        // Strokes list every point, so long steps are cut short for display.
+        @Override
+        public String toString() {
+            return spec.length() <= 60 ? spec : spec.substring(0, 57) + "...";
+        }
+    }
+
+    /** A snapshot of the document for history: the steps and the layers above them. */
+    record State(List<Step> steps, List<Layer> layers) {}
+
+    private final long budgetBytes;
+    // The source generation and the keys of steps 0..i, for the output of step i.
+    private record CacheKey(int generation, List<String> steps) {}
+
+    private final LinkedHashMap<CacheKey, BufferedImage> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final List<Runnable> listeners = new ArrayList<>();
+    private final Compositor compositor = new Compositor();
+    private long cachedBytes;
+    private BufferedImage source;
+    private int generation;
+    private List<Step> steps = List.of();
+    private List<Layer> layers = List.of();
+
+    EditGraph() {
+        this(Long.getLong("photoeditor.graphCacheMB", 256) << 20);
+    }
+
+    EditGraph(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Starts a new document from {@code img}, which the graph takes over: it becomes the
+     * output of step 0 without being copied, so nothing may change it afterwards.
+     */
+    synchronized void reset(BufferedImage img) {
+        source = img == null ? null : Utils.toARGB(img);
+        generation++;
+        cache.clear();
+        cachedBytes = 0;
+        steps = List.of();
+        layers = List.of();
+        compositor.reset();
+        fireChanged();
+    }
+
+    boolean isEmpty() {
+        return source == null;
+    }
+
+    List<Step> steps() {
+        return steps;
+    }
+
+    void append(String spec) {
+        List<Step> next = new ArrayList<>(steps);
+        next.add(Step.of(spec));
+        setSteps(next);
+    }
+
+    /** The layers above the background, bottom first. */
+    List<Layer> layers() {
+        return layers;
+    }
+
+    void setLayers(List<Layer> next) {
+        layers = List.copyOf(next);
+        fireChanged();
+    }
+
+    Compositor compositor() {
+        return compositor;
+    }
+
+    /** The current steps and layers, for {@link HistoryManager#record(BufferedImage, java.awt.Rectangle, Object)}. */
+    Object state() {
+        return new State(steps, layers);
+    }
+
+    /** Returns to a snapshot taken from {@link #state()}; ignores anything else. */
+    void restore(Object state) {
+        if (!(state instanceof State s)) return;
+        steps = s.steps();
+        layers = s.layers();
+        fireChanged();
+    }
+
+    void addChangeListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * The image after all steps, starting from the longest prefix that is still cached.
+     * The result is shared with the cache; use {@link #renderCopy()} for a copy that
+     * may be modified.
+     */
+    BufferedImage render() {
+        return render(steps);
+    }
+
+    /**
+     * The image after {@code steps}, which need not be the document's, so a
+     * {@link JobQueue} job can compute an edit before it is made. In a job, each step is
+     * a stage of its progress and cancelling stops between or inside steps; the steps
+     * finished by then stay cached, so asking again starts where it stopped.
+     *
+     * <p>The steps run without holding the graph's lock, which only guards the cache
+     * lookups and inserts, so the EDT never waits behind a render. Two renders of the
+     * same steps may both compute them. Results of a render that a {@link #reset}
+     * overtook are not cached.
+     */
+    BufferedImage render(List<Step> steps) {
+        List<CacheKey> keys;
+        int start;
+        BufferedImage img = null;
+        synchronized (this) {
+            if (source == null) return null;
+            keys = keys(steps);
+            start = keys.size();
+            while (start > 0 && (img = cache.get(keys.get(start - 1))) == null) start--;
+            if (img == null) img = source;
+        }
+        JobQueue.Job job = JobQueue.Job.current();
+        for (int i = start; i < steps.size(); i++) {
+            if (job != null) {
+                job.checkCancelled();
+                job.stage(i - start, steps.size() - start);
+            }
+            Step step = steps.get(i);
+            BufferedImage in = img;
+            img = Metrics.time(Metrics.Kind.FILTER, step.name(), in.getWidth(), in.getHeight(),
+                    () -> step.op().apply(in));
+            synchronized (this) {
+                if (keys.get(i).generation() == generation) put(keys.get(i), img);
+            }
+        }
+        return img;
+    }
+
+    /** The image after all steps if it needs no computing, otherwise null. */
+    synchronized BufferedImage renderIfCached() {
+        if (source == null) return null;
+        if (steps.isEmpty()) return source;
+        List<CacheKey> keys = keys(steps);
+        return cache.get(keys.get(keys.size() - 1));
+    }
+
+    BufferedImage renderCopy() {
+        BufferedImage img = render();
+        return img == null ? null : Utils.deepCopy(img);
+    }
+
+    synchronized long cachedBytes() {
+        return cachedBytes;
+    }
+
+    void setSteps(List<Step> next) {
+        steps = List.copyOf(next);
+        fireChanged();
+    }
+
+    /** Sets the steps and the layers at once, so listeners hear of them together. */
+    void set(List<Step> nextSteps, List<Layer> nextLayers) {
+        steps = List.copyOf(nextSteps);
+        layers = List.copyOf(nextLayers);
+        fireChanged();
+    }
+
+    private void fireChanged() {
+        for (Runnable l : listeners) l.run();
+    }
+
+    private List<CacheKey> keys(List<Step> steps) {
+        List<String> all = steps.stream().map(Step::key).toList();
+        List<CacheKey> keys = new ArrayList<>(all.size());
+        for (int i = 0; i < all.size(); i++) keys.add(new CacheKey(generation, all.subList(0, i + 1)));
+        return keys;
+    }
+
+    // The newest entry is always kept, even when it alone is over budget.
+    private void put(CacheKey key, BufferedImage img) {
+        BufferedImage old = cache.put(key, img);
+        if (old != null) cachedBytes -= bytes(old);
+        cachedBytes += bytes(img);
+        for (Iterator<Map.Entry<CacheKey, BufferedImage>> it = cache.entrySet().iterator();
+             it.hasNext() && cachedBytes > budgetBytes && cache.size() > 1; ) {
+            cachedBytes -= bytes(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    private static long bytes(BufferedImage img) {
+        return (long) img.getWidth() * img.getHeight() * Integer.BYTES;
+    }
+}
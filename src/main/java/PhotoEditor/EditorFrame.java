@@ -1,18 +1,31 @@
 package PhotoEditor;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 class EditorFrame extends JFrame {
     private final CanvasPanel canvas = new CanvasPanel();
     private final HistoryManager history = new HistoryManager();
+    private final EditGraph graph = new EditGraph();
     private final StatusBar statusBar = new StatusBar();
+    private final JobQueue jobs = new JobQueue(statusBar, this);
     private final JFileChooser chooser = new JFileChooser();
+    private ExportOptions exportOptions = ExportOptions.DEFAULT;
+    private final ToolPanel toolPanel;
+    private final PropertiesPanel propertiesPanel;
+    private final StepsPanel stepsPanel;
+    private final LayersPanel layersPanel;
+    private final FolderBrowser browser = new FolderBrowser(this::openFromBrowser);
+    private final JSplitPane centre;
 
     EditorFrame() {
         super("Mini Photoshop – Swing");
@@ -24,49 +37,271 @@ class EditorFrame extends JFrame {
                 "Image Files", "png", "jpg", "jpeg", "bmp", "gif"));
 
         setLayout(new BorderLayout());
-        add(new JScrollPane(canvas), BorderLayout.CENTER);
-        add(new ToolPanel(canvas, history, this), BorderLayout.WEST);
-        add(new PropertiesPanel(canvas, history), BorderLayout.EAST);
+        centre = new JSplitPane(JSplitPane.VERTICAL_SPLIT, new JScrollPane(canvas), browser);
+        centre.setResizeWeight(1);
+        browser.setVisible(false);
+        add(centre, BorderLayout.CENTER);
+        toolPanel = new ToolPanel(canvas, history, graph, jobs, this);
+        propertiesPanel = new PropertiesPanel(canvas, history, graph, jobs);
+        stepsPanel = new StepsPanel(canvas, history, graph, jobs);
+        layersPanel = new LayersPanel(canvas, history, graph, jobs);
+        JPanel adjustments = new JPanel(new BorderLayout());
+        adjustments.add(new HistogramPanel(canvas), BorderLayout.NORTH);
+        adjustments.add(propertiesPanel, BorderLayout.CENTER);
+        JPanel east = new JPanel(new BorderLayout());
+        east.add(adjustments, BorderLayout.NORTH);
+        JPanel document = new JPanel(new GridLayout(0, 1));
+        document.add(layersPanel);
+        document.add(stepsPanel);
+        east.add(document, BorderLayout.CENTER);
+        add(toolPanel, BorderLayout.WEST);
+        add(east, BorderLayout.EAST);
         add(statusBar, BorderLayout.SOUTH);
 
         canvas.setStatusBar(statusBar);
+        history.setErrorHandler((msg, ex) -> SwingUtilities.invokeLater(() -> showError(msg, ex)));
         setJMenuBar(buildMenuBar());
+        // Edits queue up behind each other, but opening, saving and undo wait for them.
+        jobs.addBusyListener(busy -> {
+            for (int i = 0; i < getJMenuBar().getMenuCount(); i++) {
+                getJMenuBar().getMenu(i).setEnabled(!busy);
+            }
+        });
     }
 
     private void doOpen() {
-        if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
-            try {
-                File file = chooser.getSelectedFile();
-                BufferedImage img = ImageIO.read(file);
-                if (img == null) {
-                    JOptionPane.showMessageDialog(this, "Unsupported image format.",
-                            "Error", JOptionPane.ERROR_MESSAGE);
-                    return;
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        open(chooser.getSelectedFile());
+    }
+
+    private void doBrowse() {
+        JFileChooser folders = new JFileChooser(chooser.getCurrentDirectory());
+        folders.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (folders.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        chooser.setCurrentDirectory(folders.getSelectedFile());
+        browser.setFolder(folders.getSelectedFile());
+        if (!browser.isVisible()) {
+            browser.setVisible(true);
+            centre.setDividerLocation(0.7);
+        }
+    }
+
+    // The browser stays usable while a load, save or edit runs, but opening from it is
+    // refused then, just as the File menu is disabled.
+    private void openFromBrowser(File file) {
+        if (!getJMenuBar().getMenu(0).isEnabled()) {
+            Toolkit.getDefaultToolkit().beep();
+            return;
+        }
+        open(file);
+    }
+
+    private void open(File file) {
+        if (exceedsHeap(file)) {
+            doOpenTiled(file);
+            return;
+        }
+        BufferedImage previous = canvas.getImage();
+
+        SwingWorker<BufferedImage, BufferedImage> worker = new SwingWorker<>() {
+            @Override
+            protected BufferedImage doInBackground() throws Exception {
+                return ImageLoader.read(file, this::publish, this::setProgress, this::isCancelled);
+            }
+
+            @Override
+            protected void process(List<BufferedImage> previews) {
+                // A preview published just before Cancel may arrive after done() restored
+                // the previous image.
+                if (isCancelled() || isDone()) return;
+                canvas.setImage(previews.get(previews.size() - 1));
+                canvas.zoomToFit();
+            }
+
+            @Override
+            protected void done() {
+                setBusy(false);
+                try {
+                    // The decoded image is the graph's step 0 and the canvas shows it
+                    // as is until the first edit, so it is held once, plus history.
+                    graph.reset(get());
+                    canvas.shareImage(graph.render());
+                    history.clear();
+                    history.record(canvas.getImage(), null, graph.state());
+                    canvas.zoomToFit();
+                    setTitle("Mini Photoshop – " + file.getName());
+                } catch (CancellationException | InterruptedException ex) {
+                    restore(previous);
+                } catch (ExecutionException ex) {
+                    restore(previous);
+                    if (!(ex.getCause() instanceof CancellationException)) {
+                        showError("Failed to open image: " + ex.getCause().getMessage(), ex);
+                    }
                 }
-                canvas.setImage(img);
-                history.clear();
-                history.push(Utils.deepCopy(img));
-                setTitle("Mini Photoshop – " + file.getName());
-            } catch (Exception ex) {
-                showError("Failed to open image: " + ex.getMessage(), ex);
             }
+        };
+        runInBackground("Opening " + file.getName(), worker);
+    }
+
+    // Images whose decoded pixels would take more than a quarter of the maximum heap
+    // are opened out of core.
+    private boolean exceedsHeap(File file) {
+        try {
+            Dimension size = ImageLoader.dimensions(file);
+            return (long) size.width * size.height * Integer.BYTES > Runtime.getRuntime().maxMemory() / 4;
+        } catch (IOException ex) {
+            return false;
         }
     }
 
+    private void doOpenTiled(File file) {
+        SwingWorker<TiledImage, Void> worker = new SwingWorker<>() {
+            @Override
+            protected TiledImage doInBackground() throws Exception {
+                return ImageLoader.readTiled(file, this::setProgress, this::isCancelled);
+            }
+
+            @Override
+            protected void done() {
+                setBusy(false);
+                try {
+                    canvas.setTiledImage(get());
+                    graph.reset(null);
+                    history.clear();
+                    canvas.zoomToFit();
+                    setTitle("Mini Photoshop – " + file.getName());
+                } catch (CancellationException | InterruptedException ignored) {
+                } catch (ExecutionException ex) {
+                    if (!(ex.getCause() instanceof CancellationException)) {
+                        showError("Failed to open image: " + ex.getCause().getMessage(), ex);
+                    }
+                }
+            }
+        };
+        runInBackground("Opening " + file.getName() + " (tiled)", worker);
+    }
+
     private void doSaveAs() {
-        if (canvas.getImage() == null) {
+        if (!canvas.hasImage()) {
             JOptionPane.showMessageDialog(this, "No image to save.");
             return;
         }
-        if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
-            try {
-                File file = chooser.getSelectedFile();
-                String ext = detectExtension(file.getName());
-                ImageIO.write(canvas.getImage(), ext, file);
-                setTitle("Mini Photoshop – " + file.getName());
-            } catch (Exception ex) {
-                showError("Failed to save image: " + ex.getMessage(), ex);
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        File file = chooser.getSelectedFile();
+        String ext = detectExtension(file.getName());
+        if (!askExportOptions(ext)) return;
+        ExportOptions options = exportOptions;
+        BufferedImage img = canvas.getImage();
+        TiledImage tiled = canvas.getTiledImage();
+
+        SwingWorker<Void, Void> worker = new SwingWorker<>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                if (tiled != null) {
+                    ImageLoader.write(tiled, ext, file, options, this::setProgress, this::isCancelled);
+                } else {
+                    ImageLoader.write(img, ext, file, options, this::setProgress, this::isCancelled);
+                }
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                setBusy(false);
+                try {
+                    get();
+                    setTitle("Mini Photoshop – " + file.getName());
+                } catch (CancellationException | InterruptedException ignored) {
+                } catch (ExecutionException ex) {
+                    if (!(ex.getCause() instanceof CancellationException)) {
+                        showError("Failed to save image: " + ex.getCause().getMessage(), ex);
+                    }
+                }
             }
+        };
+        runInBackground("Saving " + file.getName(), worker);
+    }
+
+    // PNG and JPEG have encoder settings; the choices are remembered for the session.
+    private boolean askExportOptions(String ext) {
+        JPanel form = new JPanel(new GridLayout(0, 2, 6, 6));
+        String title;
+        JSpinner level = new JSpinner(new SpinnerNumberModel(exportOptions.pngLevel(), 0, 9, 1));
+        JComboBox<PngEncoder.Filter> filter = new JComboBox<>(PngEncoder.Filter.values());
+        JSpinner quality = new JSpinner(new SpinnerNumberModel(Math.round(exportOptions.jpegQuality() * 100), 0, 100, 5));
+        JCheckBox progressive = new JCheckBox("Progressive", exportOptions.progressive());
+        if (ext.equals("png")) {
+            title = "PNG Options";
+            filter.setSelectedItem(exportOptions.pngFilter());
+            form.add(new JLabel("Compression (0-9):"));
+            form.add(level);
+            form.add(new JLabel("Row filter:"));
+            form.add(filter);
+        } else if (ext.equals("jpg")) {
+            title = "JPEG Options";
+            form.add(new JLabel("Quality (%):"));
+            form.add(quality);
+            form.add(new JLabel());
+            form.add(progressive);
+        } else {
+            return true;
+        }
+        if (JOptionPane.showConfirmDialog(this, form, title, JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+            return false;
+        }
+        exportOptions = exportOptions
+                .withPngLevel((Integer) level.getValue())
+                .withPngFilter((PngEncoder.Filter) filter.getSelectedItem())
+                .withJpegQuality((Integer) quality.getValue() / 100f)
+                .withProgressive(progressive.isSelected());
+        return true;
+    }
+
+    private void doExportMetrics() {
+        JFileChooser metricsChooser = new JFileChooser(chooser.getCurrentDirectory());
+        metricsChooser.setSelectedFile(new File("photoeditor-metrics.csv"));
+        if (metricsChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        try {
+            Metrics.export(metricsChooser.getSelectedFile().toPath());
+        } catch (IOException ex) {
+            showError("Failed to export metrics: " + ex.getMessage(), ex);
+        }
+    }
+
+    // Editing is disabled while a load or save runs so the document cannot change
+    // underneath it; the window keeps repainting and the status bar offers Cancel.
+    private void runInBackground(String label, SwingWorker<?, ?> worker) {
+        setBusy(true);
+        statusBar.startProgress(label, () -> worker.cancel(false));
+        worker.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) statusBar.setProgress((Integer) e.getNewValue());
+        });
+        worker.execute();
+    }
+
+    private void setBusy(boolean busy) {
+        setTreeEnabled(toolPanel, !busy);
+        setTreeEnabled(propertiesPanel, !busy);
+        setTreeEnabled(stepsPanel, !busy);
+        setTreeEnabled(layersPanel, !busy);
+        canvas.setPaintingEnabled(!busy);
+        for (int i = 0; i < getJMenuBar().getMenuCount(); i++) {
+            getJMenuBar().getMenu(i).setEnabled(!busy);
+        }
+        if (!busy) statusBar.finishProgress();
+    }
+
+    private static void setTreeEnabled(Component c, boolean enabled) {
+        c.setEnabled(enabled);
+        if (c instanceof Container container) {
+            for (Component child : container.getComponents()) setTreeEnabled(child, enabled);
+        }
+    }
+
+    private void restore(BufferedImage previous) {
+        if (previous != null) {
+            canvas.setImage(previous);
         }
     }
 
@@ -80,30 +315,53 @@ class EditorFrame extends JFrame {
                 Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx()));
         open.addActionListener(e -> doOpen());
 
+        JMenuItem browse = new JMenuItem("Browse Folder…");
+        browse.addActionListener(e -> doBrowse());
+
         JMenuItem saveAs = new JMenuItem("Save As…");
         saveAs.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_S,
                 Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx()));
         saveAs.addActionListener(e -> doSaveAs());
 
+        JMenuItem exportMetrics = new JMenuItem("Export Metrics…");
+        exportMetrics.addActionListener(e -> doExportMetrics());
+
         JMenuItem exit = new JMenuItem("Exit");
         exit.addActionListener(e -> dispose());
 
         fileMenu.add(open);
+        fileMenu.add(browse);
         fileMenu.add(saveAs);
         fileMenu.addSeparator();
+        fileMenu.add(exportMetrics);
+        fileMenu.addSeparator();
         fileMenu.add(exit);
 
         JMenu editMenu = new JMenu("Edit");
         JMenuItem undo = new JMenuItem("Undo");
-        undo.addActionListener(e -> history.undo(canvas));
+        undo.addActionListener(e -> {
+            try {
+                history.undo(canvas);
+                restoreDocument();
+            } catch (UncheckedIOException ex) {
+                showError("Failed to undo: " + ex.getCause().getMessage(), ex);
+            }
+        });
 
         JMenuItem redo = new JMenuItem("Redo");
-        redo.addActionListener(e -> history.redo(canvas));
+        redo.addActionListener(e -> {
+            try {
+                history.redo(canvas);
+                restoreDocument();
+            } catch (UncheckedIOException ex) {
+                showError("Failed to redo: " + ex.getCause().getMessage(), ex);
+            }
+        });
 
         JMenuItem reset = new JMenuItem("Reset");
         reset.addActionListener(e -> {
-            BufferedImage base = history.resetToFirst();
-            if (base != null) canvas.setImage(base);
+            if (graph.isEmpty()) return;
+            ToolPanel.submitSteps(jobs, canvas, history, graph, "Reset", steps -> List.of(), null, null);
         });
 
         editMenu.add(undo);
@@ -116,6 +374,14 @@ class EditorFrame extends JFrame {
         return bar;
     }
 
+    // History has put back the flattened pixels of the restored state, so the compositor
+    // takes them as they are rather than compositing again.
+    private void restoreDocument() {
+        graph.restore(history.document());
+        graph.compositor().adopt(canvas.isImageShared() ? null : canvas.getImage(), graph.renderIfCached(),
+                graph.layers());
+    }
+
     private String detectExtension(String name) {
         String lower = name.toLowerCase();
         if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) return "jpg";
@@ -124,7 +390,7 @@ class EditorFrame extends JFrame {
         return "png";
     }
 
-    private void showError(String msg, Exception ex) {
+    private void showError(String msg, Throwable ex) {
         ex.printStackTrace();
         JOptionPane.showMessageDialog(this, msg, "Error", JOptionPane.ERROR_MESSAGE);
     }
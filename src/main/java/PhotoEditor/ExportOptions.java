@@ -0,0 +1,33 @@
+package PhotoEditor;
+
+/**
+ * Encoder settings for saving. PNG files use {@link PngEncoder} with the given deflate
+ * level (0 stores, 9 packs hardest) and row filter; JPEG files use the ImageIO writer
+ * with the given quality (0..1) and, optionally, progressive scans. Other formats
+ * ignore these settings.
+ */
+record ExportOptions(int pngLevel, PngEncoder.Filter pngFilter, float jpegQuality, boolean progressive) {
+    static final ExportOptions DEFAULT = new ExportOptions(4, PngEncoder.Filter.ADAPTIVE, 0.9f, false);
+
+    ExportOptions {
+        if (pngLevel < 0 || pngLevel > 9) throw new IllegalArgumentException("PNG level must be 0..9");
+        if (pngFilter == null) throw new IllegalArgumentException("PNG filter is required");
+        if (!(jpegQuality >= 0 && jpegQuality <= 1)) throw new IllegalArgumentException("JPEG quality must be 0..1");
+    }
+
+    ExportOptions withPngLevel(int level) {
+        return new ExportOptions(level, pngFilter, jpegQuality, progressive);
+    }
+
+    ExportOptions withPngFilter(PngEncoder.Filter filter) {
+        return new ExportOptions(pngLevel, filter, jpegQuality, progressive);
+    }
+
+    ExportOptions withJpegQuality(float quality) {
+        return new ExportOptions(pngLevel, pngFilter, quality, progressive);
+    }
+
+    ExportOptions withProgressive(boolean on) {
+        return new ExportOptions(pngLevel, pngFilter, jpegQuality, on);
+    }
+}
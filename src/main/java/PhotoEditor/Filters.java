@@ -8,37 +8,178 @@ import java.awt.image.*;
 class Filters {
     interface Op {
         BufferedImage apply(BufferedImage src);
+
+        /**
+         * How many pixels around each output pixel the op reads, for ops that keep the
+         * image size and can run on pieces of it; -1 for ops that move pixels around.
+         */
+        default int halo() {
+            return -1;
+        }
+
+        default Op then(Op next) {
+            return PointOp.chain(this, next);
+        }
     }
 
-    static BufferedImage toGrayscale(BufferedImage src) {
-        ColorConvertOp op = new ColorConvertOp(ColorSpace.getInstance(ColorSpace.CS_GRAY), null);
-        BufferedImage out = new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_ARGB);
-        op.filter(src, out);
-        return out;
+    static Op local(int halo, Op op) {
+        return new Op() {
+            @Override
+            public BufferedImage apply(BufferedImage src) {
+                return op.apply(src);
+            }
+
+            @Override
+            public int halo() {
+                return halo;
+            }
+        };
     }
 
-    static BufferedImage toSepia(BufferedImage src) {
-        BufferedImage out = Utils.deepCopy(src);
-        int w = out.getWidth(), h = out.getHeight();
-        int[] pixels = out.getRGB(0, 0, w, h, null, 0, w);
+    /**
+     * Limits {@code op} to {@code roi}: pixels outside it are left as they are, and pixels
+     * inside see their real neighbours up to the op's halo. The result is a new image;
+     * {@link #applyInPlace} changes only the region and costs time proportional to it.
+     */
+    static Op region(Rectangle roi, Op op) {
+        Rectangle r = new Rectangle(roi);
+        return src -> {
+            BufferedImage out = Utils.deepCopy(src);
+            applyInPlace(out, r, op);
+            return out;
+        };
+    }
+
+    /**
+     * Applies {@code op} to the part of {@code img} inside {@code roi}, reading up to
+     * {@code op.halo()} pixels of context around it. Ops that move pixels are given the
+     * region alone and must return an image of the same size. Returns the changed
+     * rectangle, empty when {@code roi} misses the image.
+     */
+    static Rectangle applyInPlace(BufferedImage img, Rectangle roi, Op op) {
+        Rectangle r = roi.intersection(new Rectangle(img.getWidth(), img.getHeight()));
+        if (r.isEmpty()) return new Rectangle();
+        if (op instanceof Orthogonal t && t.keepsSize(r.width, r.height)) {
+            t.applyInPlace(img, r);
+            return r;
+        }
+        Pixels.write(img, r.x, r.y, r.width, r.height, filterRegion(img, r, op));
+        return r;
+    }
+
+    /**
+     * The pixels {@link #applyInPlace} would write inside {@code r}, which must lie within
+     * {@code img}, as a packed {@code r.width * r.height} array; {@code img} is not changed.
+     * Background jobs use this so that a cancelled edit leaves the canvas untouched.
+     */
+    static int[] filterRegion(BufferedImage img, Rectangle r, Op op) {
+        if (op instanceof Orthogonal t && t.keepsSize(r.width, r.height)) {
+            BufferedImage region = new BufferedImage(r.width, r.height, BufferedImage.TYPE_INT_ARGB);
+            int[] px = Pixels.data(region);
+            Pixels.read(img, r.x, r.y, r.width, r.height, px);
+            t.applyInPlace(region, new Rectangle(r.width, r.height));
+            return px;
+        }
+        int halo = Math.max(0, op.halo());
+        Rectangle ctx = new Rectangle(r.x - halo, r.y - halo, r.width + 2 * halo, r.height + 2 * halo)
+                .intersection(new Rectangle(img.getWidth(), img.getHeight()));
+        BufferedImage in = new BufferedImage(ctx.width, ctx.height, BufferedImage.TYPE_INT_ARGB);
+        int[] px = Pixels.data(in);
+        Pixels.read(img, ctx.x, ctx.y, ctx.width, ctx.height, px);
+        BufferedImage result = op.apply(in);
+        if (result.getWidth() != ctx.width || result.getHeight() != ctx.height) {
+            throw new IllegalArgumentException("This operation cannot be limited to a selection");
+        }
+        int[] inner = new int[r.width * r.height];
+        Pixels.read(result, r.x - ctx.x, r.y - ctx.y, r.width, r.height, inner);
+        return inner;
+    }
+
+    static Op chain(Op... ops) {
+        return PointOp.chain(ops);
+    }
 
-        for (int i = 0; i < pixels.length; i++) {
-            int a = (pixels[i] >>> 24) & 0xFF;
-            int r = (pixels[i] >>> 16) & 0xFF;
-            int g = (pixels[i] >>> 8) & 0xFF;
-            int b = pixels[i] & 0xFF;
+    static PointOp sepia() {
+        return PointOp.matrix(
+                0.393, 0.769, 0.189, 0,
+                0.349, 0.686, 0.168, 0,
+                0.272, 0.534, 0.131, 0);
+    }
+
+    // Rec. 601 luma. toGrayscale keeps the ColorConvertOp conversion for the toolbar.
+    static PointOp grayscale() {
+        return PointOp.matrix(
+                0.299, 0.587, 0.114, 0,
+                0.299, 0.587, 0.114, 0,
+                0.299, 0.587, 0.114, 0);
+    }
+
+    static PointOp brightnessContrast(int brightness, int contrast) {
+        float cScale = (float)Math.pow((100.0+contrast)/100.0, 2);
+        int[] lut = new int[256];
+        for (int v = 0; v < 256; v++) {
+            lut[v] = Utils.clamp((int)(((v-128)*cScale)+128+brightness));
+        }
+        return PointOp.lut(lut);
+    }
+
+    static PointOp saturation(int saturation) {
+        return PointOp.saturation((100+saturation)/100f);
+    }
 
-            int tr = Utils.clamp((int)(0.393*r + 0.769*g + 0.189*b));
-            int tg = Utils.clamp((int)(0.349*r + 0.686*g + 0.168*b));
-            int tb = Utils.clamp((int)(0.272*r + 0.534*g + 0.131*b));
+    static PointOp levels(int black, int white, double gamma) {
+        return PointOp.lut(levelsTable(black, white, gamma));
+    }
+
+    /**
+     * Stretches each channel on its own so that {@code clip} percent of its pixels at
+     * either end map to 0 and 255. This also removes a colour cast.
+     */
+    static Op autoLevels(double clip) {
+        return src -> {
+            Histogram h = Histogram.of(src);
+            return PointOp.lut(stretch(h, Histogram.RED, clip), stretch(h, Histogram.GREEN, clip),
+                    stretch(h, Histogram.BLUE, clip)).apply(src);
+        };
+    }
+
+    /** As {@link #autoLevels}, with one stretch taken from the luma histogram so hues are kept. */
+    static Op autoContrast(double clip) {
+        return src -> {
+            int[] lut = stretch(Histogram.of(src), Histogram.LUMA, clip);
+            return PointOp.lut(lut).apply(src);
+        };
+    }
 
-            pixels[i] = (a << 24) | (tr << 16) | (tg << 8) | tb;
+    private static int[] stretch(Histogram h, int channel, double clip) {
+        double f = clip / 100;
+        return levelsTable(h.percentile(channel, f), h.percentile(channel, 1 - f), 1.0);
+    }
+
+    private static int[] levelsTable(int black, int white, double gamma) {
+        int[] lut = new int[256];
+        double range = Math.max(1, white - black);
+        for (int v = 0; v < 256; v++) {
+            double t = Math.max(0, Math.min(1, (v - black) / range));
+            lut[v] = Utils.clamp((int) Math.round(255 * Math.pow(t, 1 / gamma)));
         }
+        return lut;
+    }
 
-        out.setRGB(0, 0, w, h, pixels, 0, w);
+    static BufferedImage toGrayscale(BufferedImage src) {
+        int w = src.getWidth(), h = src.getHeight();
+        BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        TileScheduler.shared().forEachBand(h, (y0, y1) -> {
+            ColorConvertOp op = new ColorConvertOp(ColorSpace.getInstance(ColorSpace.CS_GRAY), null);
+            op.filter(src.getSubimage(0, y0, w, y1 - y0), out.getSubimage(0, y0, w, y1 - y0));
+        });
         return out;
     }
 
+    static BufferedImage toSepia(BufferedImage src) {
+        return sepia().apply(src);
+    }
+
     static BufferedImage blur3x3(BufferedImage src) {
         float[] kernel = {1/9f,1/9f,1/9f,1/9f,1/9f,1/9f,1/9f,1/9f,1/9f};
         return convolve(src, kernel);
@@ -49,7 +190,27 @@ class Filters {
         return convolve(src, kernel);
     }
 
+    /** Gaussian blur reaching {@code radius} pixels; see {@link BoxBlur#sigma}. */
+    static BufferedImage gaussianBlur(BufferedImage src, double radius, BoxBlur.Edge edge) {
+        return BoxBlur.gaussian(src, BoxBlur.sigma(radius), edge);
+    }
+
+    static BufferedImage unsharpMask(BufferedImage src, double radius, double amount, int threshold, BoxBlur.Edge edge) {
+        return BoxBlur.unsharpMask(src, BoxBlur.sigma(radius), amount, threshold, edge);
+    }
+
+    /** Distance beyond which source pixels no longer affect a blur of {@code radius}. */
+    static int blurSupport(double radius) {
+        return BoxBlur.support(BoxBlur.sigma(radius));
+    }
+
+    /**
+     * Rotates clockwise by {@code radians}. Multiples of 90 degrees move pixels exactly
+     * through {@link Orthogonal}; other angles are resampled bilinearly, band by band.
+     */
     static BufferedImage rotate(BufferedImage src, double radians) {
+        Orthogonal quarter = Orthogonal.forAngle(radians);
+        if (quarter != null) return quarter.apply(src);
         double sin = Math.abs(Math.sin(radians));
         double cos = Math.abs(Math.cos(radians));
         int w = src.getWidth(), h = src.getHeight();
@@ -57,73 +218,115 @@ class Filters {
         int newH = (int)Math.floor(h * cos + w * sin);
 
         BufferedImage out = new BufferedImage(newW, newH, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = out.createGraphics();
-        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
         AffineTransform at = new AffineTransform();
         at.translate(newW/2.0, newH/2.0);
         at.rotate(radians);
         at.translate(-w/2.0, -h/2.0);
-        g.drawRenderedImage(src, at);
-        g.dispose();
+        TileScheduler.shared().forEachBand(newH, (y0, y1) -> {
+            Graphics2D g = out.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.clipRect(0, y0, newW, y1 - y0);
+            g.drawRenderedImage(src, at);
+            g.dispose();
+        });
         return out;
     }
 
-    static BufferedImage flipHorizontal(BufferedImage src) {
-        int w = src.getWidth(), h = src.getHeight();
-        BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = out.createGraphics();
-        g.drawImage(src, 0,0,w,h,w,0,0,h,null);
-        g.dispose();
-        return out;
+    /** A rotation by {@code degrees}, as the exact {@link Orthogonal} transform where there is one. */
+    static Op rotation(double degrees) {
+        double radians = Math.toRadians(degrees);
+        Orthogonal quarter = Orthogonal.forAngle(radians);
+        return quarter != null ? quarter : img -> rotate(img, radians);
     }
 
-    static BufferedImage flipVertical(BufferedImage src) {
-        int w = src.getWidth(), h = src.getHeight();
-        BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = out.createGraphics();
-        g.drawImage(src,0,0,w,h,0,h,w,0,null);
-        g.dispose();
-        return out;
+    /** Resizing to {@code w x h} with {@code kernel}; see {@link Resampler}. */
+    static Op resize(int w, int h, Resampler.Kernel kernel) {
+        if (w < 1 || h < 1 || w > 65535 || h > 65535) throw new IllegalArgumentException("Size must be 1..65535");
+        return img -> Resampler.resize(img, w, h, kernel);
     }
 
-    static BufferedImage adjust(BufferedImage src, int brightness, int contrast, int saturation) {
-        BufferedImage out = Utils.deepCopy(src);
-        int w = out.getWidth(), h = out.getHeight();
-        int[] pixels = out.getRGB(0,0,w,h,null,0,w);
-
-        float cScale = (float)Math.pow((100.0+contrast)/100.0, 2);
-        int bOffset = brightness;
+    static BufferedImage flipHorizontal(BufferedImage src) {
+        return Orthogonal.FLIP_H.apply(src);
+    }
 
-        for(int i=0;i<pixels.length;i++){
-            int a=(pixels[i]>>>24)&0xFF;
-            int r=(pixels[i]>>>16)&0xFF;
-            int g=(pixels[i]>>>8)&0xFF;
-            int b=pixels[i]&0xFF;
+    static BufferedImage flipVertical(BufferedImage src) {
+        return Orthogonal.FLIP_V.apply(src);
+    }
 
-            r=Utils.clamp((int)(((r-128)*cScale)+128+bOffset));
-            g=Utils.clamp((int)(((g-128)*cScale)+128+bOffset));
-            b=Utils.clamp((int)(((b-128)*cScale)+128+bOffset));
+    static BufferedImage transpose(BufferedImage src) {
+        return Orthogonal.TRANSPOSE.apply(src);
+    }
 
-            float[] hsb=Color.RGBtoHSB(r,g,b,null);
-            float s=Math.max(0f,Math.min(1f,hsb[1]*((100+saturation)/100f)));
-            int rgb=Color.HSBtoRGB(hsb[0],s,hsb[2]);
+    /** The part of {@code src} inside {@code r}; an unchanged copy when they do not overlap. */
+    static BufferedImage crop(BufferedImage src, Rectangle r) {
+        Rectangle clip = r.intersection(new Rectangle(src.getWidth(), src.getHeight()));
+        if (clip.isEmpty()) return Utils.deepCopy(src);
+        return Utils.deepCopy(src.getSubimage(clip.x, clip.y, clip.width, clip.height));
+    }
 
-            r=(rgb>>16)&0xFF;
-            g=(rgb>>8)&0xFF;
-            b=rgb&0xFF;
+    static BufferedImage adjust(BufferedImage src, int brightness, int contrast, int saturation) {
+        return brightnessContrast(brightness, contrast).fuse(saturation(saturation)).apply(src);
+    }
 
-            pixels[i]=(a<<24)|(r<<16)|(g<<8)|b;
+    // Color.RGBtoHSB followed by Color.HSBtoRGB with the saturation scaled, inlined so
+    // no float[] is allocated per pixel. The arithmetic is kept identical to the JDK's.
+    static int scaleSaturation(int r, int g, int b, float factor) {
+        int cmax = Math.max(r, Math.max(g, b));
+        int cmin = Math.min(r, Math.min(g, b));
+        float brightness = cmax / 255.0f;
+        float saturation = cmax != 0 ? (cmax - cmin) / (float) cmax : 0;
+        float hue;
+        if (saturation == 0) {
+            hue = 0;
+        } else {
+            float redc = (cmax - r) / (float) (cmax - cmin);
+            float greenc = (cmax - g) / (float) (cmax - cmin);
+            float bluec = (cmax - b) / (float) (cmax - cmin);
+            if (r == cmax) hue = bluec - greenc;
+            else if (g == cmax) hue = 2.0f + redc - bluec;
+            else hue = 4.0f + greenc - redc;
+            hue = hue / 6.0f;
+            if (hue < 0) hue = hue + 1.0f;
         }
 
-        out.setRGB(0,0,w,h,pixels,0,w);
-        return out;
+        float s = Math.max(0f, Math.min(1f, saturation * factor));
+        if (s == 0) {
+            int v = (int) (brightness * 255.0f + 0.5f);
+            return 0xff000000 | (v << 16) | (v << 8) | v;
+        }
+        float hh = (hue - (float) Math.floor(hue)) * 6.0f;
+        float f = hh - (float) Math.floor(hh);
+        int v = (int) (brightness * 255.0f + 0.5f);
+        int p = (int) (brightness * (1.0f - s) * 255.0f + 0.5f);
+        int q = (int) (brightness * (1.0f - s * f) * 255.0f + 0.5f);
+        int t = (int) (brightness * (1.0f - (s * (1.0f - f))) * 255.0f + 0.5f);
+        switch ((int) hh) {
+            case 0: return 0xff000000 | (v << 16) | (t << 8) | p;
+            case 1: return 0xff000000 | (q << 16) | (v << 8) | p;
+            case 2: return 0xff000000 | (p << 16) | (v << 8) | t;
+            case 3: return 0xff000000 | (p << 16) | (q << 8) | v;
+            case 4: return 0xff000000 | (t << 16) | (p << 8) | v;
+            case 5: return 0xff000000 | (v << 16) | (p << 8) | q;
+            default: return 0xff000000;
+        }
     }
 
+    // Each band is convolved together with a one-row halo above and below so the
+    // band edges see the same neighbours as a single whole-image pass would.
     private static BufferedImage convolve(BufferedImage src, float[] kernel){
         Kernel k = new Kernel(3,3,kernel);
-        ConvolveOp op = new ConvolveOp(k,ConvolveOp.EDGE_NO_OP,null);
-        BufferedImage out = new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_ARGB);
-        op.filter(src,out);
+        int w = src.getWidth(), h = src.getHeight();
+        int halo = k.getYOrigin();
+        BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        TileScheduler.shared().forEachBand(h, (y0, y1) -> {
+            int top = Math.max(0, y0 - halo);
+            int bottom = Math.min(h, y1 + halo);
+            BufferedImage band = new BufferedImage(w, bottom - top, BufferedImage.TYPE_INT_ARGB);
+            ConvolveOp op = new ConvolveOp(k,ConvolveOp.EDGE_NO_OP,null);
+            op.filter(src.getSubimage(0, top, w, bottom - top), band);
+            out.getRaster().setDataElements(0, y0,
+                    band.getRaster().createChild(0, y0 - top, w, y1 - y0, 0, 0, null));
+        });
         return out;
     }
 }
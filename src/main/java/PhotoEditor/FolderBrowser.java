@@ -0,0 +1,154 @@
+package PhotoEditor;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * A grid of the images in one folder. Thumbnails come from a {@link ThumbnailCache} and
+ * are asked for only for the cells on screen, plus a screenful either side; scrolling
+ * cancels the requests that are no longer near the view. Double-click or Enter opens
+ * the image.
+ */
+class FolderBrowser extends JPanel {
+    private static final Set<String> EXTENSIONS = Set.of("png", "jpg", "jpeg", "bmp", "gif");
+
+    private final ThumbnailCache thumbnails = new ThumbnailCache();
+    private final DefaultListModel<ThumbnailCache.Key> model = new DefaultListModel<>();
+    private final JList<ThumbnailCache.Key> list = new JList<>(model);
+    private final JLabel folderLabel = new JLabel();
+    // By list index; EDT only.
+    private final Map<Integer, Future<?>> pending = new HashMap<>();
+    private final Set<Integer> failed = new HashSet<>();
+    private int generation;
+
+    FolderBrowser(Consumer<File> open) {
+        setLayout(new BorderLayout(4, 4));
+        setBorder(BorderFactory.createEmptyBorder(4, 8, 4, 8));
+        add(folderLabel, BorderLayout.NORTH);
+
+        list.setLayoutOrientation(JList.HORIZONTAL_WRAP);
+        list.setVisibleRowCount(-1);
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setFixedCellWidth(ThumbnailCache.SIZE + 16);
+        list.setFixedCellHeight(ThumbnailCache.SIZE + 28);
+        list.setCellRenderer(new Cell());
+        JScrollPane scroll = new JScrollPane(list);
+        scroll.getVerticalScrollBar().setUnitIncrement(ThumbnailCache.SIZE / 2);
+        scroll.getViewport().addChangeListener(e -> requestVisible());
+        add(scroll, BorderLayout.CENTER);
+
+        list.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2 && list.getSelectedValue() != null) open.accept(list.getSelectedValue().file());
+            }
+        });
+        list.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, 0), "open");
+        list.getActionMap().put("open", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (list.getSelectedValue() != null) open.accept(list.getSelectedValue().file());
+            }
+        });
+    }
+
+    /** Shows the images in {@code folder}, listed off the EDT and sorted by name. */
+    void setFolder(File folder) {
+        int gen = ++generation;
+        for (Future<?> f : pending.values()) f.cancel(true);
+        pending.clear();
+        failed.clear();
+        model.clear();
+        folderLabel.setText(folder.getAbsolutePath() + " – listing…");
+        Thread.ofVirtual().start(() -> {
+            File[] files = folder.listFiles(f -> f.isFile() && EXTENSIONS.contains(extension(f.getName())));
+            if (files == null) files = new File[0];
+            Arrays.sort(files, Comparator.comparing(File::getName, String.CASE_INSENSITIVE_ORDER));
+            List<ThumbnailCache.Key> keys = Arrays.stream(files)
+                    .map(f -> new ThumbnailCache.Key(f, f.lastModified())).toList();
+            SwingUtilities.invokeLater(() -> {
+                if (gen != generation) return;
+                model.addAll(keys);
+                folderLabel.setText(folder.getAbsolutePath() + " – " + keys.size() + " images");
+                requestVisible();
+            });
+        });
+    }
+
+    private static String extension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase();
+    }
+
+    // Asks for the thumbnails near the view that are not in memory yet, and drops the
+    // requests that scrolled out of reach before they were served.
+    private void requestVisible() {
+        int first = list.getFirstVisibleIndex(), last = list.getLastVisibleIndex();
+        if (first < 0) return;
+        int margin = last - first + 1;
+        int from = Math.max(0, first - margin), to = Math.min(model.size() - 1, last + margin);
+        pending.entrySet().removeIf(e -> {
+            if (e.getKey() >= from && e.getKey() <= to) return false;
+            e.getValue().cancel(true);
+            return true;
+        });
+        int gen = generation;
+        for (int i = from; i <= to; i++) {
+            ThumbnailCache.Key key = model.get(i);
+            if (pending.containsKey(i) || failed.contains(i) || thumbnails.getIfPresent(key) != null) continue;
+            int index = i;
+            // A cancelled request can still finish; it must not drop the request that
+            // replaced it.
+            AtomicReference<Future<?>> request = new AtomicReference<>();
+            request.set(thumbnails.request(key, thumb -> SwingUtilities.invokeLater(() -> {
+                if (gen != generation) return;
+                pending.remove(index, request.get());
+                if (thumb == null) {
+                    failed.add(index);
+                } else {
+                    Rectangle cell = list.getCellBounds(index, index);
+                    if (cell != null) list.repaint(cell);
+                }
+            })));
+            pending.put(i, request.get());
+        }
+    }
+
+    private final class Cell extends JLabel implements ListCellRenderer<ThumbnailCache.Key> {
+        Cell() {
+            setOpaque(true);
+            setHorizontalAlignment(CENTER);
+            setHorizontalTextPosition(CENTER);
+            setVerticalTextPosition(BOTTOM);
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<? extends ThumbnailCache.Key> list,
+                                                      ThumbnailCache.Key key, int index,
+                                                      boolean selected, boolean focused) {
+            BufferedImage thumb = thumbnails.getIfPresent(key);
+            setIcon(thumb == null ? null : new ImageIcon(thumb));
+            setText(key.file().getName());
+            setToolTipText(key.file().getAbsolutePath());
+            setBackground(selected ? list.getSelectionBackground() : list.getBackground());
+            setForeground(selected ? list.getSelectionForeground() : list.getForeground());
+            return this;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package PhotoEditor;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Red, green, blue and Rec. 601 luma histograms of an image. Fully transparent pixels
+ * are not counted. {@link #of} splits the rows into bands that are counted into their
+ * own partial histograms in parallel and merged at the end, so the bands never share
+ * counters. {@link Live} keeps per-tile histograms so an edit only recounts the tiles
+ * it touched.
+ */
+final class Histogram {
+    static final int RED = 0, GREEN = 1, BLUE = 2, LUMA = 3;
+    static final int CHANNELS = 4;
+
+    private final int[] counts = new int[CHANNELS * 256];
+    private int pixels;
+
+    static Histogram of(BufferedImage img) {
+        return of(img, new Rectangle(img.getWidth(), img.getHeight()));
+    }
+
+    static Histogram of(BufferedImage img, Rectangle region) {
+        Rectangle r = region.intersection(new Rectangle(img.getWidth(), img.getHeight()));
+        Histogram total = new Histogram();
+        if (r.isEmpty()) return total;
+        TileScheduler.shared().forEachBand(r.height, (y0, y1) -> {
+            Histogram part = new Histogram();
+            part.count(img, new Rectangle(r.x, r.y + y0, r.width, y1 - y0));
+            synchronized (total) {
+                total.add(part, 1);
+            }
+        });
+        return total;
+    }
+
+    int count(int channel, int level) {
+        return counts[channel * 256 + level];
+    }
+
+    int pixels() {
+        return pixels;
+    }
+
+    /** The largest count of {@code channel}, for scaling a plot. */
+    int max(int channel) {
+        int max = 0;
+        for (int v = 0; v < 256; v++) max = Math.max(max, counts[channel * 256 + v]);
+        return max;
+    }
+
+    /**
+     * The lowest level at or below which at least {@code fraction} of the pixels of
+     * {@code channel} lie; 0 for an empty histogram.
+     */
+    int percentile(int channel, double fraction) {
+        long target = (long) Math.ceil(fraction * pixels);
+        long sum = 0;
+        for (int v = 0; v < 256; v++) {
+            sum += counts[channel * 256 + v];
+            if (sum >= Math.max(1, target)) return v;
+        }
+        return 0;
+    }
+
+    Histogram copy() {
+        Histogram h = new Histogram();
+        h.add(this, 1);
+        return h;
+    }
+
+    private void add(Histogram other, int sign) {
+        for (int i = 0; i < counts.length; i++) counts[i] += sign * other.counts[i];
+        pixels += sign * other.pixels;
+    }
+
+    private void count(BufferedImage img, Rectangle r) {
+        int[] c = counts;
+        int n = 0;
+        if (Pixels.isDirect(img)) {
+            int[] px = Pixels.data(img);
+            for (int y = 0; y < r.height; y++) {
+                n += countRow(c, px, Pixels.offset(img, r.x, r.y + y), r.width);
+            }
+        } else {
+            int[] row = new int[r.width];
+            for (int y = 0; y < r.height; y++) {
+                Pixels.read(img, r.x, r.y + y, r.width, 1, row);
+                n += countRow(c, row, 0, r.width);
+            }
+        }
+        pixels += n;
+    }
+
+    private static int countRow(int[] c, int[] px, int off, int len) {
+        int n = 0;
+        for (int i = off, end = off + len; i < end; i++) {
+            int p = px[i];
+            if ((p >>> 24) == 0) continue;
+            int r = (p >> 16) & 0xFF, g = (p >> 8) & 0xFF, b = p & 0xFF;
+            c[r]++;
+            c[256 + g]++;
+            c[512 + b]++;
+            c[768 + ((77 * r + 150 * g + 29 * b + 128) >> 8)]++;
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * The histogram of one image kept up to date as its pixels change in place. The image
+     * is divided into square tiles, each with its own histogram; {@link #update} recounts
+     * the tiles under the changed region and corrects the total by their difference.
+     */
+    static final class Live {
+        private static final int TILE = 256;
+
+        private final BufferedImage image;
+        private final int cols, rows;
+        private final Histogram[] tiles;
+        private final Histogram total = new Histogram();
+
+        Live(BufferedImage image) {
+            this.image = image;
+            cols = (image.getWidth() + TILE - 1) / TILE;
+            rows = (image.getHeight() + TILE - 1) / TILE;
+            tiles = new Histogram[cols * rows];
+            recount(new Rectangle(0, 0, cols, rows));
+        }
+
+        BufferedImage image() {
+            return image;
+        }
+
+        Histogram total() {
+            return total;
+        }
+
+        /** Recounts the tiles that intersect {@code dirty} (image coordinates). */
+        Histogram update(Rectangle dirty) {
+            Rectangle r = dirty.intersection(new Rectangle(image.getWidth(), image.getHeight()));
+            if (r.isEmpty()) return total;
+            int c0 = r.x / TILE, r0 = r.y / TILE;
+            int c1 = (r.x + r.width - 1) / TILE, r1 = (r.y + r.height - 1) / TILE;
+            recount(new Rectangle(c0, r0, c1 - c0 + 1, r1 - r0 + 1));
+            return total;
+        }
+
+        // Counts the tiles in cells (tile coordinates) in parallel by tile row, then swaps
+        // them into the total one at a time.
+        private void recount(Rectangle cells) {
+            Histogram[] fresh = new Histogram[cells.width * cells.height];
+            TileScheduler.shared().forEachBand(cells.height, 1, (t0, t1) -> {
+                for (int ty = t0; ty < t1; ty++) {
+                    for (int tx = 0; tx < cells.width; tx++) {
+                        int cx = cells.x + tx, cy = cells.y + ty;
+                        Histogram h = new Histogram();
+                        h.count(image, new Rectangle(cx * TILE, cy * TILE, TILE, TILE)
+                                .intersection(new Rectangle(image.getWidth(), image.getHeight())));
+                        fresh[ty * cells.width + tx] = h;
+                    }
+                }
+            });
+            for (int ty = 0; ty < cells.height; ty++) {
+                for (int tx = 0; tx < cells.width; tx++) {
+                    int i = (cells.y + ty) * cols + cells.x + tx;
+                    if (tiles[i] != null) total.add(tiles[i], -1);
+                    tiles[i] = fresh[ty * cells.width + tx];
+                    total.add(tiles[i], 1);
+                }
+            }
+        }
+    }
+}
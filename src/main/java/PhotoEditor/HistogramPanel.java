@@ -0,0 +1,111 @@
+package PhotoEditor;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plots the red, green, blue and luma histograms of the canvas image. Counting runs on
+ * one background thread. A new image is counted once in full, edits in place recount
+ * only the tiles they touched, and while a preview is shown the histogram of the
+ * preview proxy is plotted instead. Tiled images are not counted.
+ */
+class HistogramPanel extends JComponent {
+    private static final Color[] COLORS = {
+            new Color(230, 60, 60, 110), new Color(60, 200, 60, 110), new Color(70, 110, 240, 110)
+    };
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "histogram");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicLong generation = new AtomicLong();
+    private Histogram.Live live;  // worker thread only
+    private Histogram shown;
+
+    HistogramPanel(CanvasPanel canvas) {
+        setPreferredSize(new Dimension(256, 110));
+        setBorder(BorderFactory.createTitledBorder("Histogram"));
+        canvas.addImageListener(new CanvasPanel.ImageListener() {
+            @Override
+            public void imageChanged(Rectangle dirty) {
+                recount(canvas.getImage(), dirty);
+            }
+
+            @Override
+            public void previewChanged(BufferedImage preview) {
+                if (preview != null) {
+                    long gen = generation.incrementAndGet();
+                    worker.execute(() -> {
+                        if (generation.get() == gen) publish(Histogram.of(preview), gen);
+                    });
+                } else {
+                    recount(canvas.getImage(), new Rectangle());
+                }
+            }
+        });
+    }
+
+    // Updates of the same image are never skipped, since each one fixes up the tiles
+    // it names; only publishing is limited to the latest request.
+    private void recount(BufferedImage img, Rectangle dirty) {
+        long gen = generation.incrementAndGet();
+        worker.execute(() -> {
+            if (img == null) {
+                live = null;
+            } else if (dirty == null || live == null || live.image() != img) {
+                live = new Histogram.Live(img);
+            } else {
+                live.update(dirty);
+            }
+            if (generation.get() == gen) publish(live == null ? null : live.total().copy(), gen);
+        });
+    }
+
+    private void publish(Histogram h, long gen) {
+        SwingUtilities.invokeLater(() -> {
+            if (generation.get() != gen) return;
+            shown = h;
+            repaint();
+        });
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        Insets in = getInsets();
+        int w = getWidth() - in.left - in.right, h = getHeight() - in.top - in.bottom;
+        Graphics2D g2 = (Graphics2D) g.create();
+        g2.translate(in.left, in.top);
+        g2.setColor(new Color(30, 30, 30));
+        g2.fillRect(0, 0, w, h);
+        Histogram hist = shown;
+        if (hist != null && hist.pixels() > 0 && w > 0 && h > 0) {
+            // One scale for all channels, so their heights compare.
+            int max = 1;
+            for (int c = 0; c < Histogram.CHANNELS; c++) max = Math.max(max, hist.max(c));
+            for (int c = Histogram.RED; c <= Histogram.BLUE; c++) {
+                g2.setColor(COLORS[c]);
+                g2.fill(curve(hist, c, max, w, h, true));
+            }
+            g2.setColor(new Color(235, 235, 235));
+            Polygon luma = curve(hist, Histogram.LUMA, max, w, h, false);
+            g2.drawPolyline(luma.xpoints, luma.ypoints, luma.npoints);
+        }
+        g2.dispose();
+    }
+
+    private static Polygon curve(Histogram hist, int channel, int max, int w, int h, boolean closed) {
+        Polygon p = new Polygon();
+        if (closed) p.addPoint(0, h);
+        for (int v = 0; v < 256; v++) {
+            p.addPoint(v * (w - 1) / 255, h - (int) ((long) hist.count(channel, v) * (h - 1) / max));
+        }
+        if (closed) p.addPoint(w - 1, h);
+        return p;
+    }
+}
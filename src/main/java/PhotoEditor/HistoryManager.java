@@ -1,39 +1,441 @@
 package PhotoEditor;
 
+import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.util.Stack;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+/**
+ * Undo history stored as grids of immutable tiles. Each recorded state shares every
+ * tile it did not change with the state before it, so an edit only costs the tiles
+ * it touched, and undo/redo only rewrite the tiles that differ between two states.
+ * Once the resident tiles exceed the byte budget, tiles that only older states use
+ * are deflated into a temp file and read back on demand; space freed in that file is
+ * reused.
+ */
 class HistoryManager {
-    private final Stack<BufferedImage> undoStack = new Stack<>();
-    private final Stack<BufferedImage> redoStack = new Stack<>();
+    static final int TILE = 256;
 
-    void push(BufferedImage img) {
-        if (img != null) {
-            undoStack.push(Utils.deepCopy(img));
-            redoStack.clear();
+    private final long budgetBytes;
+    private final List<Snapshot> states = new ArrayList<>();
+    private int cursor = -1;
+    private long residentBytes;
+    private SpillFile spill;
+    private boolean spillFailed;
+    private BiConsumer<String, Throwable> errorHandler = (msg, ex) -> ex.printStackTrace();
+
+    HistoryManager() {
+        this(Long.getLong("photoeditor.historyMB", 512) << 20);
+    }
+
+    HistoryManager(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /** Told when history has to drop undo states because the spill file cannot be written. */
+    void setErrorHandler(BiConsumer<String, Throwable> handler) {
+        this.errorHandler = handler;
+    }
+
+    void reset(BufferedImage img) {
+        clear();
+        record(img);
+    }
+
+    void record(BufferedImage img) {
+        record(img, null);
+    }
+
+    void record(BufferedImage img, Rectangle dirty) {
+        record(img, dirty, null);
+    }
+
+    /**
+     * Records {@code img} as the new current state; only tiles inside {@code dirty} are
+     * compared. {@code document} is kept alongside the pixels and handed back by
+     * {@link #document()} whenever this state becomes current again.
+     */
+    void record(BufferedImage img, Rectangle dirty, Object document) {
+        if (img == null) return;
+        Metrics.time(Metrics.Kind.HISTORY, "record", img.getWidth(), img.getHeight(), () -> {
+            push(img, dirty, document);
+            return null;
+        });
+        publishFootprint();
+    }
+
+    private void push(BufferedImage img, Rectangle dirty, Object document) {
+        while (states.size() > cursor + 1) {
+            release(states.remove(states.size() - 1));
         }
+        Snapshot prev = cursor >= 0 ? states.get(cursor) : null;
+        Snapshot next = Snapshot.capture(img, prev, dirty, this);
+        next.document = document;
+        for (Tile t : next.tiles) {
+            if (t.refs++ == 0) residentBytes += t.bytes();
+        }
+        states.add(next);
+        cursor++;
+        enforceBudget();
     }
 
+    /**
+     * Steps back one state. Spilled tiles are read back before the canvas is touched and
+     * the cursor only moves once the canvas has the pixels, so a failing read leaves both
+     * at the state they were in.
+     */
     void undo(CanvasPanel canvas) {
-        if (!undoStack.isEmpty() && canvas.getImage() != null) {
-            redoStack.push(Utils.deepCopy(canvas.getImage()));
-            canvas.setImage(Utils.deepCopy(undoStack.pop()));
+        if (cursor > 0 && canvas.getImage() != null) {
+            moveTo(canvas, cursor - 1, "undo");
         }
     }
 
     void redo(CanvasPanel canvas) {
-        if (!redoStack.isEmpty() && canvas.getImage() != null) {
-            undoStack.push(Utils.deepCopy(canvas.getImage()));
-            canvas.setImage(Utils.deepCopy(redoStack.pop()));
+        if (cursor + 1 < states.size() && canvas.getImage() != null) {
+            moveTo(canvas, cursor + 1, "redo");
         }
     }
 
+    private void moveTo(CanvasPanel canvas, int index, String name) {
+        BufferedImage img = canvas.getImage();
+        // A shared canvas image belongs to the edit graph; the state is rebuilt aside.
+        BufferedImage current = canvas.isImageShared() ? null : img;
+        Snapshot from = states.get(cursor), to = states.get(index);
+        canvas.setImage(Metrics.time(Metrics.Kind.HISTORY, name, img.getWidth(), img.getHeight(), () -> {
+            rehydrate(to);
+            return restore(current, from, to);
+        }));
+        cursor = index;
+        enforceBudget();
+        publishFootprint();
+    }
+
+    boolean canUndo() {
+        return cursor > 0;
+    }
+
+    boolean canRedo() {
+        return cursor + 1 < states.size();
+    }
+
     BufferedImage resetToFirst() {
-        return undoStack.isEmpty() ? null : Utils.deepCopy(undoStack.firstElement());
+        return states.isEmpty() ? null : restore(null, null, states.get(0));
     }
 
     void clear() {
-        undoStack.clear();
-        redoStack.clear();
+        for (Snapshot s : states) release(s);
+        states.clear();
+        cursor = -1;
+        residentBytes = 0;
+        if (spill != null) {
+            spill.close();
+            spill = null;
+        }
+        publishFootprint();
+    }
+
+    /** The document state recorded with the current state, or null. */
+    Object document() {
+        return cursor >= 0 ? states.get(cursor).document : null;
+    }
+
+    long residentBytes() {
+        return residentBytes;
+    }
+
+    private void publishFootprint() {
+        Metrics.gauge("history.residentBytes", residentBytes);
+        Metrics.gauge("history.spilledBytes", spill == null ? 0 : spill.end);
+        Metrics.gauge("history.states", states.size());
+    }
+
+    // Writes only the tiles that differ between the two states into the canvas image
+    // when the geometry is unchanged; otherwise the target state is rebuilt in full.
+    private BufferedImage restore(BufferedImage current, Snapshot from, Snapshot to) {
+        BufferedImage out = current;
+        boolean inPlace = from != null && current != null && from.sameGeometry(to)
+                && current.getWidth() == to.width && current.getHeight() == to.height
+                && current.getType() == BufferedImage.TYPE_INT_ARGB;
+        if (!inPlace) {
+            out = new BufferedImage(to.width, to.height, BufferedImage.TYPE_INT_ARGB);
+        }
+        BufferedImage target = out;
+        TileScheduler.shared().forEachBand(to.rows, 1, (r0, r1) -> {
+            for (int row = r0; row < r1; row++) {
+                for (int col = 0; col < to.cols; col++) {
+                    int i = row * to.cols + col;
+                    if (inPlace && from.tiles[i] == to.tiles[i]) continue;
+                    Rectangle r = to.bounds(col, row);
+                    Pixels.write(target, r.x, r.y, r.width, r.height, to.tiles[i].pixels(this));
+                }
+            }
+        });
+        return out;
+    }
+
+    private void release(Snapshot s) {
+        for (Tile t : s.tiles) {
+            if (--t.refs != 0) continue;
+            if (t.data != null) {
+                residentBytes -= t.bytes();
+            } else {
+                spill.free(t);
+            }
+        }
+    }
+
+    // Reads the spilled tiles of a state that is about to become current back into
+    // memory, all of them before any is installed, so a failed read changes nothing.
+    private void rehydrate(Snapshot s) {
+        Map<Tile, int[]> loaded = new HashMap<>();
+        for (Tile t : s.tiles) {
+            if (t.data == null && !loaded.containsKey(t)) loaded.put(t, spill.read(t));
+        }
+        for (Map.Entry<Tile, int[]> e : loaded.entrySet()) {
+            Tile t = e.getKey();
+            spill.free(t);
+            t.data = e.getValue();
+            residentBytes += t.bytes();
+        }
+    }
+
+    // Spills the tiles that are only referenced by older states, oldest first, then
+    // the redo branch. The current state always stays resident so the next edit and
+    // undo can compare against it without reading the spill file.
+    private void enforceBudget() {
+        if (residentBytes <= budgetBytes) return;
+        if (spillFailed) {
+            evictOldest();
+            return;
+        }
+        Snapshot current = states.get(cursor);
+        Set<Tile> keep = new HashSet<>(Arrays.asList(current.tiles));
+        try {
+            for (int i = 0; i < states.size() && residentBytes > budgetBytes; i++) {
+                if (i == cursor) continue;
+                for (Tile t : states.get(i).tiles) {
+                    if (residentBytes <= budgetBytes) break;
+                    if (t.data == null || keep.contains(t)) continue;
+                    if (spill == null) spill = new SpillFile();
+                    spill.write(t);
+                    residentBytes -= t.bytes();
+                }
+            }
+        } catch (IOException | UncheckedIOException ex) {
+            // Without the spill file the budget can only be kept by dropping the oldest
+            // states; say so once rather than losing undo steps silently on every edit.
+            spillFailed = true;
+            int dropped = evictOldest();
+            errorHandler.accept("Undo history could not be written to disk (" + ex.getMessage()
+                    + "). " + dropped + " oldest undo step" + (dropped == 1 ? " was" : "s were")
+                    + " dropped, and older steps will be dropped from now on to stay within "
+                    + (budgetBytes >> 20) + " MB.", ex);
+        }
+    }
+
+    private int evictOldest() {
+        int dropped = 0;
+        while (residentBytes > budgetBytes && cursor > 0) {
+            release(states.remove(0));
+            cursor--;
+            dropped++;
+        }
+        return dropped;
+    }
+
+    private static final class Snapshot {
+        final int width, height, cols, rows;
+        final Tile[] tiles;
+        Object document;
+
+        Snapshot(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.cols = (width + TILE - 1) / TILE;
+            this.rows = (height + TILE - 1) / TILE;
+            this.tiles = new Tile[cols * rows];
+        }
+
+        static Snapshot capture(BufferedImage img, Snapshot prev, Rectangle dirty, HistoryManager owner) {
+            Snapshot s = new Snapshot(img.getWidth(), img.getHeight());
+            boolean share = prev != null && prev.sameGeometry(s);
+            TileScheduler.shared().forEachBand(s.rows, 1, (r0, r1) -> {
+                int[] scratch = new int[TILE * TILE];
+                for (int row = r0; row < r1; row++) {
+                    for (int col = 0; col < s.cols; col++) {
+                        int i = row * s.cols + col;
+                        Rectangle r = s.bounds(col, row);
+                        if (share && dirty != null && !dirty.intersects(r)) {
+                            s.tiles[i] = prev.tiles[i];
+                            continue;
+                        }
+                        int n = r.width * r.height;
+                        Pixels.read(img, r.x, r.y, r.width, r.height, scratch);
+                        if (share && Arrays.equals(scratch, 0, n, prev.tiles[i].pixels(owner), 0, n)) {
+                            s.tiles[i] = prev.tiles[i];
+                        } else {
+                            s.tiles[i] = new Tile(Arrays.copyOf(scratch, n));
+                        }
+                    }
+                }
+            });
+            return s;
+        }
+
+        boolean sameGeometry(Snapshot o) {
+            return width == o.width && height == o.height;
+        }
+
+        Rectangle bounds(int col, int row) {
+            int x = col * TILE, y = row * TILE;
+            return new Rectangle(x, y, Math.min(TILE, width - x), Math.min(TILE, height - y));
+        }
+    }
+
+    private static final class Tile {
+        volatile int[] data;
+        int length;
+        long offset;
+        int compressedLength;
+        int refs;
+
+        Tile(int[] data) {
+            this.data = data;
+            this.length = data.length;
+        }
+
+        long bytes() {
+            return (long) length * Integer.BYTES;
+        }
+
+        int[] pixels(HistoryManager owner) {
+            int[] d = data;
+            return d != null ? d : owner.spill.read(this);
+        }
+    }
+
+    // Deflated tiles packed into one temp file. Extents of released or rehydrated tiles
+    // go on a free list (offset -> length, adjacent extents merged) and are reused first
+    // fit; a free extent at the end of the file truncates it instead.
+    private static final class SpillFile {
+        private final FileChannel channel;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final TreeMap<Long, Long> free = new TreeMap<>();
+        private long end;
+
+        SpillFile() throws IOException {
+            Path path = Files.createTempFile("photoeditor-history", ".tiles");
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        }
+
+        synchronized void write(Tile t) throws IOException {
+            ByteBuffer raw = ByteBuffer.allocate(t.length * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            raw.asIntBuffer().put(t.data);
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteBuffer packed = ByteBuffer.allocate(raw.capacity() + 64);
+            while (!deflater.finished()) {
+                if (!packed.hasRemaining()) {
+                    packed = ByteBuffer.allocate(packed.capacity() * 2).put(packed.flip());
+                }
+                deflater.deflate(packed);
+            }
+            packed.flip();
+            int length = packed.remaining();
+            long offset = allocate(length);
+            while (packed.hasRemaining()) {
+                channel.write(packed, offset + packed.position());
+            }
+            t.offset = offset;
+            t.compressedLength = length;
+            t.data = null;
+        }
+
+        private long allocate(int length) {
+            for (Map.Entry<Long, Long> e : free.entrySet()) {
+                long offset = e.getKey(), size = e.getValue();
+                if (size < length) continue;
+                free.remove(offset);
+                if (size > length) free.put(offset + length, size - length);
+                return offset;
+            }
+            long offset = end;
+            end += length;
+            return offset;
+        }
+
+        synchronized void free(Tile t) {
+            long offset = t.offset;
+            long length = t.compressedLength;
+            Map.Entry<Long, Long> before = free.floorEntry(offset);
+            if (before != null && before.getKey() + before.getValue() == offset) {
+                offset = before.getKey();
+                length += before.getValue();
+                free.remove(offset);
+            }
+            Long after = free.remove(offset + length);
+            if (after != null) length += after;
+            if (offset + length == end) {
+                end = offset;
+                try {
+                    channel.truncate(end);
+                } catch (IOException ignored) {
+                    // The space is still reused; only the file stays larger.
+                }
+            } else {
+                free.put(offset, length);
+            }
+        }
+
+        synchronized int[] read(Tile t) {
+            try {
+                ByteBuffer packed = ByteBuffer.allocate(t.compressedLength);
+                while (packed.hasRemaining()) {
+                    if (channel.read(packed, t.offset + packed.position()) < 0) {
+                        throw new IOException("History spill file is truncated");
+                    }
+                }
+                packed.flip();
+                Inflater inflater = new Inflater();
+                inflater.setInput(packed);
+                ByteBuffer raw = ByteBuffer.allocate(t.length * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                inflater.inflate(raw);
+                inflater.end();
+                int[] pixels = new int[t.length];
+                raw.flip().asIntBuffer().get(pixels);
+                return pixels;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            } catch (DataFormatException ex) {
+                throw new IllegalStateException("Corrupt history tile", ex);
+            }
+        }
+
+        void close() {
+            deflater.end();
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
     }
 }
@@ -0,0 +1,470 @@
+package PhotoEditor;
+
+import javax.imageio.*;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.event.IIOWriteProgressListener;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * ImageIO reading and writing with progress, cancellation, a quick subsampled preview
+ * and decoding straight into {@code TYPE_INT_ARGB} where the reader supports it.
+ * Meant to run off the EDT.
+ */
+final class ImageLoader {
+    static final int PREVIEW_SIZE = 1024;
+
+    private ImageLoader() {}
+
+    /**
+     * Decodes {@code file}, first handing a subsampled preview to {@code preview} when
+     * the image is much larger than {@link #PREVIEW_SIZE}.
+     */
+    static BufferedImage read(File file, Consumer<BufferedImage> preview, IntConsumer progress,
+                              BooleanSupplier cancelled) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) throw new IOException("Cannot open " + file.getName());
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) throw new IOException("Unsupported image format.");
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, false, true);
+                int w = reader.getWidth(0), h = reader.getHeight(0);
+                int step = (Math.max(w, h) + PREVIEW_SIZE - 1) / PREVIEW_SIZE;
+                if (step >= 4 && preview != null) {
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceSubsampling(step, step, 0, 0);
+                    preview.accept(Utils.toARGB(reader.read(0, param)));
+                    if (cancelled.getAsBoolean()) throw new CancellationException();
+                }
+                reader.addIIOReadProgressListener(new ReadProgress(reader, progress, cancelled));
+                BufferedImage img = Metrics.time(Metrics.Kind.OPEN, file.getName(), w, h,
+                        () -> reader.read(0, argbParam(reader)));
+                if (cancelled.getAsBoolean()) throw new CancellationException();
+                return Utils.toARGB(img);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /** The size of the first image in {@code file}, read from its header only. */
+    static Dimension dimensions(File file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) throw new IOException("Cannot open " + file.getName());
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) throw new IOException("Unsupported image format.");
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * The image in {@code file} scaled to fit in {@code size} x {@code size}, for
+     * browsing. An embedded thumbnail (EXIF or JFIF in JPEGs) is used when the reader
+     * finds one at least that large; otherwise only every n-th pixel of every n-th row is
+     * decoded, so the cost barely depends on the size of the image.
+     */
+    static BufferedImage readThumbnail(File file, int size) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) throw new IOException("Cannot open " + file.getName());
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) throw new IOException("Unsupported image format.");
+            ImageReader reader = readers.next();
+            try {
+                // Thumbnails are found through the metadata, so it is not ignored here.
+                reader.setInput(in, true, false);
+                BufferedImage img = null;
+                if (reader.readerSupportsThumbnails()) {
+                    for (int i = 0; i < reader.getNumThumbnails(0) && img == null; i++) {
+                        if (Math.max(reader.getThumbnailWidth(0, i), reader.getThumbnailHeight(0, i)) >= size) {
+                            img = reader.readThumbnail(0, i);
+                        }
+                    }
+                }
+                if (img == null) {
+                    int step = Math.max(1, Math.max(reader.getWidth(0), reader.getHeight(0)) / size);
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceSubsampling(step, step, 0, 0);
+                    img = reader.read(0, param);
+                }
+                return fit(Utils.toARGB(img), size);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static BufferedImage fit(BufferedImage img, int size) {
+        int w = img.getWidth(), h = img.getHeight();
+        if (Math.max(w, h) <= size) return img;
+        double scale = size / (double) Math.max(w, h);
+        return Resampler.resize(img, Math.max(1, (int) Math.round(w * scale)),
+                Math.max(1, (int) Math.round(h * scale)), Resampler.Kernel.AREA);
+    }
+
+    /**
+     * Decodes {@code file} into a {@link TiledImage} without the whole image ever being on
+     * the heap. Readers with cheap random access, and tiled images, are read one strip of
+     * tiles at a time. Others, such as PNG and baseline JPEG, would decode the stream
+     * from the start again for every strip, so they are decoded in one pass into a
+     * destination that only keeps the current strip (see {@link StripBuffer}). Readers
+     * that cannot be streamed that way, such as for interlaced PNG, fall back to strips.
+     */
+    static TiledImage readTiled(File file, IntConsumer progress, BooleanSupplier cancelled) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) throw new IOException("Cannot open " + file.getName());
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) throw new IOException("Unsupported image format.");
+            ImageReader reader = readers.next();
+            TiledImage tiled = null;
+            try {
+                reader.setInput(in, false, true);
+                int w = reader.getWidth(0), h = reader.getHeight(0);
+                TiledImage target = tiled = new TiledImage(w, h);
+                Metrics.time(Metrics.Kind.OPEN, file.getName() + " (tiled)", w, h, () -> {
+                    boolean regions = reader.isRandomAccessEasy(0) || reader.isImageTiled(0);
+                    if (regions || !readStreaming(reader, target, progress, cancelled)) {
+                        readStrips(reader, target, progress, cancelled);
+                    }
+                    return null;
+                });
+                TiledImage result = tiled;
+                tiled = null;
+                return result;
+            } finally {
+                if (tiled != null) tiled.close();
+                reader.dispose();
+            }
+        }
+    }
+
+    private static void readStrips(ImageReader reader, TiledImage target, IntConsumer progress,
+                                   BooleanSupplier cancelled) throws IOException {
+        int w = target.getWidth(), h = target.getHeight();
+        for (int y = 0; y < h; y += TiledImage.TILE) {
+            if (cancelled.getAsBoolean()) throw new CancellationException();
+            ImageReadParam param = argbParam(reader);
+            param.setSourceRegion(new Rectangle(0, y, w, Math.min(TiledImage.TILE, h - y)));
+            target.writeRegion(reader.read(0, param), 0, y);
+            progress.accept((int) (100L * Math.min(h, y + TiledImage.TILE) / h));
+        }
+    }
+
+    // Decodes the whole image in one read into a StripBuffer destination. Returns false,
+    // with whatever was written left for readStrips to overwrite, when the reader offers
+    // no destination type the buffer can stand in for or does not write rows in order.
+    private static boolean readStreaming(ImageReader reader, TiledImage target, IntConsumer progress,
+                                         BooleanSupplier cancelled) throws IOException {
+        int w = target.getWidth(), h = target.getHeight();
+        ImageTypeSpecifier type = null;
+        SampleModel model = null;
+        for (Iterator<ImageTypeSpecifier> it = reader.getImageTypes(0); it.hasNext(); ) {
+            ImageTypeSpecifier t = it.next();
+            SampleModel sm;
+            try {
+                sm = t.getSampleModel(w, h);
+            } catch (IllegalArgumentException | RasterFormatException ex) {
+                continue;
+            }
+            if (StripBuffer.stride(sm) < 0 || (long) StripBuffer.stride(sm) * h > Integer.MAX_VALUE) continue;
+            if (type == null || rank(t, sm) > rank(type, model)) {
+                type = t;
+                model = sm;
+            }
+        }
+        if (type == null) return false;
+        StripBuffer buffer = new StripBuffer(reader, type.getColorModel(), model, target, progress, cancelled);
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setDestination(new BufferedImage(type.getColorModel(),
+                Raster.createWritableRaster(model, buffer, null), type.getColorModel().isAlphaPremultiplied(), null));
+        try {
+            reader.read(0, param);
+        } catch (ClassCastException ex) {
+            return false;  // the reader insists on a standard DataBuffer
+        }
+        if (cancelled.getAsBoolean()) throw new CancellationException();
+        if (buffer.outOfOrder) return false;
+        buffer.flush();
+        return true;
+    }
+
+    // TYPE_INT_ARGB needs no conversion when strips are written to the tiles, and other
+    // packed int types take one element per pixel rather than one per sample.
+    private static int rank(ImageTypeSpecifier type, SampleModel sm) {
+        if (type.getBufferedImageType() == BufferedImage.TYPE_INT_ARGB) return 2;
+        return sm instanceof SinglePixelPackedSampleModel && sm.getDataType() == DataBuffer.TYPE_INT ? 1 : 0;
+    }
+
+    /**
+     * Stands in for the data of a whole-image destination while a reader decodes into it
+     * row by row. Only one strip of {@link TiledImage#TILE} rows is held; a write below
+     * it hands the strip to the tiles and starts the next. A write above it means the
+     * reader does not go in order, and the read is aborted.
+     */
+    private static final class StripBuffer extends DataBuffer {
+        private final ImageReader reader;
+        private final ColorModel colorModel;
+        private final SampleModel stripModel;
+        private final TiledImage target;
+        private final IntConsumer progress;
+        private final BooleanSupplier cancelled;
+        private final int stride, height;
+        private DataBuffer strip;
+        private int y0;
+        boolean outOfOrder;
+
+        StripBuffer(ImageReader reader, ColorModel colorModel, SampleModel model, TiledImage target,
+                    IntConsumer progress, BooleanSupplier cancelled) {
+            super(model.getDataType(), stride(model) * model.getHeight());
+            this.reader = reader;
+            this.colorModel = colorModel;
+            this.stripModel = model.createCompatibleSampleModel(model.getWidth(), TiledImage.TILE);
+            this.target = target;
+            this.progress = progress;
+            this.cancelled = cancelled;
+            this.stride = stride(model);
+            this.height = model.getHeight();
+            this.strip = stripModel.createDataBuffer();
+        }
+
+        // Elements per row, for layouts with all samples in one bank; -1 otherwise.
+        static int stride(SampleModel sm) {
+            if (sm instanceof SinglePixelPackedSampleModel p) return p.getScanlineStride();
+            if (sm instanceof MultiPixelPackedSampleModel p && p.getDataBitOffset() == 0) return p.getScanlineStride();
+            if (sm instanceof ComponentSampleModel c && Arrays.stream(c.getBankIndices()).allMatch(b -> b == 0)) {
+                return c.getScanlineStride();
+            }
+            return -1;
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            int row = i / stride;
+            if (row < y0) {
+                abort();
+                return 0;
+            }
+            return row < y0 + TiledImage.TILE ? strip.getElem(i - y0 * stride) : 0;
+        }
+
+        @Override
+        public void setElem(int bank, int i, int value) {
+            int row = i / stride;
+            if (row < y0) {
+                abort();
+                return;
+            }
+            while (row >= y0 + TiledImage.TILE && !outOfOrder) {
+                flush();
+                y0 += TiledImage.TILE;
+                strip = stripModel.createDataBuffer();
+                if (cancelled.getAsBoolean()) reader.abort();
+            }
+            if (!outOfOrder) strip.setElem(i - y0 * stride, value);
+        }
+
+        private void abort() {
+            outOfOrder = true;
+            reader.abort();
+        }
+
+        // Writes the rows of the current strip to the tiles.
+        void flush() {
+            int rows = Math.min(TiledImage.TILE, height - y0);
+            if (rows <= 0) return;
+            BufferedImage img = new BufferedImage(colorModel, Raster.createWritableRaster(stripModel, strip, null),
+                    colorModel.isAlphaPremultiplied(), null);
+            target.writeRegion(img.getSubimage(0, 0, img.getWidth(), rows), 0, y0);
+            progress.accept((int) (100L * (y0 + rows) / height));
+        }
+    }
+
+    // Asks the reader to decode into TYPE_INT_ARGB directly when it offers that type,
+    // which saves the conversion copy Utils.toARGB would otherwise make.
+    private static ImageReadParam argbParam(ImageReader reader) throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam();
+        for (Iterator<ImageTypeSpecifier> it = reader.getImageTypes(0); it.hasNext(); ) {
+            ImageTypeSpecifier type = it.next();
+            if (type.getBufferedImageType() == BufferedImage.TYPE_INT_ARGB) {
+                param.setDestinationType(type);
+                break;
+            }
+        }
+        return param;
+    }
+
+    /**
+     * Writes {@code img} to a temporary sibling of {@code file} and moves it into place
+     * once complete, so a cancelled or failed save never leaves a truncated file behind.
+     * PNG goes through {@link PngEncoder}, dropping the alpha channel when every pixel
+     * is opaque; everything else through ImageIO.
+     */
+    static void write(BufferedImage img, String format, File file, ExportOptions options,
+                      IntConsumer progress, BooleanSupplier cancelled) throws IOException {
+        int w = img.getWidth(), h = img.getHeight();
+        if (format.equals("png")) {
+            writePng((y, rows, out) -> Pixels.read(img, 0, y, w, rows, out), w, h, !isOpaque(img),
+                    file, options, progress, cancelled);
+            return;
+        }
+        RenderedImage out = !keepsAlpha(format) && img.getColorModel().hasAlpha() ? Utils.withoutAlpha(img) : img;
+        writeRendered(out, format, file, options, progress, cancelled);
+    }
+
+    /** Streams a tiled image to {@code file}; the encoder pulls it in strips of rows. */
+    static void write(TiledImage img, String format, File file, ExportOptions options,
+                      IntConsumer progress, BooleanSupplier cancelled) throws IOException {
+        int w = img.getWidth(), h = img.getHeight();
+        if (format.equals("png")) {
+            writePng((y, rows, out) -> img.readRegion(new Rectangle(0, y, w, rows), out), w, h, true,
+                    file, options, progress, cancelled);
+            return;
+        }
+        writeRendered(img.asRenderedImage(keepsAlpha(format)), format, file, options, progress, cancelled);
+    }
+
+    private static boolean keepsAlpha(String format) {
+        return format.equals("png") || format.equals("gif");
+    }
+
+    private static boolean isOpaque(BufferedImage img) {
+        if (!img.getColorModel().hasAlpha()) return true;
+        int w = img.getWidth();
+        int[] row = new int[w];
+        for (int y = 0; y < img.getHeight(); y++) {
+            Pixels.read(img, 0, y, w, 1, row);
+            for (int p : row) {
+                if ((p >>> 24) != 0xFF) return false;
+            }
+        }
+        return true;
+    }
+
+    private interface Output {
+        void writeTo(File tmp) throws IOException;
+    }
+
+    private static void replace(File file, BooleanSupplier cancelled, Output output) throws IOException {
+        File tmp = new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".part");
+        try {
+            output.writeTo(tmp);
+            if (cancelled.getAsBoolean()) throw new CancellationException();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    private static void writePng(PngEncoder.Rows rows, int w, int h, boolean alpha, File file,
+                                 ExportOptions options, IntConsumer progress, BooleanSupplier cancelled) throws IOException {
+        replace(file, cancelled, tmp -> {
+            try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                Metrics.time(Metrics.Kind.SAVE, file.getName(), w, h, () -> {
+                    PngEncoder.write(rows, w, h, alpha, options, out, progress, cancelled);
+                    return null;
+                });
+            }
+        });
+    }
+
+    private static void writeRendered(RenderedImage img, String format, File file, ExportOptions options,
+                                      IntConsumer progress, BooleanSupplier cancelled) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) throw new IOException("No writer for format " + format);
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (format.equals("jpg")) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(options.jpegQuality());
+            param.setProgressiveMode(options.progressive()
+                    ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+        }
+        try {
+            replace(file, cancelled, tmp -> {
+                try (ImageOutputStream out = ImageIO.createImageOutputStream(tmp)) {
+                    writer.setOutput(out);
+                    writer.addIIOWriteProgressListener(new WriteProgress(writer, progress, cancelled));
+                    Metrics.time(Metrics.Kind.SAVE, file.getName(), img.getWidth(), img.getHeight(), () -> {
+                        writer.write(null, new IIOImage(img, null, null), param);
+                        return null;
+                    });
+                }
+            });
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static final class ReadProgress implements IIOReadProgressListener {
+        private final ImageReader reader;
+        private final IntConsumer progress;
+        private final BooleanSupplier cancelled;
+
+        ReadProgress(ImageReader reader, IntConsumer progress, BooleanSupplier cancelled) {
+            this.reader = reader;
+            this.progress = progress;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        public void imageProgress(ImageReader source, float percentageDone) {
+            progress.accept(Math.max(0, Math.min(100, (int) percentageDone)));
+            if (cancelled.getAsBoolean()) reader.abort();
+        }
+
+        @Override public void imageStarted(ImageReader source, int imageIndex) { progress.accept(0); }
+        @Override public void imageComplete(ImageReader source) { progress.accept(100); }
+        @Override public void sequenceStarted(ImageReader source, int minIndex) {}
+        @Override public void sequenceComplete(ImageReader source) {}
+        @Override public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {}
+        @Override public void thumbnailProgress(ImageReader source, float percentageDone) {}
+        @Override public void thumbnailComplete(ImageReader source) {}
+        @Override public void readAborted(ImageReader source) {}
+    }
+
+    private static final class WriteProgress implements IIOWriteProgressListener {
+        private final ImageWriter writer;
+        private final IntConsumer progress;
+        private final BooleanSupplier cancelled;
+
+        WriteProgress(ImageWriter writer, IntConsumer progress, BooleanSupplier cancelled) {
+            this.writer = writer;
+            this.progress = progress;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        public void imageProgress(ImageWriter source, float percentageDone) {
+            progress.accept(Math.max(0, Math.min(100, (int) percentageDone)));
+            if (cancelled.getAsBoolean()) writer.abort();
+        }
+
+        @Override public void imageStarted(ImageWriter source, int imageIndex) { progress.accept(0); }
+        @Override public void imageComplete(ImageWriter source) { progress.accept(100); }
+        @Override public void thumbnailStarted(ImageWriter source, int imageIndex, int thumbnailIndex) {}
+        @Override public void thumbnailProgress(ImageWriter source, float percentageDone) {}
+        @Override public void thumbnailComplete(ImageWriter source) {}
+        @Override public void writeAborted(ImageWriter source) {}
+    }
+}
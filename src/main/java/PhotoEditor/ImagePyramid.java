@@ -0,0 +1,152 @@
+package PhotoEditor;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Lazily built half-resolution levels of an image for zoomed-out display. Level 0 is
+ * the image itself; each further level halves the previous one with a 2x2 box filter
+ * (a bilinear draw at exactly half size) into a display-compatible image.
+ *
+ * <p>At half size and below, the canvas also gets the image resized to exactly its
+ * display size with Lanczos by {@link Resampler}, which a bilinear draw between levels
+ * would alias. It is made off the EDT from the nearest level, and kept up to date
+ * piece by piece as the image changes.
+ */
+class ImagePyramid {
+    private static final int MIN_SIZE = 64;
+    private static final ExecutorService RESAMPLER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "display-resampler");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final List<BufferedImage> levels = new ArrayList<>();
+    private final GraphicsConfiguration gc;
+    private final Runnable onReady;
+    // The display-size image and the level it was made from; EDT only.
+    private BufferedImage display, displaySource;
+    private Dimension requested;
+    private volatile int generation;
+
+    ImagePyramid(BufferedImage base, GraphicsConfiguration gc, Runnable onReady) {
+        this.gc = gc;
+        this.onReady = onReady;
+        levels.add(base);
+    }
+
+    BufferedImage base() {
+        return levels.get(0);
+    }
+
+    /** The smallest level that still has at least {@code scale} of the base resolution. */
+    BufferedImage levelFor(double scale) {
+        BufferedImage level = levels.get(0);
+        for (int i = 1; 1.0 / (1 << i) >= scale; i++) {
+            if (i == levels.size()) {
+                BufferedImage prev = levels.get(i - 1);
+                if (prev.getWidth() < MIN_SIZE * 2 || prev.getHeight() < MIN_SIZE * 2) break;
+                levels.add(halve(prev));
+            }
+            level = levels.get(i);
+        }
+        return level;
+    }
+
+    /**
+     * The image resized to exactly {@code w x h} for display at {@code scale}, or null
+     * while it is being made; {@code onReady} runs on the EDT once it is.
+     */
+    BufferedImage displayLevel(double scale, int w, int h) {
+        if (display != null && display.getWidth() == w && display.getHeight() == h) return display;
+        Dimension size = new Dimension(w, h);
+        if (size.equals(requested)) return null;
+        requested = size;
+        int gen = ++generation;
+        BufferedImage from = levelFor(scale);
+        RESAMPLER.execute(() -> {
+            if (gen != generation) return;  // zoomed again before this started
+            BufferedImage out = compatible(Resampler.resize(from, w, h, Resampler.Kernel.LANCZOS3));
+            SwingUtilities.invokeLater(() -> {
+                if (gen != generation) return;
+                display = out;
+                displaySource = from;
+                requested = null;
+                onReady.run();
+            });
+        });
+        return null;
+    }
+
+    private BufferedImage compatible(BufferedImage img) {
+        if (gc == null) return img;
+        BufferedImage out = gc.createCompatibleImage(img.getWidth(), img.getHeight(), Transparency.TRANSLUCENT);
+        Graphics2D g = out.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(img, 0, 0, null);
+        g.dispose();
+        return out;
+    }
+
+    /** Puts {@code copy}, which holds the same pixels as the base, in the base's place. */
+    void rebase(BufferedImage copy) {
+        if (displaySource == base()) displaySource = copy;
+        levels.set(0, copy);
+        // A display image being made reads the old base, which later updates miss.
+        generation++;
+        requested = null;
+    }
+
+    /** Rebuilds the part of every level built so far that covers {@code dirty} in the base. */
+    void update(Rectangle dirty) {
+        updateLevels(dirty);
+        // A display image being made read pixels that have since changed.
+        generation++;
+        requested = null;
+        if (display == null) return;
+        // Lanczos reaches three display pixels; one more covers rounding.
+        double sx = display.getWidth() / (double) base().getWidth();
+        double sy = display.getHeight() / (double) base().getHeight();
+        int x0 = (int) Math.floor(dirty.x * sx) - 4, y0 = (int) Math.floor(dirty.y * sy) - 4;
+        int x1 = (int) Math.ceil((dirty.x + dirty.width) * sx) + 4;
+        int y1 = (int) Math.ceil((dirty.y + dirty.height) * sy) + 4;
+        Resampler.resizeInto(displaySource, display, new Rectangle(x0, y0, x1 - x0, y1 - y0),
+                Resampler.Kernel.LANCZOS3);
+    }
+
+    private void updateLevels(Rectangle dirty) {
+        Rectangle r = dirty;
+        for (int i = 1; i < levels.size(); i++) {
+            BufferedImage prev = levels.get(i - 1), level = levels.get(i);
+            int x0 = r.x / 2, y0 = r.y / 2;
+            int x1 = (r.x + r.width + 1) / 2, y1 = (r.y + r.height + 1) / 2;
+            r = new Rectangle(x0, y0, x1 - x0, y1 - y0)
+                    .intersection(new Rectangle(level.getWidth(), level.getHeight()));
+            if (r.isEmpty()) return;
+            Graphics2D g = level.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(prev, r.x, r.y, r.x + r.width, r.y + r.height,
+                    r.x * 2, r.y * 2, (r.x + r.width) * 2, (r.y + r.height) * 2, null);
+            g.dispose();
+        }
+    }
+
+    private BufferedImage halve(BufferedImage src) {
+        int w = src.getWidth() / 2, h = src.getHeight() / 2;
+        BufferedImage out = gc != null
+                ? gc.createCompatibleImage(w, h, Transparency.TRANSLUCENT)
+                : new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = out.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(src, 0, 0, w, h, 0, 0, w * 2, h * 2, null);
+        g.dispose();
+        return out;
+    }
+}
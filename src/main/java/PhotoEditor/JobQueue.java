@@ -0,0 +1,223 @@
+package PhotoEditor;
+
+import javax.swing.*;
+import java.awt.*;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Runs edits of the document on one background thread, one at a time and in the order
+ * they were asked for, so the window keeps repainting and an edit asked for while
+ * another runs waits for it. Each job computes its result off the EDT and then commits
+ * it on the EDT before the next job starts, so every job sees the document as the jobs
+ * before it left it.
+ *
+ * <p>Progress is reported by {@link TileScheduler} as bands finish, and Cancel in the
+ * status bar makes the next band throw {@link CancellationException}. A job changes
+ * nothing shared until it commits, so a cancelled job leaves the document and history
+ * as they were; a result it had already made is dropped, and closed if it is
+ * {@link AutoCloseable}.
+ */
+final class JobQueue {
+    interface Work<R> {
+        R run() throws Exception;
+    }
+
+    /** The running job, as seen from its worker thread through {@link #current()}. */
+    static final class Job {
+        private static final ThreadLocal<Job> CURRENT = new ThreadLocal<>();
+
+        private final JobQueue queue;  // null for detached jobs
+        private volatile boolean cancelled;
+        private int stage, stages = 1, passes, shown = -1;
+        private double stageDone;
+
+        private Job(JobQueue queue) {
+            this.queue = queue;
+        }
+
+        /**
+         * A job outside any queue, for background work that only needs to stop early
+         * when cancelled; it reports no progress.
+         */
+        static Job detached() {
+            return new Job(null);
+        }
+
+        /** Runs {@code work} on the calling thread as this job. */
+        <R> R run(Work<R> work) throws Exception {
+            CURRENT.set(this);
+            try {
+                return work.run();
+            } finally {
+                CURRENT.remove();
+            }
+        }
+
+        /** The job the calling thread is running, or null. */
+        static Job current() {
+            return CURRENT.get();
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        void checkCancelled() {
+            if (cancelled) throw new CancellationException();
+        }
+
+        /**
+         * Runs {@code r} on this thread as if outside the job, so that bands of an op
+         * nested inside one band do not count as passes of their own.
+         */
+        void nested(Runnable r) {
+            CURRENT.remove();
+            try {
+                r.run();
+            } finally {
+                CURRENT.set(this);
+            }
+        }
+
+        /** Starts stage {@code index} of {@code count}, such as one step of several to render. */
+        synchronized void stage(int index, int count) {
+            stage = index;
+            stages = Math.max(1, count);
+            passes = 0;
+            stageDone = 0;
+            publish();
+        }
+
+        /**
+         * Starts another pass over the image within the stage. Ops make an unknown number
+         * of passes, so each one fills three quarters of what is left of the stage's share.
+         */
+        synchronized void pass() {
+            passes++;
+        }
+
+        /** {@code fraction} of the current pass is done. */
+        synchronized void progress(double fraction) {
+            double left = Math.pow(0.25, passes - 1);
+            stageDone = Math.max(stageDone, 1 - left + left * fraction * 0.75);
+            publish();
+        }
+
+        private void publish() {
+            if (queue == null) return;
+            int percent = (int) (100 * (stage + stageDone) / stages);
+            if (percent == shown) return;
+            shown = percent;
+            SwingUtilities.invokeLater(() -> queue.statusBar.setProgress(percent));
+        }
+    }
+
+    private final StatusBar statusBar;
+    private final Component parent;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "edit-jobs");
+        t.setDaemon(true);
+        return t;
+    });
+    private final List<Consumer<Boolean>> busyListeners = new ArrayList<>();
+    private int pending;  // EDT only
+
+    JobQueue(StatusBar statusBar, Component parent) {
+        this.statusBar = statusBar;
+        this.parent = parent;
+    }
+
+    /** Told on the EDT when the queue goes from idle to busy and back. */
+    void addBusyListener(Consumer<Boolean> listener) {
+        busyListeners.add(listener);
+    }
+
+    /** Whether jobs are queued or running; edits outside the queue should wait for it. */
+    boolean isBusy() {
+        return pending > 0;
+    }
+
+    /**
+     * Queues {@code work}; when it finishes without being cancelled, {@code commit} gets
+     * its result on the EDT. {@link IllegalArgumentException}s are shown as messages.
+     */
+    <R> void submit(String label, Work<R> work, Consumer<R> commit) {
+        if (pending++ == 0) fireBusy(true);
+        worker.execute(() -> run(label, work, commit));
+    }
+
+    private <R> void run(String label, Work<R> work, Consumer<R> commit) {
+        Job job = new Job(this);
+        SwingUtilities.invokeLater(() -> statusBar.startProgress(
+                pending > 1 ? label + " (" + (pending - 1) + " queued)" : label, job::cancel));
+        R result = null;
+        Throwable failure = null;
+        Job.CURRENT.set(job);
+        try {
+            result = work.run();
+            job.checkCancelled();
+        } catch (Throwable ex) {
+            failure = ex;
+        } finally {
+            Job.CURRENT.remove();
+        }
+        R done = result;
+        Throwable error = failure;
+        try {
+            // The next job must not start before this one's result is part of the document.
+            SwingUtilities.invokeAndWait(() -> {
+                try {
+                    if (error == null && !job.cancelled) {
+                        commit.accept(done);
+                    } else {
+                        discard(done);
+                        if (error != null && !(error instanceof CancellationException)) report(label, error);
+                    }
+                } catch (RuntimeException ex) {
+                    report(label, ex);
+                } finally {
+                    if (--pending == 0) {
+                        statusBar.finishProgress();
+                        fireBusy(false);
+                    }
+                }
+            });
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (InvocationTargetException ex) {
+            ex.getCause().printStackTrace();
+        }
+    }
+
+    private static void discard(Object result) {
+        if (result instanceof AutoCloseable c) {
+            try {
+                c.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    private void report(String label, Throwable error) {
+        if (error instanceof IllegalArgumentException) {
+            JOptionPane.showMessageDialog(parent, error.getMessage(), label, JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        error.printStackTrace();
+        JOptionPane.showMessageDialog(parent, label + " failed: " + error, label, JOptionPane.ERROR_MESSAGE);
+    }
+
+    private void fireBusy(boolean busy) {
+        for (Consumer<Boolean> l : busyListeners) l.accept(busy);
+    }
+}
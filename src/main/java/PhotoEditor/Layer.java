@@ -0,0 +1,93 @@
+package PhotoEditor;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * One layer above the background of the document: either pixels placed at an offset,
+ * or an adjustment that runs a per-pixel {@link OpSpec} over everything below it.
+ * Layers are immutable; changing one makes a new layer, so a list of layers is a
+ * complete snapshot that history and the {@link Compositor} can hold on to.
+ */
+final class Layer {
+    enum Blend { NORMAL, MULTIPLY, SCREEN, OVERLAY }
+
+    final String name;
+    final Blend blend;
+    final int opacity;  // percent
+    final boolean visible;
+    // Pixel layers only.
+    final BufferedImage pixels;
+    final int x, y;
+    // Adjustment layers only.
+    final String spec;
+    final Filters.Op op;
+
+    private Layer(String name, Blend blend, int opacity, boolean visible,
+                  BufferedImage pixels, int x, int y, String spec, Filters.Op op) {
+        this.name = name;
+        this.blend = blend;
+        this.opacity = opacity;
+        this.visible = visible;
+        this.pixels = pixels;
+        this.x = x;
+        this.y = y;
+        this.spec = spec;
+        this.op = op;
+    }
+
+    /** A layer showing its own copy of {@code img} with its top-left corner at (x, y). */
+    static Layer image(String name, BufferedImage img, int x, int y) {
+        return new Layer(name, Blend.NORMAL, 100, true, Utils.deepCopy(Utils.toARGB(img)), x, y, null, null);
+    }
+
+    /** An adjustment layer; only operations that map each pixel on its own are allowed. */
+    static Layer adjustment(String spec) {
+        Filters.Op op = OpSpec.parse(spec);
+        if (op.halo() != 0) {
+            throw new IllegalArgumentException("Adjustment layers take per-pixel operations only: " + spec);
+        }
+        return new Layer(spec, Blend.NORMAL, 100, true, null, 0, 0, spec, op);
+    }
+
+    boolean isAdjustment() {
+        return op != null;
+    }
+
+    /** The area the layer can change, in image coordinates; null for all of it. */
+    Rectangle bounds() {
+        return pixels == null ? null : new Rectangle(x, y, pixels.getWidth(), pixels.getHeight());
+    }
+
+    Layer withBlend(Blend b) {
+        return new Layer(name, b, opacity, visible, pixels, x, y, spec, op);
+    }
+
+    Layer withOpacity(int percent) {
+        if (percent < 0 || percent > 100) throw new IllegalArgumentException("Opacity must be 0..100");
+        return new Layer(name, blend, percent, visible, pixels, x, y, spec, op);
+    }
+
+    Layer withVisible(boolean on) {
+        return new Layer(name, blend, opacity, on, pixels, x, y, spec, op);
+    }
+
+    /** The layer at {@code factor} of its size, placed to match a background scaled alike. */
+    Layer scaled(double factor) {
+        if (pixels == null || factor == 1.0) return this;
+        int w = Math.max(1, (int) Math.round(pixels.getWidth() * factor));
+        int h = Math.max(1, (int) Math.round(pixels.getHeight() * factor));
+        BufferedImage small = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = small.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(pixels, 0, 0, w, h, null);
+        g.dispose();
+        return new Layer(name, blend, opacity, visible, small,
+                (int) Math.round(x * factor), (int) Math.round(y * factor), spec, op);
+    }
+
+    @Override
+    public String toString() {
+        return (visible ? "" : "(hidden) ") + name + "  " + blend.name().toLowerCase() + " " + opacity + "%";
+    }
+}
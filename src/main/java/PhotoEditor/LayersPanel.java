@@ -0,0 +1,262 @@
+package PhotoEditor;
+
+import javax.swing.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToIntFunction;
+import java.util.function.UnaryOperator;
+
+/**
+ * Lists the layers above the background, top first, with their blend mode, opacity
+ * and visibility. Image layers are placed centred over the background; adjustment
+ * layers take an operation as written for the steps list. Layer edits composite as
+ * {@link JobQueue} jobs. Dragging the opacity slider keeps at most one of them queued,
+ * which takes the newest value when it runs, and records a single history state when
+ * the slider is let go.
+ */
+class LayersPanel extends JPanel {
+    private final DefaultListModel<Layer> model = new DefaultListModel<>();
+    private final JList<Layer> list = new JList<>(model);
+    private final JComboBox<Layer.Blend> blend = new JComboBox<>(Layer.Blend.values());
+    private final JSlider opacity = new JSlider(0, 100, 100);
+    private final JCheckBox visible = new JCheckBox("Visible", true);
+    private final CanvasPanel canvas;
+    private final HistoryManager history;
+    private final EditGraph graph;
+    private final JobQueue jobs;
+    private JFileChooser imageChooser;
+    private boolean updating;
+    // The newest edit of a layer that no job has taken yet; while it is set a job that
+    // will take it is queued.
+    private final AtomicReference<Edit> pendingEdit = new AtomicReference<>();
+    // What the opacity drag has changed since the last history state; null with
+    // dragAll set when a new image was started.
+    private Rectangle dragDirty;
+    private boolean dragAll;
+
+    LayersPanel(CanvasPanel canvas, HistoryManager history, EditGraph graph, JobQueue jobs) {
+        this.canvas = canvas;
+        this.history = history;
+        this.graph = graph;
+        this.jobs = jobs;
+        setLayout(new BorderLayout(6, 6));
+        setBorder(BorderFactory.createTitledBorder("Layers"));
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setVisibleRowCount(4);
+        add(new JScrollPane(list), BorderLayout.CENTER);
+
+        JPanel properties = new JPanel(new GridLayout(0, 2, 6, 6));
+        properties.add(blend);
+        properties.add(visible);
+        opacity.setBorder(BorderFactory.createTitledBorder("Opacity"));
+        JPanel north = new JPanel(new BorderLayout());
+        north.add(properties, BorderLayout.NORTH);
+        north.add(opacity, BorderLayout.CENTER);
+        add(north, BorderLayout.NORTH);
+
+        JPanel actions = new JPanel(new GridLayout(0, 3, 6, 6));
+        actions.add(createButton("Image…", this::addImage));
+        actions.add(createButton("Adjust…", this::addAdjustment));
+        actions.add(createButton("Remove", this::removeLayer));
+        actions.add(createButton("Up", () -> moveLayer(1)));
+        actions.add(createButton("Down", () -> moveLayer(-1)));
+        add(actions, BorderLayout.SOUTH);
+
+        list.addListSelectionListener(e -> showSelected());
+        blend.addActionListener(e -> {
+            Layer layer = selected();
+            Layer.Blend mode = (Layer.Blend) blend.getSelectedItem();
+            if (!updating && layer != null) change(l -> l.withBlend(mode), false);
+        });
+        visible.addActionListener(e -> {
+            Layer layer = selected();
+            boolean on = visible.isSelected();
+            if (!updating && layer != null) change(l -> l.withVisible(on), false);
+        });
+        opacity.addChangeListener(e -> {
+            Layer layer = selected();
+            int value = opacity.getValue();
+            if (!updating && layer != null && (layer.opacity != value || !opacity.getValueIsAdjusting())) {
+                change(l -> l.withOpacity(value), opacity.getValueIsAdjusting());
+            }
+        });
+        graph.addChangeListener(this::refresh);
+        showSelected();
+    }
+
+    private JButton createButton(String label, Runnable action) {
+        JButton button = new JButton(label);
+        button.addActionListener(e -> action.run());
+        return button;
+    }
+
+    // The list shows the top layer first; layer indexes count from the bottom.
+    private int selectedIndex() {
+        int row = list.getSelectedIndex();
+        return row < 0 ? -1 : model.size() - 1 - row;
+    }
+
+    private Layer selected() {
+        int index = selectedIndex();
+        return index < 0 ? null : graph.layers().get(index);
+    }
+
+    private void select(int index) {
+        if (index >= 0 && index < model.size()) list.setSelectedIndex(model.size() - 1 - index);
+    }
+
+    private void refresh() {
+        int index = selectedIndex();
+        updating = true;
+        try {
+            model.clear();
+            List<Layer> layers = graph.layers();
+            for (int i = layers.size() - 1; i >= 0; i--) model.addElement(layers.get(i));
+        } finally {
+            updating = false;
+        }
+        select(Math.min(index, model.size() - 1));
+        showSelected();
+    }
+
+    private void showSelected() {
+        Layer layer = selected();
+        updating = true;
+        try {
+            blend.setEnabled(layer != null);
+            visible.setEnabled(layer != null);
+            opacity.setEnabled(layer != null);
+            if (layer != null) {
+                blend.setSelectedItem(layer.blend);
+                visible.setSelected(layer.visible);
+                // Drags run ahead of the jobs that composite them.
+                if (!opacity.getValueIsAdjusting()) opacity.setValue(layer.opacity);
+            }
+        } finally {
+            updating = false;
+        }
+    }
+
+    private boolean canEdit() {
+        if (canvas.getTiledImage() != null) {
+            JOptionPane.showMessageDialog(this, "Layers are not available for tiled images.");
+            return false;
+        }
+        return !graph.isEmpty();
+    }
+
+    private void addImage() {
+        if (!canEdit()) return;
+        if (imageChooser == null) {
+            imageChooser = new JFileChooser();
+            imageChooser.setFileFilter(new FileNameExtensionFilter("Image Files", "png", "jpg", "jpeg", "bmp", "gif"));
+        }
+        if (imageChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        File file = imageChooser.getSelectedFile();
+        // Decoded as a job, so a large layer image does not block the window; the layer
+        // is inserted when it commits.
+        jobs.submit("Loading " + file.getName(), () -> {
+            JobQueue.Job job = JobQueue.Job.current();
+            job.pass();
+            try {
+                return ImageLoader.read(file, null, p -> job.progress(p / 100.0), job::isCancelled);
+            } catch (IOException ex) {
+                throw new IllegalArgumentException("Cannot read " + file.getName() + ": " + ex.getMessage(), ex);
+            }
+        }, img -> {
+            if (graph.isEmpty()) return;
+            BufferedImage base = canvas.getImage();
+            insert(Layer.image(file.getName(), img,
+                    (base.getWidth() - img.getWidth()) / 2, (base.getHeight() - img.getHeight()) / 2));
+        });
+    }
+
+    private void addAdjustment() {
+        if (!canEdit()) return;
+        String spec = (String) JOptionPane.showInputDialog(this, "Operation, for example levels:10:240 or lut:<file>:",
+                "Adjustment Layer", JOptionPane.PLAIN_MESSAGE, null, null, "adjust:0:20:0");
+        if (spec == null || spec.isBlank()) return;
+        try {
+            insert(Layer.adjustment(spec.trim()));
+        } catch (IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(this, ex.getMessage(), "Adjustment Layer", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    // New layers go right above the selected one, or on top. Indexes are taken now and
+    // clamped to the layers as the queued jobs before this one leave them.
+    private void insert(Layer layer) {
+        int at = selectedIndex() < 0 ? Integer.MAX_VALUE : selectedIndex() + 1;
+        commit("Add layer", layers -> {
+            layers.add(Math.min(at, layers.size()), layer);
+            return layers;
+        }, layers -> layers.indexOf(layer));
+    }
+
+    private void removeLayer() {
+        int index = selectedIndex();
+        if (index < 0 || !canEdit()) return;
+        commit("Remove layer", layers -> {
+            if (index < layers.size()) layers.remove(index);
+            return layers;
+        }, layers -> -1);
+    }
+
+    private void moveLayer(int by) {
+        int index = selectedIndex(), to = index + by;
+        if (index < 0 || to < 0 || to >= model.size() || !canEdit()) return;
+        commit("Move layer", layers -> {
+            if (index < layers.size() && to < layers.size()) layers.add(to, layers.remove(index));
+            return layers;
+        }, layers -> to);
+    }
+
+    private record Edit(int index, UnaryOperator<Layer> edit, boolean adjusting) {}
+
+    private void change(UnaryOperator<Layer> edit, boolean adjusting) {
+        if (!canEdit()) {
+            showSelected();
+            return;
+        }
+        // A queued job takes the newest edit when it runs, so a fast drag does not
+        // queue a composite for every value the slider passed.
+        if (pendingEdit.getAndSet(new Edit(selectedIndex(), edit, adjusting)) != null) return;
+        AtomicReference<Edit> taken = new AtomicReference<>();
+        ToolPanel.submitLayers(jobs, canvas, graph, "Layer", layers -> {
+            Edit e = pendingEdit.getAndSet(null);
+            taken.set(e);
+            if (e.index() >= layers.size()) return layers;
+            List<Layer> next = new ArrayList<>(layers);
+            next.set(e.index(), e.edit().apply(next.get(e.index())));
+            return next;
+        }, dirty -> {
+            if (dirty == null) {
+                dragAll = true;
+            } else if (!dirty.isEmpty()) {
+                dragDirty = dragDirty == null ? dirty : dragDirty.union(dirty);
+            }
+            if (!taken.get().adjusting()) {
+                history.record(canvas.getImage(), dragAll ? null : dragDirty == null ? new Rectangle() : dragDirty,
+                        graph.state());
+                dragDirty = null;
+                dragAll = false;
+            }
+        });
+    }
+
+    // Queues a change of the list of layers as one history state, then selects the
+    // layer at the index {@code selection} finds in the new list.
+    private void commit(String label, UnaryOperator<List<Layer>> change,
+                        ToIntFunction<List<Layer>> selection) {
+        ToolPanel.submitLayers(jobs, canvas, graph, label, layers -> change.apply(new ArrayList<>(layers)), dirty -> {
+            history.record(canvas.getImage(), dirty, graph.state());
+            select(selection.applyAsInt(graph.layers()));
+        });
+    }
+}
@@ -0,0 +1,228 @@
+package PhotoEditor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Times filters, image I/O, history changes and canvas paints. Every measured operation
+ * emits a JFR event (category "PhotoEditor", for example {@code PhotoEditor.FilterApplied})
+ * and is added to per-operation counters and a duration histogram. The aggregates can
+ * be written to a file with {@link #export}, and are written on exit when
+ * {@code -Dphotoeditor.metricsFile} is set.
+ *
+ * <p>Allocation is the JVM-wide number of bytes allocated while the operation ran. For
+ * filters that includes the worker threads, and also anything other threads allocated
+ * at the same time. Paints run on the EDT alone and count only its allocations.
+ */
+final class Metrics {
+    enum Kind { FILTER, OPEN, SAVE, HISTORY, PAINT }
+
+    /** One measured operation. */
+    record Sample(Kind kind, String name, int width, int height, long nanos, long bytes) {
+        double millis() {
+            return nanos / 1e6;
+        }
+    }
+
+    interface Listener {
+        void measured(Sample sample);
+    }
+
+    interface Task<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    // Upper bounds of the duration histogram buckets in milliseconds; the last bucket is open.
+    private static final long[] BUCKETS_MS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024, 2048, 4096};
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+    private static final Map<String, Stat> STATS = new ConcurrentHashMap<>();
+    private static final Map<String, Long> GAUGES = new ConcurrentHashMap<>();
+    private static final List<Listener> LISTENERS = new CopyOnWriteArrayList<>();
+    private static final Instant STARTED = Instant.now();
+
+    static {
+        String file = System.getProperty("photoeditor.metricsFile");
+        if (file != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    export(Path.of(file));
+                } catch (IOException ex) {
+                    System.err.println("Cannot write metrics to " + file + ": " + ex.getMessage());
+                }
+            }, "metrics-export"));
+        }
+    }
+
+    private Metrics() {}
+
+    /** Runs {@code task} as operation {@code name} on a {@code width x height} image and records it. */
+    static <T, E extends Exception> T time(Kind kind, String name, int width, int height, Task<T, E> task) throws E {
+        OperationEvent event = newEvent(kind);
+        event.begin();
+        long bytes0 = allocated(kind);
+        long t0 = System.nanoTime();
+        try {
+            return task.run();
+        } finally {
+            long nanos = System.nanoTime() - t0;
+            long bytes = Math.max(0, allocated(kind) - bytes0);
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = name;
+                event.width = width;
+                event.height = height;
+                event.bytesAllocated = bytes;
+                event.commit();
+            }
+            record(new Sample(kind, name, width, height, nanos, bytes));
+        }
+    }
+
+    /** Sets a named value such as the history footprint; exported alongside the counters. */
+    static void gauge(String name, long value) {
+        GAUGES.put(name, value);
+    }
+
+    static Long gaugeValue(String name) {
+        return GAUGES.get(name);
+    }
+
+    static void addListener(Listener listener) {
+        LISTENERS.add(listener);
+    }
+
+    /** Writes counters, histograms and gauges as CSV, one row per operation. */
+    static void export(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("# PhotoEditor metrics, session started " + STARTED + ", exported " + Instant.now());
+            StringBuilder header = new StringBuilder("kind,operation,count,total_ms,mean_ms,max_ms,allocated_mb,mean_mpix");
+            for (long b : BUCKETS_MS) header.append(",le_").append(b).append("ms");
+            header.append(",gt_").append(BUCKETS_MS[BUCKETS_MS.length - 1]).append("ms");
+            out.println(header);
+            for (Map.Entry<String, Stat> e : new TreeMap<>(STATS).entrySet()) {
+                out.println(e.getValue().csv(e.getKey()));
+            }
+            for (Map.Entry<String, Long> e : new TreeMap<>(GAUGES).entrySet()) {
+                out.println("# gauge " + e.getKey() + "=" + e.getValue());
+            }
+        }
+    }
+
+    private static void record(Sample s) {
+        STATS.computeIfAbsent(s.kind() + "," + s.name(), k -> new Stat()).add(s);
+        for (Listener l : LISTENERS) l.measured(s);
+    }
+
+    private static long allocated(Kind kind) {
+        if (THREADS == null) return 0;
+        return kind == Kind.PAINT ? THREADS.getCurrentThreadAllocatedBytes() : THREADS.getTotalThreadAllocatedBytes();
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                && bean.isThreadAllocatedMemorySupported()) {
+            bean.setThreadAllocatedMemoryEnabled(true);
+            return bean;
+        }
+        return null;
+    }
+
+    private static OperationEvent newEvent(Kind kind) {
+        return switch (kind) {
+            case FILTER -> new FilterApplied();
+            case OPEN -> new ImageOpened();
+            case SAVE -> new ImageSaved();
+            case HISTORY -> new HistoryChanged();
+            case PAINT -> new CanvasPainted();
+        };
+    }
+
+    private static final class Stat {
+        private long count, totalNanos, maxNanos, bytes, pixels;
+        private final long[] histogram = new long[BUCKETS_MS.length + 1];
+
+        synchronized void add(Sample s) {
+            count++;
+            totalNanos += s.nanos();
+            maxNanos = Math.max(maxNanos, s.nanos());
+            bytes += s.bytes();
+            pixels += (long) s.width() * s.height();
+            int b = 0;
+            while (b < BUCKETS_MS.length && s.nanos() > BUCKETS_MS[b] * 1_000_000) b++;
+            histogram[b]++;
+        }
+
+        synchronized String csv(String key) {
+            List<String> cells = new ArrayList<>(List.of(key.split(",", 2)));
+            cells.set(1, '"' + cells.get(1).replace("\"", "\"\"") + '"');
+            cells.add(Long.toString(count));
+            // Locale.ROOT: a decimal comma would split the cell.
+            cells.add(String.format(Locale.ROOT, "%.3f", totalNanos / 1e6));
+            cells.add(String.format(Locale.ROOT, "%.3f", totalNanos / 1e6 / Math.max(1, count)));
+            cells.add(String.format(Locale.ROOT, "%.3f", maxNanos / 1e6));
+            cells.add(String.format(Locale.ROOT, "%.1f", bytes / (1024.0 * 1024.0)));
+            cells.add(String.format(Locale.ROOT, "%.3f", pixels / 1e6 / Math.max(1, count)));
+            for (long h : histogram) cells.add(Long.toString(h));
+            return String.join(",", cells);
+        }
+    }
+
+    @Category("PhotoEditor")
+    abstract static class OperationEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        @Label("Bytes Allocated")
+        @DataAmount
+        long bytesAllocated;
+    }
+
+    @Name("PhotoEditor.FilterApplied")
+    @Label("Filter Applied")
+    @Description("A filter or adjustment applied to an image or a selection")
+    static final class FilterApplied extends OperationEvent {}
+
+    @Name("PhotoEditor.ImageOpened")
+    @Label("Image Opened")
+    static final class ImageOpened extends OperationEvent {}
+
+    @Name("PhotoEditor.ImageSaved")
+    @Label("Image Saved")
+    static final class ImageSaved extends OperationEvent {}
+
+    @Name("PhotoEditor.HistoryChanged")
+    @Label("History Changed")
+    @Description("A state recorded, undone or redone")
+    static final class HistoryChanged extends OperationEvent {}
+
+    @Name("PhotoEditor.CanvasPainted")
+    @Label("Canvas Painted")
+    @Description("One paint of the canvas; width and height are the repainted area")
+    static final class CanvasPainted extends OperationEvent {}
+}
@@ -0,0 +1,199 @@
+package PhotoEditor;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses operation chains such as {@code "rotate:90,brightness:10,sepia"} into a single
+ * {@link Filters.Op}. Steps are separated by commas and parameters by colons;
+ * consecutive point operations are fused by {@link Filters#chain}.
+ */
+final class OpSpec {
+    static final String HELP = String.join("\n",
+            "  grayscale | luma | sepia | blur | sharpen | flipH | flipV | transpose",
+            "  rotate:<degrees> | crop:<x>:<y>:<width>:<height>",
+            "  resize:<width>:<height>[:nearest|bilinear|bicubic|lanczos3|area]",
+            "  adjust:<brightness>:<contrast>:<saturation>",
+            "  brightness:<n> | contrast:<n> | saturation:<n>",
+            "  levels:<black>:<white>[:<gamma>]",
+            "  autolevels[:<clip %>] | autocontrast[:<clip %>]",
+            "  lut:<path to .cube file>, or lut:\"<path>\" when it contains , @ or \" (written as \"\")",
+            "  stroke:brush|eraser|clone:<radius>:<hardness 0-1>:<flow %>:<argb hex>:<dx>:<dy>:<x y x y ...>",
+            "  gaussian:<radius>[:clamp|mirror]",
+            "  unsharp:<radius>:<amount>[:<threshold>[:clamp|mirror]]",
+            "  any step may end in @<x>:<y>:<width>:<height> to apply it to that region only");
+
+    // Percent of pixels clipped at each end by autolevels and autocontrast by default.
+    private static final double AUTO_CLIP = 0.1;
+
+    private OpSpec() {}
+
+    /**
+     * The op name of {@code spec}: the text before its first parameter or region. Used
+     * to label metrics and the status bar, where a full stroke spec would not fit.
+     */
+    static String name(String spec) {
+        int end = spec.length();
+        for (char c : new char[] {':', '@'}) {
+            int i = spec.indexOf(c);
+            if (i >= 0) end = Math.min(end, i);
+        }
+        return spec.substring(0, end).trim();
+    }
+
+    /** The spec of a {@code lut} step for {@code path}, quoted so any path survives parsing. */
+    static String lut(String path) {
+        return "lut:\"" + path.replace("\"", "\"\"") + '"';
+    }
+
+    static Filters.Op parse(String spec) {
+        List<Filters.Op> ops = new ArrayList<>();
+        for (String step : split(spec)) {
+            step = step.trim();
+            if (!step.isEmpty()) ops.add(parseStep(step));
+        }
+        if (ops.isEmpty()) throw new IllegalArgumentException("No operations given");
+        return Filters.chain(ops.toArray(new Filters.Op[0]));
+    }
+
+    // Splits at commas outside double quotes.
+    private static List<String> split(String spec) {
+        List<String> steps = new ArrayList<>();
+        int start = 0;
+        for (int i = indexOutsideQuotes(spec, ',', 0); i >= 0; i = indexOutsideQuotes(spec, ',', start)) {
+            steps.add(spec.substring(start, i));
+            start = i + 1;
+        }
+        steps.add(spec.substring(start));
+        return steps;
+    }
+
+    // The first c at or after from that is not inside a double-quoted string, or -1.
+    private static int indexOutsideQuotes(String s, char c, int from) {
+        boolean quoted = false;
+        for (int i = from; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch == '"') quoted = !quoted;
+            else if (ch == c && !quoted) return i;
+        }
+        return -1;
+    }
+
+    private static Filters.Op parseStep(String step) {
+        int at = indexOutsideQuotes(step, '@', 0);
+        if (at >= 0) {
+            String[] r = ("region:" + step.substring(at + 1)).split(":");
+            arity(r, 4, null);
+            Rectangle roi = new Rectangle(integer(r, 1), integer(r, 2), integer(r, 3), integer(r, 4));
+            return Filters.region(roi, parseStep(step.substring(0, at).trim()));
+        }
+        if (step.regionMatches(true, 0, "lut:", 0, 4)) return cubeLut(step.substring(4).trim());
+        String[] p = step.split(":");
+        String name = p[0].toLowerCase();
+        switch (name) {
+            case "grayscale": return arity(p, 0, Filters.local(0, Filters::toGrayscale));
+            case "luma": return arity(p, 0, Filters.grayscale());
+            case "sepia": return arity(p, 0, Filters.sepia());
+            case "blur": return arity(p, 0, Filters.local(1, Filters::blur3x3));
+            case "sharpen": return arity(p, 0, Filters.local(1, Filters::sharpen3x3));
+            case "fliph": return arity(p, 0, Orthogonal.FLIP_H);
+            case "flipv": return arity(p, 0, Orthogonal.FLIP_V);
+            case "transpose": return arity(p, 0, Orthogonal.TRANSPOSE);
+            case "rotate": return arity(p, 1, Filters.rotation(number(p, 1)));
+            case "crop": {
+                Rectangle r = new Rectangle(integer(p, 1), integer(p, 2), integer(p, 3), integer(p, 4));
+                return arity(p, 4, img -> Filters.crop(img, r));
+            }
+            case "resize": {
+                Resampler.Kernel kernel = p.length > 3 ? kernel(p[3]) : Resampler.Kernel.LANCZOS3;
+                return arity(p, p.length > 3 ? 3 : 2, Filters.resize(integer(p, 1), integer(p, 2), kernel));
+            }
+            case "adjust":
+                return arity(p, 3, Filters.brightnessContrast(integer(p, 1), integer(p, 2))
+                        .fuse(Filters.saturation(integer(p, 3))));
+            case "brightness": return arity(p, 1, Filters.brightnessContrast(integer(p, 1), 0));
+            case "contrast": return arity(p, 1, Filters.brightnessContrast(0, integer(p, 1)));
+            case "saturation": return arity(p, 1, Filters.saturation(integer(p, 1)));
+            case "levels": {
+                double gamma = p.length > 3 ? number(p, 3) : 1.0;
+                if (p.length == 3) return Filters.levels(integer(p, 1), integer(p, 2), gamma);
+                return arity(p, 3, Filters.levels(integer(p, 1), integer(p, 2), gamma));
+            }
+            case "autolevels":
+                return arity(p, p.length > 1 ? 1 : 0, Filters.autoLevels(p.length > 1 ? number(p, 1) : AUTO_CLIP));
+            case "autocontrast":
+                return arity(p, p.length > 1 ? 1 : 0, Filters.autoContrast(p.length > 1 ? number(p, 1) : AUTO_CLIP));
+            case "gaussian": {
+                double radius = number(p, 1);
+                BoxBlur.Edge edge = p.length > 2 ? edge(p[2]) : BoxBlur.Edge.CLAMP;
+                return arity(p, p.length > 2 ? 2 : 1, Filters.local(Filters.blurSupport(radius),
+                        img -> Filters.gaussianBlur(img, radius, edge)));
+            }
+            case "stroke": return Stroke.parse(p);
+            case "unsharp": {
+                double radius = number(p, 1), amount = number(p, 2);
+                int threshold = p.length > 3 ? integer(p, 3) : 0;
+                BoxBlur.Edge edge = p.length > 4 ? edge(p[4]) : BoxBlur.Edge.CLAMP;
+                if (p.length > 5) throw new IllegalArgumentException("unsharp takes at most 4 parameters");
+                return Filters.local(Filters.blurSupport(radius),
+                        img -> Filters.unsharpMask(img, radius, amount, threshold, edge));
+            }
+            default:
+                throw new IllegalArgumentException("Unknown operation: " + p[0]);
+        }
+    }
+
+    // The path may itself contain colons, so it is everything after "lut:"; a quoted
+    // path may also contain commas and @, and doubles any quotes.
+    private static Filters.Op cubeLut(String path) {
+        if (path.length() >= 2 && path.startsWith("\"") && path.endsWith("\"")) {
+            path = path.substring(1, path.length() - 1).replace("\"\"", "\"");
+        }
+        if (path.isEmpty()) throw new IllegalArgumentException("lut is missing the .cube file");
+        try {
+            return PointOp.cube(CubeLut.load(Path.of(path)));
+        } catch (IOException | InvalidPathException ex) {
+            throw new IllegalArgumentException("Cannot read LUT " + path + ": " + ex.getMessage());
+        }
+    }
+
+    private static Resampler.Kernel kernel(String name) {
+        try {
+            return Resampler.Kernel.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unknown resize kernel: " + name);
+        }
+    }
+
+    private static BoxBlur.Edge edge(String name) {
+        try {
+            return BoxBlur.Edge.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unknown edge mode: " + name);
+        }
+    }
+
+    private static Filters.Op arity(String[] p, int params, Filters.Op op) {
+        if (p.length - 1 != params) {
+            throw new IllegalArgumentException(p[0] + " takes " + params + " parameter(s)");
+        }
+        return op;
+    }
+
+    private static int integer(String[] p, int i) {
+        return (int) number(p, i);
+    }
+
+    private static double number(String[] p, int i) {
+        if (i >= p.length) throw new IllegalArgumentException(p[0] + " is missing parameter " + i);
+        try {
+            return Double.parseDouble(p[i]);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Bad number for " + p[0] + ": " + p[i]);
+        }
+    }
+}
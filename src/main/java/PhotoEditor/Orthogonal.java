@@ -0,0 +1,194 @@
+package PhotoEditor;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Lossless rotations by multiples of 90 degrees, transpose and flips. Pixels are only
+ * moved, never resampled. The transforms that swap width and height walk the output
+ * in square blocks, so the column-order reads from the source stay in cache. All
+ * transforms can also run in place on a region whose shape they keep: the flips and
+ * 180 degrees always, the others when the region is square.
+ */
+enum Orthogonal implements Filters.Op {
+    FLIP_H(false), FLIP_V(false), ROTATE_180(false),
+    /** Clockwise, as {@link Filters#rotate} with a positive angle. */
+    ROTATE_90(true),
+    ROTATE_270(true),
+    TRANSPOSE(true);
+
+    private static final int BLOCK = 64;
+
+    private final boolean swapsAxes;
+
+    Orthogonal(boolean swapsAxes) {
+        this.swapsAxes = swapsAxes;
+    }
+
+    /** The transform for {@code radians} when it is a non-zero multiple of 90 degrees, else null. */
+    static Orthogonal forAngle(double radians) {
+        double quarters = radians / (Math.PI / 2);
+        long k = Math.round(quarters);
+        if (Math.abs(quarters - k) > 1e-9) return null;
+        return switch ((int) Math.floorMod(k, 4L)) {
+            case 1 -> ROTATE_90;
+            case 2 -> ROTATE_180;
+            case 3 -> ROTATE_270;
+            default -> null;
+        };
+    }
+
+    boolean keepsSize(int w, int h) {
+        return !swapsAxes || w == h;
+    }
+
+    @Override
+    public BufferedImage apply(BufferedImage src) {
+        int w = src.getWidth(), h = src.getHeight();
+        int[] s;
+        int sOff, ss;
+        if (Pixels.isDirect(src)) {
+            s = Pixels.data(src);
+            sOff = Pixels.offset(src, 0, 0);
+            ss = Pixels.stride(src);
+        } else {
+            s = new int[w * h];
+            Pixels.read(src, 0, 0, w, h, s);
+            sOff = 0;
+            ss = w;
+        }
+        int dw = swapsAxes ? h : w, dh = swapsAxes ? w : h;
+        BufferedImage out = new BufferedImage(dw, dh, BufferedImage.TYPE_INT_ARGB);
+        int[] d = Pixels.data(out);
+        if (swapsAxes) {
+            TileScheduler.shared().forEachBand(dh, BLOCK, (y0, y1) -> transposed(s, sOff, ss, w, h, d, dw, y0, y1));
+        } else {
+            TileScheduler.shared().forEachBand(dh, (y0, y1) -> mirrored(s, sOff, ss, w, h, d, y0, y1));
+        }
+        return out;
+    }
+
+    /** Transforms the part of {@code img} inside {@code r} in place; see {@link #keepsSize}. */
+    void applyInPlace(BufferedImage img, Rectangle r) {
+        if (!keepsSize(r.width, r.height)) {
+            throw new IllegalArgumentException(this + " needs a square region to run in place");
+        }
+        int[] d;
+        int off, stride;
+        boolean direct = Pixels.isDirect(img);
+        if (direct) {
+            d = Pixels.data(img);
+            off = Pixels.offset(img, r.x, r.y);
+            stride = Pixels.stride(img);
+        } else {
+            d = new int[r.width * r.height];
+            Pixels.read(img, r.x, r.y, r.width, r.height, d);
+            off = 0;
+            stride = r.width;
+        }
+        int w = r.width, h = r.height;
+        switch (this) {
+            case FLIP_H -> reverseRows(d, off, stride, w, h);
+            case FLIP_V -> swapRows(d, off, stride, w, h, false);
+            case ROTATE_180 -> {
+                swapRows(d, off, stride, w, h, true);
+                if (h % 2 == 1) reverse(d, off + (h / 2) * stride, w);
+            }
+            case TRANSPOSE -> transposeInPlace(d, off, stride, w);
+            case ROTATE_90 -> {
+                transposeInPlace(d, off, stride, w);
+                reverseRows(d, off, stride, w, h);
+            }
+            case ROTATE_270 -> {
+                transposeInPlace(d, off, stride, w);
+                swapRows(d, off, stride, w, h, false);
+            }
+        }
+        if (!direct) Pixels.write(img, r.x, r.y, w, h, d);
+    }
+
+    // Output rows y0..y1 of a flip or 180 degree rotation.
+    private void mirrored(int[] s, int sOff, int ss, int w, int h, int[] d, int y0, int y1) {
+        for (int y = y0; y < y1; y++) {
+            int sy = this == FLIP_H ? y : h - 1 - y;
+            int si = sOff + sy * ss, di = y * w;
+            if (this == FLIP_V) {
+                System.arraycopy(s, si, d, di, w);
+            } else {
+                for (int x = 0, sx = si + w - 1; x < w; x++, sx--) d[di + x] = s[sx];
+            }
+        }
+    }
+
+    // Output rows y0..y1 of a transform that swaps the axes, filled block by block. Output (x, y) comes from source column y, row x, mirrored
+    // as the transform requires.
+    private void transposed(int[] s, int sOff, int ss, int w, int h, int[] d, int dw, int y0, int y1) {
+        for (int by = y0; by < y1; by += BLOCK) {
+            int ey = Math.min(by + BLOCK, y1);
+            for (int bx = 0; bx < dw; bx += BLOCK) {
+                int ex = Math.min(bx + BLOCK, dw);
+                for (int y = by; y < ey; y++) {
+                    int sx = this == ROTATE_270 ? w - 1 - y : y;
+                    int di = y * dw;
+                    if (this == ROTATE_90) {
+                        for (int x = bx; x < ex; x++) d[di + x] = s[sOff + (h - 1 - x) * ss + sx];
+                    } else {
+                        for (int x = bx; x < ex; x++) d[di + x] = s[sOff + x * ss + sx];
+                    }
+                }
+            }
+        }
+    }
+
+    // Swaps the blocks above the diagonal with their mirror images below it.
+    private static void transposeInPlace(int[] d, int off, int stride, int n) {
+        int blocks = (n + BLOCK - 1) / BLOCK;
+        TileScheduler.shared().forEachBand(blocks, 1, (b0, b1) -> {
+            for (int bi = b0; bi < b1; bi++) {
+                int y0 = bi * BLOCK, y1 = Math.min(y0 + BLOCK, n);
+                for (int x0 = y0; x0 < n; x0 += BLOCK) {
+                    int x1 = Math.min(x0 + BLOCK, n);
+                    for (int y = y0; y < y1; y++) {
+                        for (int x = Math.max(x0, y + 1); x < x1; x++) {
+                            int a = off + y * stride + x, b = off + x * stride + y;
+                            int t = d[a];
+                            d[a] = d[b];
+                            d[b] = t;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private static void reverse(int[] d, int i, int len) {
+        for (int a = i, b = i + len - 1; a < b; a++, b--) {
+            int t = d[a];
+            d[a] = d[b];
+            d[b] = t;
+        }
+    }
+
+    private static void reverseRows(int[] d, int off, int stride, int w, int h) {
+        TileScheduler.shared().forEachBand(h, (y0, y1) -> {
+            for (int y = y0; y < y1; y++) reverse(d, off + y * stride, w);
+        });
+    }
+
+    // Swaps row y with row h-1-y, also reversing both for a 180 degree turn.
+    private static void swapRows(int[] d, int off, int stride, int w, int h, boolean reversed) {
+        TileScheduler.shared().forEachBand(h / 2, (y0, y1) -> {
+            int[] tmp = new int[w];
+            for (int y = y0; y < y1; y++) {
+                int a = off + y * stride, b = off + (h - 1 - y) * stride;
+                System.arraycopy(d, a, tmp, 0, w);
+                System.arraycopy(d, b, d, a, w);
+                System.arraycopy(tmp, 0, d, b, w);
+                if (reversed) {
+                    reverse(d, a, w);
+                    reverse(d, b, w);
+                }
+            }
+        });
+    }
+}
@@ -4,6 +4,10 @@ import javax.swing.*;
 
 public class PhotoEditorApp{
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--batch")) {
+            System.setProperty("java.awt.headless", "true");
+            System.exit(BatchProcessor.run(args));
+        }
         SwingUtilities.invokeLater(() -> {
             try {
                 UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
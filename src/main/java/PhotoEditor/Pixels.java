@@ -0,0 +1,86 @@
+package PhotoEditor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Row-level pixel access. {@code TYPE_INT_ARGB} images backed by a single
+ * {@link DataBufferInt} are read and written in place on their backing array;
+ * every other raster type goes through one reusable row buffer and
+ * {@code getRGB}/{@code setRGB}.
+ */
+final class Pixels {
+    interface RowOp {
+        void apply(int[] src, int srcOff, int[] dst, int dstOff, int len);
+    }
+
+    private Pixels() {}
+
+    static boolean isDirect(BufferedImage img) {
+        return img.getType() == BufferedImage.TYPE_INT_ARGB
+                && img.getRaster().getDataBuffer() instanceof DataBufferInt db
+                && db.getNumBanks() == 1
+                && img.getRaster().getSampleModel() instanceof SinglePixelPackedSampleModel;
+    }
+
+    static int[] data(BufferedImage img) {
+        return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+    }
+
+    static int offset(BufferedImage img, int x, int y) {
+        WritableRaster r = img.getRaster();
+        return r.getDataBuffer().getOffset()
+                + (y - r.getSampleModelTranslateY()) * stride(img)
+                + (x - r.getSampleModelTranslateX());
+    }
+
+    static int stride(BufferedImage img) {
+        return ((SinglePixelPackedSampleModel) img.getRaster().getSampleModel()).getScanlineStride();
+    }
+
+    /** Runs {@code op} over rows {@code y0..y1} of {@code src}, writing the same rows of {@code dst}. */
+    static void mapRows(BufferedImage src, BufferedImage dst, int y0, int y1, RowOp op) {
+        int w = src.getWidth();
+        if (isDirect(src) && isDirect(dst)) {
+            int[] s = data(src), d = data(dst);
+            int ss = stride(src), ds = stride(dst);
+            int so = offset(src, 0, y0), dOff = offset(dst, 0, y0);
+            for (int y = y0; y < y1; y++, so += ss, dOff += ds) {
+                op.apply(s, so, d, dOff, w);
+            }
+            return;
+        }
+        int[] row = new int[w];
+        for (int y = y0; y < y1; y++) {
+            src.getRGB(0, y, w, 1, row, 0, w);
+            op.apply(row, 0, row, 0, w);
+            dst.setRGB(0, y, w, 1, row, 0, w);
+        }
+    }
+
+    static void read(BufferedImage img, int x, int y, int w, int h, int[] out) {
+        if (!isDirect(img)) {
+            img.getRGB(x, y, w, h, out, 0, w);
+            return;
+        }
+        int[] d = data(img);
+        int stride = stride(img);
+        for (int row = 0, o = offset(img, x, y); row < h; row++, o += stride) {
+            System.arraycopy(d, o, out, row * w, w);
+        }
+    }
+
+    static void write(BufferedImage img, int x, int y, int w, int h, int[] in) {
+        if (!isDirect(img)) {
+            img.setRGB(x, y, w, h, in, 0, w);
+            return;
+        }
+        int[] d = data(img);
+        int stride = stride(img);
+        for (int row = 0, o = offset(img, x, y); row < h; row++, o += stride) {
+            System.arraycopy(in, row * w, d, o, w);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package PhotoEditor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes 8-bit RGB or RGBA PNG files, deflating blocks of rows in parallel in the way
+ * pigz does. Every block is compressed as a raw deflate stream primed with the last
+ * 32 KB of filtered data before it and ended with a sync flush, so the blocks
+ * concatenate into one valid zlib stream; their Adler-32 checksums are combined at
+ * the end. Blocks are encoded a batch at a time and written to the channel in order,
+ * so memory stays bounded by one batch of blocks rather than the whole file.
+ */
+final class PngEncoder {
+    /** PNG row filters; ADAPTIVE picks the filter per row by the minimum sum of absolute differences. */
+    enum Filter { NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE }
+
+    /** Reads {@code rows} full rows starting at {@code y} into {@code out}, packed ARGB. */
+    interface Rows {
+        void read(int y, int rows, int[] out);
+    }
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int BLOCK_BYTES = 256 * 1024;
+    private static final int WINDOW = 32 * 1024;
+    private static final int BLOCKS_PER_THREAD = 4;
+
+    private final int width, height, bpp, rowBytes, blockRows, dictRows;
+    private final boolean alpha;
+    private final ExportOptions options;
+
+    private PngEncoder(int width, int height, boolean alpha, ExportOptions options) {
+        this.width = width;
+        this.height = height;
+        this.alpha = alpha;
+        this.options = options;
+        bpp = alpha ? 4 : 3;
+        rowBytes = 1 + width * bpp;
+        blockRows = Math.max(1, BLOCK_BYTES / rowBytes);
+        dictRows = (WINDOW + rowBytes - 1) / rowBytes;
+    }
+
+    static void write(Rows src, int width, int height, boolean alpha, ExportOptions options,
+                      WritableByteChannel out, IntConsumer progress, BooleanSupplier cancelled) throws IOException {
+        new PngEncoder(width, height, alpha, options).encode(src, out, progress, cancelled);
+    }
+
+    private void encode(Rows src, WritableByteChannel out, IntConsumer progress,
+                        BooleanSupplier cancelled) throws IOException {
+        put(out, ByteBuffer.wrap(SIGNATURE));
+        ByteBuffer ihdr = ByteBuffer.allocate(13)
+                .putInt(width).putInt(height)
+                .put((byte) 8).put((byte) (alpha ? 6 : 2)).put((byte) 0).put((byte) 0).put((byte) 0);
+        chunk(out, "IHDR", ihdr.array());
+
+        int blocks = (height + blockRows - 1) / blockRows;
+        int batch = Math.max(1, TileScheduler.shared().parallelism() * BLOCKS_PER_THREAD);
+        byte[][] packed = new byte[batch][];
+        long[] adlers = new long[batch];
+        long adler = 1;
+        for (int b0 = 0; b0 < blocks; b0 += batch) {
+            if (cancelled.getAsBoolean()) throw new CancellationException();
+            int first = b0, n = Math.min(batch, blocks - b0);
+            TileScheduler.shared().forEachBand(n, 1, (i0, i1) -> {
+                for (int i = i0; i < i1; i++) {
+                    Block block = deflate(src, first + i, first + i == blocks - 1);
+                    packed[i] = block.data;
+                    adlers[i] = block.adler;
+                }
+            });
+            for (int i = 0; i < n; i++) {
+                int index = b0 + i;
+                int y0 = index * blockRows, rows = Math.min(blockRows, height - y0);
+                adler = combine(adler, adlers[i], (long) rows * rowBytes);
+                byte[] head = index == 0 ? zlibHeader() : new byte[0];
+                byte[] tail = index == blocks - 1 ? ByteBuffer.allocate(4).putInt((int) adler).array() : new byte[0];
+                chunk(out, "IDAT", head, packed[i], tail);
+                packed[i] = null;
+            }
+            progress.accept((int) (100L * Math.min(blocks, b0 + n) / blocks));
+        }
+        chunk(out, "IEND");
+    }
+
+    private record Block(byte[] data, long adler) {}
+
+    private Block deflate(Rows src, int index, boolean last) {
+        int y0 = index * blockRows, y1 = Math.min(height, y0 + blockRows);
+        // Rows before the block are filtered again only to rebuild the dictionary, and
+        // one more raw row is read as the "previous row" of the first filtered one.
+        int f0 = Math.max(0, y0 - dictRows), r0 = Math.max(0, f0 - 1);
+        int[] px = new int[(y1 - r0) * width];
+        src.read(r0, y1 - r0, px);
+        byte[] filtered = new byte[(y1 - f0) * rowBytes];
+        RowFilter rf = new RowFilter();
+        for (int y = f0; y < y1; y++) {
+            int cur = (y - r0) * width;
+            rf.filter(px, cur, y > 0 ? cur - width : -1, filtered, (y - f0) * rowBytes);
+        }
+        int start = (y0 - f0) * rowBytes, len = filtered.length - start;
+
+        Deflater deflater = new Deflater(options.pngLevel(), true);
+        if (options.pngFilter() != Filter.NONE) deflater.setStrategy(Deflater.FILTERED);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(len / 2 + 64);
+        try {
+            if (start > 0) {
+                int dict = Math.min(WINDOW, start);
+                deflater.setDictionary(filtered, start - dict, dict);
+            }
+            deflater.setInput(filtered, start, len);
+            byte[] buf = new byte[64 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.write(buf, 0, deflater.deflate(buf));
+                }
+            } else {
+                // A call can also return early after applying the strategy, with input left.
+                int n;
+                do {
+                    n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    out.write(buf, 0, n);
+                } while (n == buf.length || !deflater.needsInput());
+            }
+        } finally {
+            deflater.end();
+        }
+        Adler32 sum = new Adler32();
+        sum.update(filtered, start, len);
+        return new Block(out.toByteArray(), sum.getValue());
+    }
+
+    // Filters rows top to bottom, reusing each unpacked row as the next one's previous
+    // row; the candidate buffers are only used by ADAPTIVE.
+    private final class RowFilter {
+        private byte[] raw = new byte[width * bpp], prev = new byte[width * bpp];
+        private final byte[][] candidates = options.pngFilter() == Filter.ADAPTIVE
+                ? new byte[5][width * bpp] : null;
+        private int last = -1;
+
+        void filter(int[] px, int cur, int above, byte[] out, int off) {
+            if (above >= 0 && above == last) {
+                byte[] t = prev;
+                prev = raw;
+                raw = t;
+            } else if (above >= 0) {
+                unpack(px, above, prev);
+            } else {
+                Arrays.fill(prev, (byte) 0);
+            }
+            unpack(px, cur, raw);
+            last = cur;
+            Filter f = options.pngFilter();
+            if (f != Filter.ADAPTIVE) {
+                out[off] = (byte) f.ordinal();
+                apply(f, out, off + 1);
+                return;
+            }
+            long best = Long.MAX_VALUE;
+            int pick = 0;
+            for (int k = 0; k < 5; k++) {
+                byte[] c = candidates[k];
+                apply(Filter.values()[k], c, 0);
+                long sum = 0;
+                for (byte v : c) sum += Math.abs(v);
+                if (sum < best) {
+                    best = sum;
+                    pick = k;
+                }
+            }
+            out[off] = (byte) pick;
+            System.arraycopy(candidates[pick], 0, out, off + 1, raw.length);
+        }
+
+        private void unpack(int[] px, int off, byte[] dst) {
+            for (int x = 0, o = 0; x < width; x++) {
+                int p = px[off + x];
+                dst[o++] = (byte) (p >> 16);
+                dst[o++] = (byte) (p >> 8);
+                dst[o++] = (byte) p;
+                if (alpha) dst[o++] = (byte) (p >>> 24);
+            }
+        }
+
+        private void apply(Filter f, byte[] out, int off) {
+            int n = raw.length;
+            switch (f) {
+                case NONE -> System.arraycopy(raw, 0, out, off, n);
+                case SUB -> {
+                    for (int i = 0; i < n; i++) {
+                        out[off + i] = (byte) (raw[i] - (i >= bpp ? raw[i - bpp] : 0));
+                    }
+                }
+                case UP -> {
+                    for (int i = 0; i < n; i++) out[off + i] = (byte) (raw[i] - prev[i]);
+                }
+                case AVERAGE -> {
+                    for (int i = 0; i < n; i++) {
+                        int left = i >= bpp ? raw[i - bpp] & 0xFF : 0;
+                        out[off + i] = (byte) (raw[i] - ((left + (prev[i] & 0xFF)) >> 1));
+                    }
+                }
+                case PAETH -> {
+                    for (int i = 0; i < n; i++) {
+                        int a = i >= bpp ? raw[i - bpp] & 0xFF : 0;
+                        int b = prev[i] & 0xFF;
+                        int c = i >= bpp ? prev[i - bpp] & 0xFF : 0;
+                        out[off + i] = (byte) (raw[i] - paeth(a, b, c));
+                    }
+                }
+                default -> throw new IllegalStateException();
+            }
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+
+    // CMF 0x78 (deflate, 32 KB window) with the FLEVEL hint zlib would use for the level.
+    private byte[] zlibHeader() {
+        int level = options.pngLevel();
+        int flevel = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        int cmf = 0x78, flg = flevel << 6;
+        flg += 31 - ((cmf << 8) + flg) % 31;
+        return new byte[]{(byte) cmf, (byte) flg};
+    }
+
+    // adler32_combine from zlib: the checksum of A followed by B from those of A and B.
+    static long combine(long adler1, long adler2, long len2) {
+        final long base = 65521;
+        long rem = len2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= base << 1) sum2 -= base << 1;
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+    // One chunk whose data is the concatenation of parts.
+    private static void chunk(WritableByteChannel out, String type, byte[]... parts) throws IOException {
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        int len = 0;
+        for (byte[] part : parts) {
+            crc.update(part);
+            len += part.length;
+        }
+        put(out, ByteBuffer.allocate(8).putInt(len).put(name).flip());
+        for (byte[] part : parts) put(out, ByteBuffer.wrap(part));
+        put(out, ByteBuffer.allocate(4).putInt((int) crc.getValue()).flip());
+    }
+
+    private static void put(WritableByteChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) out.write(buf);
+    }
+}
@@ -0,0 +1,359 @@
+package PhotoEditor;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A per-pixel operation that leaves alpha untouched. Consecutive point ops fuse into
+ * one pass. Adjacent per-channel lookup tables compose into a single 256-entry table,
+ * and adjacent colour matrices multiply into one matrix. Whatever remains runs stage
+ * by stage over a cache-sized chunk of each row, so every pixel is loaded from memory
+ * once however long the chain is.
+ *
+ * <p>Composed lookup tables are exact. A composed matrix skips the truncation and
+ * clamping between the two original matrices, so it is only formed when the first
+ * matrix cannot leave the 0..255 range. It may still differ from running both
+ * matrices in turn by the rounding of one intermediate step, at most one or two levels.
+ *
+ * <p>When the JVM runs with {@code --add-modules jdk.incubator.vector}, the stages use
+ * the SIMD kernels in {@link VectorKernels}; {@code -Dphotoeditor.simd=false} keeps the
+ * scalar loops. Tables and saturation give identical results either way; matrices may
+ * differ by one level per channel.
+ */
+final class PointOp implements Filters.Op {
+    private static final int CHUNK = 1024;
+    private static final Kernels VECTOR = loadVectorKernels();
+    private static volatile boolean vectorized = VECTOR != null
+            && !"false".equals(System.getProperty("photoeditor.simd"));
+
+    /** Whole-vector implementations of the stages; each returns how many pixels it did. */
+    interface Kernels {
+        String describe();
+
+        int lut(int[] r, int[] g, int[] b, int[] src, int srcOff, int[] dst, int dstOff, int len);
+
+        int matrix(float[] m, int[] src, int srcOff, int[] dst, int dstOff, int len);
+
+        int saturation(float factor, int[] src, int srcOff, int[] dst, int dstOff, int len);
+    }
+
+    private final Stage[] stages;
+
+    private PointOp(Stage... stages) {
+        this.stages = stages;
+    }
+
+    static PointOp lut(int[] all) {
+        return lut(all, all, all);
+    }
+
+    static PointOp lut(int[] r, int[] g, int[] b) {
+        return new PointOp(new Lut(r.clone(), g.clone(), b.clone()));
+    }
+
+    /** Row-major 3x4 matrix: out = (int) (m[0..2] . rgb + m[3]) per channel, then clamped. */
+    static PointOp matrix(double... m) {
+        if (m.length != 12) throw new IllegalArgumentException("Expected a 3x4 matrix");
+        return new PointOp(new Matrix(m.clone()));
+    }
+
+    /** Scales HSB saturation by {@code factor}, exactly as {@link Filters#scaleSaturation}. */
+    static PointOp saturation(float factor) {
+        return new PointOp(new Saturation(factor));
+    }
+
+    /** Maps colours through a 3D table; a lookup table right before it is folded into its input. */
+    static PointOp cube(CubeLut lut) {
+        int[] identity = new int[256];
+        for (int v = 0; v < 256; v++) identity[v] = v;
+        return new PointOp(new Cube(lut, identity, identity, identity));
+    }
+
+    /** A general colour function from opaque RGB to RGB; the alpha of its result is ignored. */
+    static PointOp pixel(IntUnaryOperator f) {
+        return new PointOp(new Pixel(f));
+    }
+
+    /** Fuses consecutive point ops in {@code ops}; anything else runs as its own pass. */
+    static Filters.Op chain(Filters.Op... ops) {
+        List<Filters.Op> passes = new ArrayList<>();
+        for (Filters.Op op : ops) {
+            int last = passes.size() - 1;
+            if (op instanceof PointOp p && last >= 0 && passes.get(last) instanceof PointOp prev) {
+                passes.set(last, prev.fuse(p));
+            } else {
+                passes.add(op);
+            }
+        }
+        if (passes.size() == 1) return passes.get(0);
+        int halo = 0;
+        for (Filters.Op op : passes) {
+            halo = op.halo() < 0 || halo < 0 ? -1 : halo + op.halo();
+        }
+        return Filters.local(halo, src -> {
+            BufferedImage img = src;
+            for (Filters.Op op : passes) img = op.apply(img);
+            return img;
+        });
+    }
+
+    PointOp fuse(PointOp next) {
+        List<Stage> out = new ArrayList<>(Arrays.asList(stages));
+        for (Stage s : next.stages) {
+            Stage tail = out.isEmpty() ? null : out.get(out.size() - 1);
+            Stage merged = tail == null ? null : tail.compose(s);
+            if (merged != null) {
+                out.set(out.size() - 1, merged);
+            } else {
+                out.add(s);
+            }
+        }
+        return new PointOp(out.toArray(new Stage[0]));
+    }
+
+    @Override
+    public int halo() {
+        return 0;
+    }
+
+    int stageCount() {
+        return stages.length;
+    }
+
+    /** Whether the SIMD kernels are in use, and their vector shape. */
+    static String kernelInfo() {
+        if (VECTOR == null) return "scalar (jdk.incubator.vector not available)";
+        return vectorized ? "vector, " + VECTOR.describe() : "scalar";
+    }
+
+    /** Switches between the SIMD kernels, when available, and the scalar loops. */
+    static void setVectorized(boolean on) {
+        vectorized = on && VECTOR != null;
+    }
+
+    // The kernels are referenced only by name, so VectorKernels and the incubator
+    // classes are never loaded unless the module was resolved at startup.
+    private static Kernels loadVectorKernels() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) return null;
+        try {
+            return (Kernels) Class.forName("PhotoEditor.VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return null;
+        }
+    }
+
+    private static Kernels kernels() {
+        return vectorized ? VECTOR : null;
+    }
+
+    @Override
+    public BufferedImage apply(BufferedImage src) {
+        BufferedImage out = Utils.createCompatible(src);
+        TileScheduler.shared().forEachBand(src.getHeight(), (y0, y1) ->
+                Pixels.mapRows(src, out, y0, y1, this::applyRow));
+        return out;
+    }
+
+    void applyRow(int[] src, int srcOff, int[] dst, int dstOff, int len) {
+        for (int x = 0; x < len; x += CHUNK) {
+            int n = Math.min(CHUNK, len - x);
+            Kernels k = kernels();
+            stages[0].run(k, src, srcOff + x, dst, dstOff + x, n);
+            for (int i = 1; i < stages.length; i++) {
+                stages[i].run(k, dst, dstOff + x, dst, dstOff + x, n);
+            }
+        }
+    }
+
+    private abstract static class Stage {
+        // Whole vectors through the SIMD kernels when enabled, the rest through apply.
+        final void run(Kernels k, int[] src, int srcOff, int[] dst, int dstOff, int len) {
+            int done = k == null ? 0 : vector(k, src, srcOff, dst, dstOff, len);
+            if (done < len) apply(src, srcOff + done, dst, dstOff + done, len - done);
+        }
+
+        abstract void apply(int[] src, int srcOff, int[] dst, int dstOff, int len);
+
+        int vector(Kernels k, int[] src, int srcOff, int[] dst, int dstOff, int len) {
+            return 0;
+        }
+
+        Stage compose(Stage next) {
+            return null;
+        }
+    }
+
+    private static final class Lut extends Stage {
+        final int[] r, g, b;
+
+        Lut(int[] r, int[] g, int[] b) {
+            this.r = r;
+            this.g = g;
+            this.b = b;
+        }
+
+        @Override
+        void apply(int[] src, int srcOff, int[] dst, int dstOff, int len) {
+            for (int i = 0; i < len; i++) {
+                int p = src[srcOff + i];
+                dst[dstOff + i] = (p & 0xFF000000)
+                        | (r[(p >>> 16) & 0xFF] << 16)
+                        | (g[(p >>> 8) & 0xFF] << 8)
+                        | b[p & 0xFF];
+            }
+        }
+
+        @Override
+        int vector(Kernels k, int[] src, int srcOff, int[] dst, int dstOff, int len) {
+            return k.lut(r, g, b, src, srcOff, dst, dstOff, len);
+        }
+
+        @Override
+        Stage compose(Stage next) {
+            if (next instanceof Cube c) {
+                int[] cr = new int[256], cg = new int[256], cb = new int[256];
+                for (int v = 0; v < 256; v++) {
+                    cr[v] = c.r[r[v]];
+                    cg[v] = c.g[g[v]];
+                    cb[v] = c.b[b[v]];
+                }
+                return new Cube(c.lut, cr, cg, cb);
+            }
+            if (!(next instanceof Lut n)) return null;
+            int[] cr = new int[256], cg = new int[256], cb = new int[256];
+            for (int v = 0; v < 256; v++) {
+                cr[v] = n.r[r[v]];
+                cg[v] = n.g[g[v]];
+                cb[v] = n.b[b[v]];
+            }
+            return new Lut(cr, cg, cb);
+        }
+    }
+
+    private static final class Matrix extends Stage {
+        final double[] m;
+        final float[] mf;
+
+        Matrix(double[] m) {
+            this.m = m;
+            this.mf = new float[m.length];
+            for (int i = 0; i < m.length; i++) mf[i] = (float) m[i];
+        }
+
+        @Override
+        void apply(int[] src, int srcOff, int[] dst, int dstOff, int len) {
+            double m0 = m[0], m1 = m[1], m2 = m[2], m3 = m[3];
+            double m4 = m[4], m5 = m[5], m6 = m[6], m7 = m[7];
+            double m8 = m[8], m9 = m[9], m10 = m[10], m11 = m[11];
+            for (int i = 0; i < len; i++) {
+                int p = src[srcOff + i];
+                int r = (p >>> 16) & 0xFF;
+                int g = (p >>> 8) & 0xFF;
+                int b = p & 0xFF;
+                int tr = Utils.clamp((int) (m0 * r + m1 * g + m2 * b + m3));
+                int tg = Utils.clamp((int) (m4 * r + m5 * g + m6 * b + m7));
+                int tb = Utils.clamp((int) (m8 * r + m9 * g + m10 * b + m11));
+                dst[dstOff + i] = (p & 0xFF000000) | (tr << 16) | (tg << 8) | tb;
+            }
+        }
+
+        @Override
+        int vector(Kernels k, int[] src, int srcOff, int[] dst, int dstOff, int len) {
+            return k.matrix(mf, src, srcOff, dst, dstOff, len);
+        }
+
+        @Override
+        Stage compose(Stage next) {
+            if (!(next instanceof Matrix n) || !staysInRange()) return null;
+            double[] c = new double[12];
+            for (int row = 0; row < 3; row++) {
+                for (int col = 0; col < 4; col++) {
+                    double v = col == 3 ? n.m[row * 4 + 3] : 0;
+                    for (int k = 0; k < 3; k++) {
+                        v += n.m[row * 4 + k] * m[k * 4 + col];
+                    }
+                    c[row * 4 + col] = v;
+                }
+            }
+            return new Matrix(c);
+        }
+
+        private boolean staysInRange() {
+            for (int row = 0; row < 3; row++) {
+                double lo = m[row * 4 + 3], hi = lo;
+                for (int k = 0; k < 3; k++) {
+                    double c = m[row * 4 + k] * 255;
+                    lo += Math.min(0, c);
+                    hi += Math.max(0, c);
+                }
+                if (lo < 0 || hi >= 256) return false;
+            }
+            return true;
+        }
+    }
+
+    private static final class Pixel extends Stage {
+        final IntUnaryOperator f;
+
+        Pixel(IntUnaryOperator f) {
+            this.f = f;
+        }
+
+        @Override
+        void apply(int[] src, int srcOff, int[] dst, int dstOff, int len) {
+            for (int i = 0; i < len; i++) {
+                int p = src[srcOff + i];
+                dst[dstOff + i] = (p & 0xFF000000) | (f.applyAsInt(p | 0xFF000000) & 0xFFFFFF);
+            }
+        }
+    }
+
+    // r, g and b map the input levels before the lookup; the lattice coordinates of
+    // every level are worked out once here rather than per pixel.
+    private static final class Cube extends Stage {
+        final CubeLut lut;
+        final int[] r, g, b;
+        final int[] rc = new int[256], gc = new int[256], bc = new int[256];
+        final float[] rf = new float[256], gf = new float[256], bf = new float[256];
+
+        Cube(CubeLut lut, int[] r, int[] g, int[] b) {
+            this.lut = lut;
+            this.r = r;
+            this.g = g;
+            this.b = b;
+            lut.coordinates(0, r, rc, rf);
+            lut.coordinates(1, g, gc, gf);
+            lut.coordinates(2, b, bc, bf);
+        }
+
+        @Override
+        void apply(int[] src, int srcOff, int[] dst, int dstOff, int len) {
+            lut.apply(rc, gc, bc, rf, gf, bf, src, srcOff, dst, dstOff, len);
+        }
+    }
+
+    private static final class Saturation extends Stage {
+        final float factor;
+
+        Saturation(float factor) {
+            this.factor = factor;
+        }
+
+        @Override
+        void apply(int[] src, int srcOff, int[] dst, int dstOff, int len) {
+            for (int i = 0; i < len; i++) {
+                int p = src[srcOff + i];
+                int rgb = Filters.scaleSaturation((p >>> 16) & 0xFF, (p >>> 8) & 0xFF, p & 0xFF, factor);
+                dst[dstOff + i] = (p & 0xFF000000) | (rgb & 0xFFFFFF);
+            }
+        }
+
+        @Override
+        int vector(Kernels k, int[] src, int srcOff, int[] dst, int dstOff, int len) {
+            return k.saturation(factor, src, srcOff, dst, dstOff, len);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package PhotoEditor;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renders live previews of an operation on a display-sized proxy of the canvas image.
+ * With layers the operation goes where Apply puts it, under the layers: the proxy is
+ * made from the background instead, and the layers, scaled to match, are composited
+ * over the result. Renders run on one background thread as detached {@link JobQueue.Job}s. A new request
+ * cancels the render in flight, which stops at its next band, and results that finish
+ * after being superseded are dropped, so only the latest slider position ever reaches
+ * the canvas.
+ */
+class PreviewRenderer {
+    private final CanvasPanel canvas;
+    private final EditGraph graph;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "preview-renderer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicLong generation = new AtomicLong();
+    private Future<?> inFlight;
+    private JobQueue.Job inFlightJob;
+    private BufferedImage proxySource;
+    private long proxyVersion = -1;
+    private double proxyScale;
+    private double proxyFactor;
+    private BufferedImage proxy;
+    private List<Layer> scaledFrom;
+    private double scaledFactor;
+    private List<Layer> scaled;
+
+    PreviewRenderer(CanvasPanel canvas, EditGraph graph) {
+        this.canvas = canvas;
+        this.graph = graph;
+    }
+
+    void request(Filters.Op op) {
+        request(op, null);
+    }
+
+    /** Previews {@code op} limited to {@code roi} (image coordinates), or everywhere when null. */
+    void request(Filters.Op op, Rectangle roi) {
+        BufferedImage img = canvas.getImage();
+        if (img == null) return;
+        double scale = canvas.getScale();
+        long version = canvas.getImageVersion();
+        List<EditGraph.Step> steps = graph.steps();
+        List<Layer> layers = canvas.getTiledImage() == null ? graph.layers() : List.of();
+        long gen = generation.incrementAndGet();
+        stopInFlight();
+        JobQueue.Job job = JobQueue.Job.detached();
+        inFlightJob = job;
+        inFlight = worker.submit(() -> {
+            if (generation.get() != gen) return null;
+            BufferedImage out;
+            try {
+                out = job.run(() -> {
+                    // Rendered backgrounds are never written to, so they need no version.
+                    BufferedImage src = layers.isEmpty() ? img : graph.render(steps);
+                    BufferedImage p = proxy(src, layers.isEmpty() ? version : 0, scale);
+                    BufferedImage filtered = Metrics.time(Metrics.Kind.FILTER, "preview", p.getWidth(), p.getHeight(),
+                            () -> roi == null ? op.apply(p) : Filters.region(scaled(roi, p, src), op).apply(p));
+                    if (layers.isEmpty()) return filtered;
+                    job.checkCancelled();
+                    return new Compositor().prepare(null, filtered, null, scaledLayers(layers)).pixels();
+                });
+            } catch (CancellationException ex) {
+                return null;
+            }
+            if (generation.get() != gen) return null;
+            SwingUtilities.invokeLater(() -> {
+                if (generation.get() == gen) canvas.setPreview(out);
+            });
+            return null;
+        });
+    }
+
+    void cancel() {
+        generation.incrementAndGet();
+        stopInFlight();
+        inFlight = null;
+        canvas.setPreview(null);
+    }
+
+    private void stopInFlight() {
+        if (inFlightJob != null) inFlightJob.cancel();
+        if (inFlight != null) inFlight.cancel(false);
+    }
+
+    private static Rectangle scaled(Rectangle roi, BufferedImage proxy, BufferedImage img) {
+        double f = proxy.getWidth() / (double) img.getWidth();
+        int x0 = (int) Math.floor(roi.x * f), y0 = (int) Math.floor(roi.y * f);
+        int x1 = (int) Math.ceil((roi.x + roi.width) * f), y1 = (int) Math.ceil((roi.y + roi.height) * f);
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    // Only touched on the worker thread. The proxy is rebuilt when the image, its pixels
+    // or the zoom change, and is never larger than what the canvas shows or than the
+    // screen.
+    private BufferedImage proxy(BufferedImage img, long version, double scale) {
+        if (img != proxySource || version != proxyVersion || scale != proxyScale) {
+            Dimension screen = GraphicsEnvironment.isHeadless()
+                    ? new Dimension(img.getWidth(), img.getHeight())
+                    : Toolkit.getDefaultToolkit().getScreenSize();
+            double fit = Math.min(screen.width / (double) img.getWidth(), screen.height / (double) img.getHeight());
+            double factor = Math.min(1.0, Math.min(scale, fit));
+            int w = Math.max(1, (int) Math.round(img.getWidth() * factor));
+            int h = Math.max(1, (int) Math.round(img.getHeight() * factor));
+            proxy = factor == 1.0 ? img : downscale(img, w, h);
+            proxySource = img;
+            proxyVersion = version;
+            proxyScale = scale;
+            proxyFactor = factor;
+        }
+        return proxy;
+    }
+
+    // The layers scaled to the proxy, kept while the layers and the proxy's size stay.
+    private List<Layer> scaledLayers(List<Layer> layers) {
+        if (layers != scaledFrom || proxyFactor != scaledFactor) {
+            List<Layer> next = new ArrayList<>(layers.size());
+            for (Layer layer : layers) next.add(layer.scaled(proxyFactor));
+            scaled = next;
+            scaledFrom = layers;
+            scaledFactor = proxyFactor;
+        }
+        return scaled;
+    }
+
+    private static BufferedImage downscale(BufferedImage img, int w, int h) {
+        BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = out.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(img, 0, 0, w, h, null);
+        g.dispose();
+        return out;
+    }
+}
@@ -8,7 +8,11 @@ class PropertiesPanel extends JPanel {
     private final JSlider contrastSlider = createSlider(-100, 100, 0, "Contrast");
     private final JSlider saturationSlider = createSlider(-100, 100, 0, "Saturation");
 
-    PropertiesPanel(CanvasPanel canvas, HistoryManager history) {
+    private final PreviewRenderer preview;
+    private boolean resetting;
+
+    PropertiesPanel(CanvasPanel canvas, HistoryManager history, EditGraph graph, JobQueue jobs) {
+        preview = new PreviewRenderer(canvas, graph);
         setLayout(new BorderLayout(8, 8));
         setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
 
@@ -25,25 +29,45 @@ class PropertiesPanel extends JPanel {
         actions.add(resetButton);
         add(actions, BorderLayout.SOUTH);
 
-        applyButton.addActionListener(e -> applyAdjustments(canvas, history));
+        applyButton.addActionListener(e -> applyAdjustments(canvas, history, graph, jobs));
         resetButton.addActionListener(e -> resetSliders());
+
+        brightnessSlider.addChangeListener(e -> updatePreview(canvas));
+        contrastSlider.addChangeListener(e -> updatePreview(canvas));
+        saturationSlider.addChangeListener(e -> updatePreview(canvas));
+    }
+
+    private void updatePreview(CanvasPanel canvas) {
+        if (resetting) return;
+        int b = brightnessSlider.getValue(), c = contrastSlider.getValue(), s = saturationSlider.getValue();
+        if (b == 0 && c == 0 && s == 0) {
+            preview.cancel();
+        } else {
+            preview.request(img -> Filters.adjust(img, b, c, s), canvas.getSelectionImageSpace());
+        }
     }
 
-    private void applyAdjustments(CanvasPanel canvas, HistoryManager history) {
-        if (canvas.getImage() == null) return;
-        history.push(Utils.deepCopy(canvas.getImage()));
-        canvas.setImage(Filters.adjust(
-                canvas.getImage(),
-                brightnessSlider.getValue(),
-                contrastSlider.getValue(),
-                saturationSlider.getValue()
-        ));
+    // The sliders go back to zero as soon as the edit is queued; the preview is dropped
+    // so the canvas shows the real pixels until the job commits.
+    private void applyAdjustments(CanvasPanel canvas, HistoryManager history, EditGraph graph, JobQueue jobs) {
+        String spec = "adjust:" + brightnessSlider.getValue() + ":" + contrastSlider.getValue()
+                + ":" + saturationSlider.getValue();
+        if (canvas.getTiledImage() == null && graph.isEmpty()) return;
+        preview.cancel();
+        ToolPanel.apply(jobs, canvas, history, graph, spec, this);
+        resetSliders();
     }
 
     private void resetSliders() {
-        brightnessSlider.setValue(0);
-        contrastSlider.setValue(0);
-        saturationSlider.setValue(0);
+        resetting = true;
+        try {
+            brightnessSlider.setValue(0);
+            contrastSlider.setValue(0);
+            saturationSlider.setValue(0);
+        } finally {
+            resetting = false;
+        }
+        preview.cancel();
     }
 
     private static JSlider createSlider(int min, int max, int initial, String title) {
@@ -0,0 +1,299 @@
+package PhotoEditor;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Resizes images with a choice of reconstruction kernels. Each axis gets a table of
+ * source positions and weights per output column or row, computed once; the image is
+ * then filtered horizontally into a float buffer of premultiplied rows and vertically
+ * from there, each pass in parallel row bands. Downscaling widens the kernel by the
+ * scale factor so every source pixel contributes and nothing aliases.
+ *
+ * <p>Large reductions first average whole blocks of pixels and leave the kernel a
+ * factor of two to four, which keeps the tables short and costs each source pixel
+ * one addition.
+ */
+final class Resampler {
+    enum Kernel {
+        NEAREST(0), BILINEAR(1), BICUBIC(2), LANCZOS3(3), AREA(0.5);
+
+        final double support;
+
+        Kernel(double support) {
+            this.support = support;
+        }
+
+        double weight(double x) {
+            x = Math.abs(x);
+            switch (this) {
+                case BILINEAR:
+                    return x < 1 ? 1 - x : 0;
+                case BICUBIC: {
+                    // Catmull-Rom style cubic with a = -0.5.
+                    double a = -0.5;
+                    if (x < 1) return ((a + 2) * x - (a + 3)) * x * x + 1;
+                    if (x < 2) return (((x - 5) * x + 8) * x - 4) * a;
+                    return 0;
+                }
+                case LANCZOS3:
+                    return x < 3 ? sinc(x) * sinc(x / 3) : 0;
+                default:
+                    return 0;
+            }
+        }
+
+        private static double sinc(double x) {
+            if (x == 0) return 1;
+            x *= Math.PI;
+            return Math.sin(x) / x;
+        }
+    }
+
+    // The kernel is left at least this much of a reduction; the rest is block averaging.
+    private static final double REDUCING_GAP = 2;
+
+    private Resampler() {}
+
+    /** {@code src} resized to {@code w x h}. */
+    static BufferedImage resize(BufferedImage src, int w, int h, Kernel kernel) {
+        if (w < 1 || h < 1) throw new IllegalArgumentException("Size must be at least 1 x 1");
+        BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        int sw = src.getWidth(), sh = src.getHeight();
+        int fx = kernel == Kernel.NEAREST ? 1 : Math.max(1, (int) (sw / (w * REDUCING_GAP)));
+        int fy = kernel == Kernel.NEAREST ? 1 : Math.max(1, (int) (sh / (h * REDUCING_GAP)));
+        if (fx > 1 || fy > 1) {
+            // The block-averaged image covers the source exactly, with partial blocks
+            // at the right and bottom edges, so its extent is fractional.
+            BufferedImage reduced = reduce(src, fx, fy);
+            resample(reduced, sw / (double) fx, sh / (double) fy, out, new Rectangle(w, h), kernel);
+        } else {
+            resample(src, sw, sh, out, new Rectangle(w, h), kernel);
+        }
+        return out;
+    }
+
+    /**
+     * Recomputes the pixels of {@code dst} inside {@code area} from {@code src}, where
+     * {@code dst} as a whole is {@code src} resized to its size. Used to keep a resized
+     * copy up to date when part of the source changes.
+     */
+    static void resizeInto(BufferedImage src, BufferedImage dst, Rectangle area, Kernel kernel) {
+        Rectangle r = area.intersection(new Rectangle(dst.getWidth(), dst.getHeight()));
+        if (!r.isEmpty()) resample(src, src.getWidth(), src.getHeight(), dst, r, kernel);
+    }
+
+    /** Which source pixels, with which weights, make each output pixel along one axis. */
+    private static final class Table {
+        final int[] start, count;
+        final float[] weights;
+        final int taps;
+
+        // Output pixels from..from+n of an axis of outSize pixels over inSize source
+        // pixels, of which only the first inPixels exist.
+        Table(Kernel kernel, double inSize, int inPixels, int outSize, int from, int n) {
+            double scale = inSize / outSize;
+            double filterScale = Math.max(1, scale);
+            double support = kernel == Kernel.NEAREST ? 0.5 : kernel.support * filterScale;
+            int maxTaps = kernel == Kernel.NEAREST ? 1 : (int) Math.ceil(support) * 2 + 1;
+            start = new int[n];
+            count = new int[n];
+            weights = new float[n * maxTaps];
+            taps = maxTaps;
+            for (int i = 0; i < n; i++) {
+                double center = (from + i + 0.5) * scale;
+                if (kernel == Kernel.NEAREST) {
+                    start[i] = Math.min(inPixels - 1, (int) center);
+                    count[i] = 1;
+                    weights[i] = 1;
+                    continue;
+                }
+                int lo = Math.max(0, (int) Math.floor(center - support));
+                int hi = Math.min(inPixels, (int) Math.ceil(center + support));
+                double sum = 0;
+                int k = 0;
+                for (int j = lo; j < hi && k < maxTaps; j++, k++) {
+                    double w = kernel == Kernel.AREA
+                            ? overlap(j, center - support, center + support)
+                            : kernel.weight((j + 0.5 - center) / filterScale);
+                    weights[i * maxTaps + k] = (float) w;
+                    sum += w;
+                }
+                if (sum == 0) {
+                    // Only when the footprint ends before the last partial pixel.
+                    lo = Math.min(inPixels - 1, lo);
+                    k = 1;
+                    weights[i * maxTaps] = 1;
+                    sum = 1;
+                }
+                start[i] = lo;
+                count[i] = k;
+                for (int t = 0; t < k; t++) weights[i * maxTaps + t] /= (float) sum;
+            }
+        }
+
+        private static double overlap(int j, double a, double b) {
+            return Math.max(0, Math.min(j + 1, b) - Math.max(j, a));
+        }
+    }
+
+    // The separable two-pass filter for the output pixels in area.
+    private static void resample(BufferedImage src, double inW, double inH, BufferedImage dst,
+                                 Rectangle area, Kernel kernel) {
+        int sw = src.getWidth();
+        Table cols = new Table(kernel, inW, sw, dst.getWidth(), area.x, area.width);
+        Table rows = new Table(kernel, inH, src.getHeight(), dst.getHeight(), area.y, area.height);
+        // Only the source rows some output row reads are filtered horizontally; slot
+        // maps a source row to its place in the buffer of filtered rows.
+        int[] slot = new int[src.getHeight()];
+        Arrays.fill(slot, -1);
+        int used = 0;
+        for (int i = 0; i < area.height; i++) {
+            for (int t = 0; t < rows.count[i]; t++) {
+                if (slot[rows.start[i] + t] < 0) slot[rows.start[i] + t] = used++;
+            }
+        }
+        int[] sourceRow = new int[used];
+        for (int y = 0; y < slot.length; y++) if (slot[y] >= 0) sourceRow[slot[y]] = y;
+        // Likewise only the source columns the output columns read are unpacked, which
+        // keeps updating a small area of a large image cheap.
+        int x0 = cols.start[0], x1 = 0;
+        for (int i = 0; i < area.width; i++) x1 = Math.max(x1, cols.start[i] + cols.count[i]);
+        int span = x1 - x0;
+        int dw = area.width;
+        // Filtered rows hold the four premultiplied channels one after another as
+        // separate runs of dw floats, so the vertical pass is one flat loop per tap.
+        // They stay unclamped and unrounded until the output pixel is made: rounding
+        // them to bytes would cut off the overshoot of negative lobes that the vertical
+        // pass can still cancel, and leave little of the colour of faint pixels.
+        float[] horizontal = new float[4 * dw * used];
+        TileScheduler.shared().forEachBand(used, (b0, b1) -> {
+            int[] line = new int[span];
+            float[] planes = new float[4 * span];
+            for (int y = b0; y < b1; y++) {
+                Pixels.read(src, x0, sourceRow[y], span, 1, line);
+                unpackPremultiplied(line, planes);
+                filterRow(planes, x0, span, cols, horizontal, 4 * dw * y);
+            }
+        });
+        TileScheduler.shared().forEachBand(area.height, (b0, b1) -> {
+            float[] acc = new float[4 * dw];
+            int[] out = new int[dw];
+            for (int y = b0; y < b1; y++) {
+                Arrays.fill(acc, 0);
+                for (int t = 0; t < rows.count[y]; t++) {
+                    float w = rows.weights[y * rows.taps + t];
+                    int base = 4 * dw * slot[rows.start[y] + t];
+                    for (int i = 0; i < acc.length; i++) acc[i] += w * horizontal[base + i];
+                }
+                for (int x = 0; x < dw; x++) {
+                    out[x] = unpremultiply(acc[x], acc[dw + x], acc[2 * dw + x], acc[3 * dw + x]);
+                }
+                Pixels.write(dst, area.x, area.y + y, dw, 1, out);
+            }
+        });
+    }
+
+    // planes hold source columns x0..x0+sw.
+    private static void filterRow(float[] planes, int x0, int sw, Table cols, float[] out, int off) {
+        int dw = cols.start.length;
+        for (int x = 0; x < dw; x++) {
+            float a = 0, r = 0, g = 0, b = 0;
+            int s = cols.start[x] - x0, wi = x * cols.taps;
+            for (int t = 0; t < cols.count[x]; t++) {
+                float w = cols.weights[wi + t];
+                a += w * planes[s + t];
+                r += w * planes[sw + s + t];
+                g += w * planes[2 * sw + s + t];
+                b += w * planes[3 * sw + s + t];
+            }
+            out[off + x] = a;
+            out[off + dw + x] = r;
+            out[off + 2 * dw + x] = g;
+            out[off + 3 * dw + x] = b;
+        }
+    }
+
+    // Colour is weighted by alpha, so transparent pixels do not bleed their colour. The
+    // products are not rounded, so faint pixels keep their colour.
+    private static void unpackPremultiplied(int[] line, float[] planes) {
+        int n = line.length;
+        for (int i = 0; i < n; i++) {
+            int p = line[i], a = p >>> 24;
+            float f = a / 255f;
+            planes[i] = a;
+            planes[n + i] = a == 255 ? (p >> 16) & 0xFF : ((p >> 16) & 0xFF) * f;
+            planes[2 * n + i] = a == 255 ? (p >> 8) & 0xFF : ((p >> 8) & 0xFF) * f;
+            planes[3 * n + i] = a == 255 ? p & 0xFF : (p & 0xFF) * f;
+        }
+    }
+
+    // Kernels with negative lobes can overshoot, so alpha is clamped to 0..255 and the
+    // colour to what alpha allows.
+    private static int unpremultiply(float a, float r, float g, float b) {
+        int ia = clamp(a, 255);
+        if (ia == 0) return 0;
+        if (ia == 255) return 0xFF000000 | (clamp(r, 255) << 16) | (clamp(g, 255) << 8) | clamp(b, 255);
+        float s = 255f / a;
+        return (ia << 24) | (clamp(r * s, 255) << 16) | (clamp(g * s, 255) << 8) | clamp(b * s, 255);
+    }
+
+    private static int clamp(float v, int max) {
+        int i = (int) (v + 0.5f);
+        return i < 0 ? 0 : Math.min(i, max);
+    }
+
+    /**
+     * The average in premultiplied space of the {@code w x h} block at {@code (x, y)} of
+     * {@code px}, whose rows are {@code stride} apart.
+     */
+    static int average(int[] px, int stride, int x, int y, int w, int h) {
+        long a = 0, r = 0, g = 0, b = 0;
+        for (int row = y; row < y + h; row++) {
+            for (int i = row * stride + x, end = i + w; i < end; i++) {
+                int p = px[i], pa = p >>> 24;
+                a += pa;
+                r += ((p >> 16) & 0xFF) * pa;
+                g += ((p >> 8) & 0xFF) * pa;
+                b += (p & 0xFF) * pa;
+            }
+        }
+        float n = w * h, c = n * 255;
+        return unpremultiply(a / n, r / c, g / c, b / c);
+    }
+
+    // Averages fx x fy blocks in premultiplied space; blocks at the right and bottom
+    // edges average the pixels they have. Colour is summed times alpha and only divided
+    // by 255 with the average, so nothing is rounded before then.
+    private static BufferedImage reduce(BufferedImage src, int fx, int fy) {
+        int sw = src.getWidth(), sh = src.getHeight();
+        int w = (sw + fx - 1) / fx, h = (sh + fy - 1) / fy;
+        BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        TileScheduler.shared().forEachBand(h, (b0, b1) -> {
+            int[] line = new int[sw];
+            long[] sum = new long[w * 4];
+            int[] row = new int[w];
+            for (int y = b0; y < b1; y++) {
+                Arrays.fill(sum, 0);
+                int ys = y * fy, ye = Math.min(sh, ys + fy);
+                for (int sy = ys; sy < ye; sy++) {
+                    Pixels.read(src, 0, sy, sw, 1, line);
+                    for (int x = 0; x < sw; x++) {
+                        int p = line[x], a = p >>> 24, k = x / fx * 4;
+                        sum[k] += a;
+                        sum[k + 1] += ((p >> 16) & 0xFF) * a;
+                        sum[k + 2] += ((p >> 8) & 0xFF) * a;
+                        sum[k + 3] += (p & 0xFF) * a;
+                    }
+                }
+                for (int x = 0, k = 0; x < w; x++, k += 4) {
+                    float n = (Math.min(sw, (x + 1) * fx) - x * fx) * (ye - ys), c = n * 255;
+                    row[x] = unpremultiply(sum[k] / n, sum[k + 1] / c, sum[k + 2] / c, sum[k + 3] / c);
+                }
+                Pixels.write(out, 0, y, w, 1, row);
+            }
+        });
+        return out;
+    }
+}
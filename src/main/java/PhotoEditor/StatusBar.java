@@ -7,6 +7,13 @@ class StatusBar extends JPanel {
     private final JLabel zoomLabel = new JLabel("100%");
     private final JLabel sizeLabel = new JLabel("–");
     private final JLabel cursorLabel = new JLabel("–");
+    private final JLabel lastOpLabel = new JLabel("–");
+    private final JLabel historyLabel = new JLabel("–");
+    private final JLabel taskLabel = new JLabel();
+    private final JProgressBar progressBar = new JProgressBar(0, 100);
+    private final JButton cancelButton = new JButton("Cancel");
+    private final JPanel taskPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 6, 0));
+    private Runnable onCancel;
 
     StatusBar() {
         setLayout(new GridLayout(1, 0));
@@ -15,6 +22,22 @@ class StatusBar extends JPanel {
         add(createField("Zoom:", zoomLabel));
         add(createField("Image:", sizeLabel));
         add(createField("Cursor:", cursorLabel));
+        add(createField("Last op:", lastOpLabel));
+        add(createField("History:", historyLabel));
+        // Paints are measured too, but showing them would only report the repaint of this label.
+        Metrics.addListener(sample -> {
+            if (sample.kind() != Metrics.Kind.PAINT) SwingUtilities.invokeLater(() -> showSample(sample));
+        });
+
+        progressBar.setStringPainted(true);
+        cancelButton.addActionListener(e -> {
+            if (onCancel != null) onCancel.run();
+        });
+        taskPanel.add(taskLabel);
+        taskPanel.add(progressBar);
+        taskPanel.add(cancelButton);
+        taskPanel.setVisible(false);
+        add(taskPanel);
     }
 
     private JPanel createField(String name, JLabel value) {
@@ -24,6 +47,16 @@ class StatusBar extends JPanel {
         return panel;
     }
 
+    private void showSample(Metrics.Sample sample) {
+        lastOpLabel.setText(String.format("%s %.0f ms, %d MB", sample.name(), sample.millis(), sample.bytes() >> 20));
+        lastOpLabel.setToolTipText(sample.kind() + " " + sample.name() + " on " + sample.width() + " x " + sample.height());
+        Long resident = Metrics.gaugeValue("history.residentBytes");
+        Long spilled = Metrics.gaugeValue("history.spilledBytes");
+        if (resident != null) {
+            historyLabel.setText((resident >> 20) + " MB" + (spilled != null && spilled > 0 ? " + " + (spilled >> 20) + " MB on disk" : ""));
+        }
+    }
+
     void setMessage(String text) {
         cursorLabel.setText(text);
     }
@@ -34,6 +67,23 @@ class StatusBar extends JPanel {
         cursorLabel.setText(cursorText);
     }
 
+    void startProgress(String text, Runnable onCancel) {
+        this.onCancel = onCancel;
+        taskLabel.setText(text);
+        progressBar.setValue(0);
+        cancelButton.setEnabled(onCancel != null);
+        taskPanel.setVisible(true);
+    }
+
+    void setProgress(int percent) {
+        progressBar.setValue(percent);
+    }
+
+    void finishProgress() {
+        onCancel = null;
+        taskPanel.setVisible(false);
+    }
+
     void setZoom(String zoomText) { zoomLabel.setText(zoomText); }
     void setSize(String sizeText) { sizeLabel.setText(sizeText); }
     void setCursor(String cursorText) { cursorLabel.setText(cursorText); }
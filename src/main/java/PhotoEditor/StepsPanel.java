@@ -0,0 +1,71 @@
+package PhotoEditor;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lists the steps of the edit graph. Any step can be edited or removed; only the steps
+ * from that point on are recomputed.
+ */
+class StepsPanel extends JPanel {
+    private final DefaultListModel<EditGraph.Step> model = new DefaultListModel<>();
+    private final JList<EditGraph.Step> list = new JList<>(model);
+
+    private final JobQueue jobs;
+
+    StepsPanel(CanvasPanel canvas, HistoryManager history, EditGraph graph, JobQueue jobs) {
+        this.jobs = jobs;
+        setLayout(new BorderLayout(6, 6));
+        setBorder(BorderFactory.createTitledBorder("Steps"));
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        add(new JScrollPane(list), BorderLayout.CENTER);
+
+        JButton editButton = new JButton("Edit…");
+        JButton removeButton = new JButton("Remove");
+        JPanel actions = new JPanel(new GridLayout(1, 0, 6, 6));
+        actions.add(editButton);
+        actions.add(removeButton);
+        add(actions, BorderLayout.SOUTH);
+
+        editButton.addActionListener(e -> editStep(canvas, history, graph));
+        removeButton.addActionListener(e -> removeStep(canvas, history, graph));
+        graph.addChangeListener(() -> refresh(graph));
+    }
+
+    private void refresh(EditGraph graph) {
+        model.clear();
+        model.addAll(graph.steps());
+    }
+
+    private void editStep(CanvasPanel canvas, HistoryManager history, EditGraph graph) {
+        int index = list.getSelectedIndex();
+        if (index < 0) return;
+        String spec = (String) JOptionPane.showInputDialog(this, "Step (" + index + "):", "Edit Step",
+                JOptionPane.PLAIN_MESSAGE, null, null, model.get(index).spec());
+        if (spec == null || spec.equals(model.get(index).spec())) return;
+        EditGraph.Step step;
+        try {
+            step = EditGraph.Step.of(spec.trim());
+        } catch (IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(this, ex.getMessage(), "Edit Step", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        ToolPanel.submitSteps(jobs, canvas, history, graph, "Edit step " + index, steps -> {
+            List<EditGraph.Step> next = new ArrayList<>(steps);
+            next.set(index, step);
+            return next;
+        }, null, () -> list.setSelectedIndex(index));
+    }
+
+    private void removeStep(CanvasPanel canvas, HistoryManager history, EditGraph graph) {
+        int index = list.getSelectedIndex();
+        if (index < 0) return;
+        ToolPanel.submitSteps(jobs, canvas, history, graph, "Remove step " + index, steps -> {
+            List<EditGraph.Step> next = new ArrayList<>(steps);
+            next.remove(index);
+            return next;
+        }, null, null);
+    }
+}
@@ -0,0 +1,196 @@
+package PhotoEditor;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A brush, eraser or clone-stamp stroke made of soft round dabs spaced along the
+ * pointer path. Each {@link #add} places only the dabs of the new segment and changes
+ * only the pixels under them, so painting costs the size of the brush rather than the
+ * image. The stroke is kept as an {@link OpSpec} step listing its points; replaying the
+ * step places exactly the same dabs in the same order and gives the same pixels.
+ */
+final class Stroke {
+    enum Mode { BRUSH, ERASER, CLONE }
+
+    // Points are kept to a quarter pixel so they print exactly in the step.
+    private static final double QUANTUM = 4;
+
+    private final Mode mode;
+    private final double radius, hardness;
+    private final int flow;   // percent
+    private final int color;  // ARGB, brush only
+    private final int dx, dy; // clone source offset
+    private final double spacing;
+    private final List<Double> points = new ArrayList<>();
+    private final Rectangle bounds = new Rectangle();
+    private double lastX, lastY, carry;
+
+    Stroke(Mode mode, double radius, double hardness, int flow, int color, int dx, int dy) {
+        check(radius, hardness, flow);
+        this.mode = mode;
+        this.radius = radius;
+        this.hardness = hardness;
+        this.flow = flow;
+        this.color = color;
+        this.dx = dx;
+        this.dy = dy;
+        spacing = Math.max(0.5, radius * 0.2);
+    }
+
+    private static void check(double radius, double hardness, int flow) {
+        if (!(radius >= 0.5 && radius <= 1000)) throw new IllegalArgumentException("Brush radius must be 0.5..1000");
+        if (!(hardness >= 0 && hardness <= 1)) throw new IllegalArgumentException("Brush hardness must be 0..1");
+        if (flow < 1 || flow > 100) throw new IllegalArgumentException("Brush flow must be 1..100");
+    }
+
+    /** The step {@code stroke:<mode>:<radius>:<hardness>:<flow>:<argb>:<dx>:<dy>:<x y x y ...>}. */
+    static Filters.Op parse(String[] p) {
+        if (p.length != 9) throw new IllegalArgumentException("stroke takes 8 parameters");
+        Mode mode;
+        try {
+            mode = Mode.valueOf(p[1].toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unknown stroke mode: " + p[1]);
+        }
+        double radius, hardness;
+        int flow, color, sx, sy;
+        String[] xy = p[8].trim().split("\\s+");
+        double[] coords = new double[xy.length];
+        try {
+            radius = Double.parseDouble(p[2]);
+            hardness = Double.parseDouble(p[3]);
+            flow = Integer.parseInt(p[4]);
+            color = Integer.parseUnsignedInt(p[5], 16);
+            sx = Integer.parseInt(p[6]);
+            sy = Integer.parseInt(p[7]);
+            for (int i = 0; i < xy.length; i++) coords[i] = Double.parseDouble(xy[i]);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Bad number in stroke: " + ex.getMessage());
+        }
+        if (xy.length % 2 != 0) throw new IllegalArgumentException("stroke needs x y pairs");
+        check(radius, hardness, flow);
+        return src -> {
+            BufferedImage out = Utils.deepCopy(Utils.toARGB(src));
+            Stroke stroke = new Stroke(mode, radius, hardness, flow, color, sx, sy);
+            for (int i = 0; i < coords.length; i += 2) stroke.add(out, coords[i], coords[i + 1]);
+            return out;
+        };
+    }
+
+    /**
+     * Extends the stroke to (x, y) in image coordinates, painting the dabs of the new
+     * segment into {@code img} in place. Returns the changed rectangle, possibly empty.
+     */
+    Rectangle add(BufferedImage img, double x, double y) {
+        x = Math.round(x * QUANTUM) / QUANTUM;
+        y = Math.round(y * QUANTUM) / QUANTUM;
+        Rectangle dirty = new Rectangle();
+        if (points.isEmpty()) {
+            dab(img, x, y, dirty);
+        } else {
+            double sx = x - lastX, sy = y - lastY, len = Math.hypot(sx, sy);
+            if (len == 0) return dirty;
+            double t = spacing - carry;
+            for (; t <= len; t += spacing) dab(img, lastX + sx * t / len, lastY + sy * t / len, dirty);
+            carry = len - (t - spacing);
+        }
+        points.add(x);
+        points.add(y);
+        lastX = x;
+        lastY = y;
+        grow(bounds, dirty);
+        return dirty;
+    }
+
+    /** Everything the stroke has changed so far. */
+    Rectangle bounds() {
+        return new Rectangle(bounds);
+    }
+
+    String spec() {
+        StringBuilder sb = new StringBuilder("stroke:").append(mode.name().toLowerCase())
+                .append(':').append(number(radius)).append(':').append(number(hardness))
+                .append(':').append(flow).append(':').append(Integer.toHexString(color))
+                .append(':').append(dx).append(':').append(dy).append(':');
+        for (int i = 0; i < points.size(); i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(number(points.get(i)));
+        }
+        return sb.toString();
+    }
+
+    private static String number(double v) {
+        return v == Math.rint(v) ? Long.toString((long) v) : Double.toString(v);
+    }
+
+    // One dab centred on (cx, cy): full strength inside radius * hardness, then a
+    // smoothstep falloff to nothing at the radius.
+    private void dab(BufferedImage img, double cx, double cy, Rectangle dirty) {
+        Rectangle box = new Rectangle((int) Math.floor(cx - radius), (int) Math.floor(cy - radius), 0, 0);
+        box.width = (int) Math.ceil(cx + radius) - box.x + 1;
+        box.height = (int) Math.ceil(cy + radius) - box.y + 1;
+        box = box.intersection(new Rectangle(img.getWidth(), img.getHeight()));
+        if (box.isEmpty()) return;
+        int w = box.width, h = box.height;
+        int[] px = new int[w * h];
+        Pixels.read(img, box.x, box.y, w, h, px);
+        int[] src = mode == Mode.CLONE ? cloneSource(img, box) : null;
+        double inner = radius * hardness, soft = radius - inner;
+        float strength = flow / 100f;
+        for (int j = 0; j < h; j++) {
+            double ry = box.y + j + 0.5 - cy;
+            for (int i = 0; i < w; i++) {
+                double rx = box.x + i + 0.5 - cx, d = Math.sqrt(rx * rx + ry * ry);
+                if (d >= radius) continue;
+                float a = 1f;
+                if (d > inner) {
+                    float s = (float) ((d - inner) / soft);
+                    a = 1f - s * s * (3f - 2f * s);
+                }
+                int cover = (int) (a * strength * 255f + 0.5f);
+                if (cover == 0) continue;
+                int k = j * w + i, p = px[k];
+                px[k] = switch (mode) {
+                    case BRUSH -> Compositor.over(Layer.Blend.NORMAL, p, color, scale(cover, color >>> 24));
+                    case ERASER -> (scale(p >>> 24, 255 - cover) << 24) | (p & 0xFFFFFF);
+                    case CLONE -> src[k] == 0 ? p
+                            : Compositor.over(Layer.Blend.NORMAL, p, src[k], scale(cover, src[k] >>> 24));
+                };
+            }
+        }
+        Pixels.write(img, box.x, box.y, w, h, px);
+        grow(dirty, box);
+    }
+
+    // The pixels dx, dy away from box, read before the dab changes anything; zero
+    // (fully transparent) outside the image, where nothing is cloned.
+    private int[] cloneSource(BufferedImage img, Rectangle box) {
+        int[] src = new int[box.width * box.height];
+        Rectangle from = new Rectangle(box.x + dx, box.y + dy, box.width, box.height)
+                .intersection(new Rectangle(img.getWidth(), img.getHeight()));
+        if (from.isEmpty()) return src;
+        int[] row = new int[from.width];
+        for (int y = from.y; y < from.y + from.height; y++) {
+            Pixels.read(img, from.x, y, from.width, 1, row);
+            System.arraycopy(row, 0, src, (y - dy - box.y) * box.width + (from.x - dx - box.x), from.width);
+        }
+        return src;
+    }
+
+    // Rectangle.add would also take in the origin of an empty rectangle.
+    private static void grow(Rectangle r, Rectangle by) {
+        if (by.isEmpty()) return;
+        if (r.isEmpty()) {
+            r.setBounds(by);
+        } else {
+            r.add(by);
+        }
+    }
+
+    private static int scale(int a, int b) {
+        return (a * b + 127) / 255;
+    }
+}
@@ -0,0 +1,207 @@
+package PhotoEditor;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Thumbnails of image files for the {@link FolderBrowser}, keyed by path and
+ * modification time so an edited file gets a new one. Each request runs on its own
+ * virtual thread and looks in three places: a memory LRU bounded by
+ * {@code -Dphotoeditor.thumbCacheMB} (default 64), then a directory of small JPEG/PNG
+ * files ({@code -Dphotoeditor.thumbDir}, default {@code ~/.cache/photoeditor/thumbnails})
+ * bounded by {@code -Dphotoeditor.thumbDiskMB} (default 256), least recently used first,
+ * and only then decodes the image with {@link ImageLoader#readThumbnail}. Decoding is
+ * limited to a few at a time, since it is memory- and CPU-bound; requests for cells
+ * that scrolled away are cancelled while they wait.
+ */
+final class ThumbnailCache {
+    /** A file as listed, with the modification time its thumbnail must match. */
+    record Key(File file, long modified) {}
+
+    static final int SIZE = 128;
+
+    private final ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore decoders = new Semaphore(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private final LinkedHashMap<Key, BufferedImage> memory = new LinkedHashMap<>(256, 0.75f, true);
+    private final long budgetBytes;
+    private final long diskBudgetBytes;
+    private final Path dir;
+    private long memoryBytes;
+    // The size of the files in dir as last counted plus what was written since; -1
+    // until the directory has been counted.
+    private final AtomicLong diskBytes = new AtomicLong(-1);
+    private final AtomicBoolean pruning = new AtomicBoolean();
+
+    ThumbnailCache() {
+        this(Long.getLong("photoeditor.thumbCacheMB", 64) << 20,
+                Long.getLong("photoeditor.thumbDiskMB", 256) << 20,
+                Path.of(System.getProperty("photoeditor.thumbDir",
+                        System.getProperty("user.home") + "/.cache/photoeditor/thumbnails")));
+    }
+
+    ThumbnailCache(long budgetBytes, long diskBudgetBytes, Path dir) {
+        this.budgetBytes = budgetBytes;
+        this.diskBudgetBytes = diskBudgetBytes;
+        this.dir = dir;
+    }
+
+    /** The thumbnail if it is in memory, otherwise null; cheap enough for painting. */
+    synchronized BufferedImage getIfPresent(Key key) {
+        return memory.get(key);
+    }
+
+    /**
+     * Finds or makes the thumbnail of {@code key} on a virtual thread and hands it to
+     * {@code done} there; files that cannot be decoded give null. Cancelling the returned
+     * future drops a request that has not started decoding yet.
+     */
+    Future<?> request(Key key, Consumer<BufferedImage> done) {
+        return threads.submit(() -> {
+            BufferedImage thumb = getIfPresent(key);
+            if (thumb == null) thumb = load(key);
+            done.accept(thumb);
+            return null;
+        });
+    }
+
+    private BufferedImage load(Key key) throws InterruptedException {
+        Path stored = dir.resolve(name(key));
+        BufferedImage thumb = null;
+        if (Files.isRegularFile(stored)) {
+            try {
+                thumb = ImageIO.read(stored.toFile());
+                // The modification time of a file tells pruning when it was last used.
+                if (thumb != null) Files.setLastModifiedTime(stored, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException ignored) {
+                // Unreadable cache entries are made again.
+            }
+        }
+        if (thumb == null) {
+            decoders.acquire();
+            try {
+                thumb = ImageLoader.readThumbnail(key.file(), SIZE);
+            } catch (IOException | RuntimeException ex) {
+                return null;
+            } finally {
+                decoders.release();
+            }
+            store(stored, thumb);
+        } else {
+            thumb = Utils.toARGB(thumb);
+        }
+        put(key, thumb);
+        return thumb;
+    }
+
+    // Written aside and moved into place, so a reader never sees half a file. The disk
+    // cache is only an accelerator; failing to write it is not an error.
+    private void store(Path stored, BufferedImage thumb) {
+        boolean opaque = isOpaque(thumb);
+        try {
+            Files.createDirectories(dir);
+            Path tmp = Files.createTempFile(dir, "thumb", ".tmp");
+            try {
+                ImageIO.write(opaque ? Utils.withoutAlpha(thumb) : thumb, opaque ? "jpg" : "png", tmp.toFile());
+                long size = Files.size(tmp);
+                Files.move(tmp, stored, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                long total = diskBytes.get() < 0 ? -1 : diskBytes.addAndGet(size);
+                if (total < 0 || total > diskBudgetBytes) prune();
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private record Stored(Path path, long size, FileTime used) {}
+
+    // Counts the directory and, when it is over budget, deletes the least recently used
+    // files until it is down to three quarters of that, so it is not pruned again on
+    // the next few writes. One thread prunes at a time; the others carry on.
+    private void prune() {
+        if (!pruning.compareAndSet(false, true)) return;
+        try (Stream<Path> paths = Files.list(dir)) {
+            List<Stored> files = new ArrayList<>();
+            long total = 0;
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                // Temporary files are still being written by other requests.
+                if (path.getFileName().toString().endsWith(".tmp")) continue;
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                if (!attrs.isRegularFile()) continue;
+                files.add(new Stored(path, attrs.size(), attrs.lastModifiedTime()));
+                total += attrs.size();
+            }
+            if (total > diskBudgetBytes) {
+                files.sort(Comparator.comparing(Stored::used));
+                for (Iterator<Stored> it = files.iterator(); it.hasNext() && total > diskBudgetBytes / 4 * 3; ) {
+                    Stored f = it.next();
+                    if (Files.deleteIfExists(f.path())) total -= f.size();
+                }
+            }
+            diskBytes.set(total);
+        } catch (IOException | UncheckedIOException ignored) {
+            // Pruning is tried again on a later write.
+        } finally {
+            pruning.set(false);
+        }
+    }
+
+    private static boolean isOpaque(BufferedImage img) {
+        int[] px = Pixels.data(img);
+        for (int p : px) if (p >>> 24 != 0xFF) return false;
+        return true;
+    }
+
+    // The newest entry is always kept, even when it alone is over budget.
+    private synchronized void put(Key key, BufferedImage thumb) {
+        BufferedImage old = memory.put(key, thumb);
+        if (old != null) memoryBytes -= bytes(old);
+        memoryBytes += bytes(thumb);
+        for (Iterator<Map.Entry<Key, BufferedImage>> it = memory.entrySet().iterator();
+             it.hasNext() && memoryBytes > budgetBytes && memory.size() > 1; ) {
+            memoryBytes -= bytes(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    private static long bytes(BufferedImage img) {
+        return (long) img.getWidth() * img.getHeight() * Integer.BYTES;
+    }
+
+    // The path, modification time and thumbnail size hashed into a file name.
+    private static String name(Key key) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-1");
+            String id = key.file().getAbsolutePath() + '\n' + key.modified() + '\n' + SIZE;
+            return HexFormat.of().formatHex(sha.digest(id.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package PhotoEditor;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits an image into horizontal row bands and runs them on a fork-join pool.
+ * The parallelism defaults to the number of cores and can be overridden with
+ * {@code -Dphotoeditor.threads=N}.
+ *
+ * <p>Called from a {@link JobQueue} job, bands check for cancellation before they start
+ * and report progress as they finish, so every op that runs through here can be
+ * cancelled and shows progress without knowing about jobs.
+ */
+final class TileScheduler {
+    interface BandTask {
+        void run(int y0, int y1);
+    }
+
+    private static final int MIN_BAND_ROWS = 16;
+    private static final int BANDS_PER_THREAD = 4;
+    // Enough bands in a job that progress moves and Cancel is felt quickly even on one core.
+    private static final int JOB_BANDS = 32;
+
+    private static volatile TileScheduler shared = new TileScheduler(
+            Integer.getInteger("photoeditor.threads", Runtime.getRuntime().availableProcessors()));
+
+    private final ForkJoinPool pool;
+
+    TileScheduler(int parallelism) {
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+
+    static TileScheduler shared() {
+        return shared;
+    }
+
+    /**
+     * Replaces the shared scheduler. The old pool is not shut down: a caller that already
+     * fetched it may still be about to submit bands, and its daemon workers exit on their
+     * own once they have been idle for the pool's keep-alive time.
+     */
+    static synchronized void configure(int parallelism) {
+        if (shared.parallelism() == Math.max(1, parallelism)) return;
+        shared = new TileScheduler(parallelism);
+    }
+
+    int parallelism() {
+        return pool.getParallelism();
+    }
+
+    void forEachBand(int height, BandTask task) {
+        forEachBand(height, MIN_BAND_ROWS, task);
+    }
+
+    void forEachBand(int height, int minRows, BandTask task) {
+        if (height <= 0) return;
+        JobQueue.Job job = JobQueue.Job.current();
+        int bands = job != null ? Math.max(JOB_BANDS, pool.getParallelism() * BANDS_PER_THREAD)
+                : pool.getParallelism() * BANDS_PER_THREAD;
+        int rows = Math.max(Math.max(1, minRows), (height + bands - 1) / bands);
+        if (job != null) {
+            job.checkCancelled();
+            job.pass();
+        }
+        if (rows >= height || pool.getParallelism() == 1) {
+            if (job == null) {
+                task.run(0, height);
+                return;
+            }
+            for (int y = 0; y < height; y += rows) {
+                int y0 = y, y1 = Math.min(height, y + rows);
+                job.checkCancelled();
+                job.nested(() -> task.run(y0, y1));
+                job.progress(y1 / (double) height);
+            }
+            return;
+        }
+        pool.invoke(new Bands(task, 0, height, rows, height, job, job == null ? null : new AtomicInteger()));
+    }
+
+    private static final class Bands extends RecursiveAction {
+        private final BandTask task;
+        private final int y0, y1, rows, total;
+        private final JobQueue.Job job;  // null outside jobs
+        private final AtomicInteger done;
+
+        Bands(BandTask task, int y0, int y1, int rows, int total, JobQueue.Job job, AtomicInteger done) {
+            this.task = task;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.rows = rows;
+            this.total = total;
+            this.job = job;
+            this.done = done;
+        }
+
+        @Override
+        protected void compute() {
+            if (y1 - y0 <= rows) {
+                if (job == null) {
+                    task.run(y0, y1);
+                    return;
+                }
+                job.checkCancelled();
+                task.run(y0, y1);
+                int finished = done.addAndGet(y1 - y0);
+                job.progress(finished / (double) total);
+                return;
+            }
+            int chunks = (y1 - y0 + rows - 1) / rows;
+            int mid = y0 + (chunks / 2) * rows;
+            invokeAll(new Bands(task, y0, mid, rows, total, job, done),
+                    new Bands(task, mid, y1, rows, total, job, done));
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package PhotoEditor;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * An ARGB image too large for the heap. Pixels live in square tiles in a memory-mapped
+ * scratch file. A bounded LRU of decoded tiles sits in front of it
+ * ({@code -Dphotoeditor.tileCacheMB}, default 256). Tiles handed out by
+ * {@link #getTile} are read-only snapshots; changes go through {@link #setTile} or
+ * {@link #writeRegion}, which write through to the mapping.
+ *
+ * <p>Every tile written also updates an {@link #overview()} on the heap: the image
+ * reduced by a power of two until it fits {@code -Dphotoeditor.overviewMB} (default 64),
+ * each pixel the average of its block. Zoomed-out views are drawn from it, so they
+ * never page in the tiles.
+ */
+final class TiledImage implements AutoCloseable {
+    static final int TILE = 512;
+    private static final long TILE_BYTES = (long) TILE * TILE * Integer.BYTES;
+    private static final int TILES_PER_MAPPING = (int) ((1L << 30) / TILE_BYTES);
+
+    private final int width, height, cols, rows;
+    private final FileChannel channel;
+    private final IntBuffer[] mappings;
+    private final LinkedHashMap<Integer, int[]> cache;
+    private final int overviewStep;
+    private final BufferedImage overview;
+
+    TiledImage(int width, int height) {
+        this(width, height, Long.getLong("photoeditor.tileCacheMB", 256) << 20,
+                Long.getLong("photoeditor.overviewMB", 64) << 20);
+    }
+
+    TiledImage(int width, int height, long cacheBytes, long overviewBytes) {
+        this.width = width;
+        this.height = height;
+        this.cols = (width + TILE - 1) / TILE;
+        this.rows = (height + TILE - 1) / TILE;
+        // A power of two up to the tile size, so each tile covers whole overview pixels.
+        int step = 1;
+        while (step < TILE && (long) ceilDiv(width, step) * ceilDiv(height, step) * Integer.BYTES > overviewBytes) {
+            step *= 2;
+        }
+        this.overviewStep = step;
+        this.overview = new BufferedImage(ceilDiv(width, step), ceilDiv(height, step), BufferedImage.TYPE_INT_ARGB);
+        int maxTiles = (int) Math.max(4, cacheBytes / TILE_BYTES);
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+                return size() > maxTiles;
+            }
+        };
+        try {
+            Path path = Files.createTempFile("photoeditor-tiles", ".raw");
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+            int tiles = cols * rows;
+            mappings = new IntBuffer[(tiles + TILES_PER_MAPPING - 1) / TILES_PER_MAPPING];
+            for (int i = 0; i < mappings.length; i++) {
+                int count = Math.min(TILES_PER_MAPPING, tiles - i * TILES_PER_MAPPING);
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE,
+                        i * TILES_PER_MAPPING * TILE_BYTES, count * TILE_BYTES);
+                mappings[i] = map.order(ByteOrder.nativeOrder()).asIntBuffer();
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Cannot create tile storage", ex);
+        }
+    }
+
+    static TiledImage of(BufferedImage img) {
+        TiledImage t = new TiledImage(img.getWidth(), img.getHeight());
+        t.writeRegion(img, 0, 0);
+        return t;
+    }
+
+    int getWidth() { return width; }
+    int getHeight() { return height; }
+
+    /** The whole image reduced by {@link #overviewStep()}; do not modify. */
+    BufferedImage overview() { return overview; }
+    int overviewStep() { return overviewStep; }
+    int tileCols() { return cols; }
+    int tileRows() { return rows; }
+
+    Rectangle tileBounds(int tx, int ty) {
+        int x = tx * TILE, y = ty * TILE;
+        return new Rectangle(x, y, Math.min(TILE, width - x), Math.min(TILE, height - y));
+    }
+
+    /** The tile's pixels, packed with the tile's own width as stride. Do not modify. */
+    int[] getTile(int tx, int ty) {
+        int key = ty * cols + tx;
+        synchronized (cache) {
+            int[] hit = cache.get(key);
+            if (hit != null) return hit;
+        }
+        Rectangle r = tileBounds(tx, ty);
+        int[] data = new int[r.width * r.height];
+        mapping(key).get(slot(key), data);
+        synchronized (cache) {
+            cache.put(key, data);
+        }
+        return data;
+    }
+
+    void setTile(int tx, int ty, int[] data) {
+        int key = ty * cols + tx;
+        mapping(key).put(slot(key), data);
+        synchronized (cache) {
+            cache.put(key, data);
+        }
+        updateOverview(tileBounds(tx, ty), data);
+    }
+
+    // Tiles cover disjoint blocks of the overview, so tiles written in parallel do not
+    // interfere.
+    private void updateOverview(Rectangle tb, int[] data) {
+        int s = overviewStep;
+        if (s == 1) {
+            Pixels.write(overview, tb.x, tb.y, tb.width, tb.height, data);
+            return;
+        }
+        int ow = ceilDiv(tb.width, s), oh = ceilDiv(tb.height, s);
+        int[] out = new int[ow * oh];
+        for (int by = 0; by < oh; by++) {
+            for (int bx = 0; bx < ow; bx++) {
+                int x = bx * s, y = by * s;
+                out[by * ow + bx] = Resampler.average(data, tb.width, x, y,
+                        Math.min(s, tb.width - x), Math.min(s, tb.height - y));
+            }
+        }
+        Pixels.write(overview, tb.x / s, tb.y / s, ow, oh, out);
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    void readRegion(Rectangle r, int[] dst) {
+        forTiles(r, (tile, tb, ix, iy, w, h) -> {
+            for (int y = 0; y < h; y++) {
+                System.arraycopy(tile, (iy - tb.y + y) * tb.width + (ix - tb.x),
+                        dst, (iy - r.y + y) * r.width + (ix - r.x), w);
+            }
+        });
+    }
+
+    void writeRegion(BufferedImage img, int x0, int y0) {
+        Rectangle r = new Rectangle(x0, y0, img.getWidth(), img.getHeight()).intersection(new Rectangle(width, height));
+        for (int ty = r.y / TILE; ty * TILE < r.y + r.height; ty++) {
+            for (int tx = r.x / TILE; tx * TILE < r.x + r.width; tx++) {
+                Rectangle tb = tileBounds(tx, ty);
+                Rectangle part = tb.intersection(r);
+                int[] data = part.equals(tb) ? new int[tb.width * tb.height] : getTile(tx, ty).clone();
+                int[] row = new int[part.width];
+                for (int y = part.y; y < part.y + part.height; y++) {
+                    Pixels.read(img, part.x - x0, y - y0, part.width, 1, row);
+                    System.arraycopy(row, 0, data, (y - tb.y) * tb.width + (part.x - tb.x), part.width);
+                }
+                setTile(tx, ty, data);
+            }
+        }
+    }
+
+    /**
+     * Applies a same-size operation tile by tile into a new tiled image. Each tile is
+     * processed together with {@code op.halo()} pixels of context from its neighbours,
+     * so local filters give the same result as on the whole image.
+     */
+    TiledImage map(Filters.Op op) {
+        return map(op, null);
+    }
+
+    /**
+     * As {@link #map(Filters.Op)}, but only the pixels inside {@code roi} change, as
+     * {@link Filters#region} does for whole images; tiles outside it are copied. A null
+     * {@code roi} means the whole image.
+     */
+    TiledImage map(Filters.Op op, Rectangle roi) {
+        if (op.halo() < 0) throw new IllegalArgumentException("Only local operations can be applied tile by tile");
+        int halo = op.halo();
+        TiledImage out = new TiledImage(width, height);
+        Rectangle all = new Rectangle(width, height);
+        try {
+            mapInto(out, op, halo, all, roi == null ? all : roi.intersection(all));
+        } catch (RuntimeException | Error ex) {
+            out.close();  // cancelled or failed; drop the scratch file now
+            throw ex;
+        }
+        return out;
+    }
+
+    private void mapInto(TiledImage out, Filters.Op op, int halo, Rectangle all, Rectangle roi) {
+        TileScheduler.shared().forEachBand(rows, 1, (r0, r1) -> {
+            for (int ty = r0; ty < r1; ty++) {
+                for (int tx = 0; tx < cols; tx++) {
+                    Rectangle tb = tileBounds(tx, ty);
+                    Rectangle part = tb.intersection(roi);
+                    if (part.isEmpty()) {
+                        out.setTile(tx, ty, getTile(tx, ty));
+                        continue;
+                    }
+                    Rectangle ctx = new Rectangle(part.x - halo, part.y - halo,
+                            part.width + 2 * halo, part.height + 2 * halo).intersection(all);
+                    BufferedImage in = new BufferedImage(ctx.width, ctx.height, BufferedImage.TYPE_INT_ARGB);
+                    readRegion(ctx, Pixels.data(in));
+                    BufferedImage result = op.apply(in);
+                    int[] data = part.equals(tb) ? new int[tb.width * tb.height] : getTile(tx, ty).clone();
+                    int[] row = new int[part.width];
+                    for (int y = part.y; y < part.y + part.height; y++) {
+                        Pixels.read(result, part.x - ctx.x, y - ctx.y, part.width, 1, row);
+                        System.arraycopy(row, 0, data, (y - tb.y) * tb.width + (part.x - tb.x), part.width);
+                    }
+                    out.setTile(tx, ty, data);
+                }
+            }
+        });
+    }
+
+    /**
+     * A read-only RenderedImage view, so ImageIO writers can stream the image tile by
+     * tile. Without {@code alpha} the view reports opaque RGB and the alpha bits are ignored.
+     */
+    RenderedImage asRenderedImage(boolean alpha) {
+        return new View(alpha ? ColorModel.getRGBdefault()
+                : new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF));
+    }
+
+    @Override
+    public void close() {
+        synchronized (cache) {
+            cache.clear();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    private interface TileVisitor {
+        void visit(int[] tile, Rectangle tileBounds, int x, int y, int w, int h);
+    }
+
+    private void forTiles(Rectangle r, TileVisitor v) {
+        for (int ty = r.y / TILE; ty * TILE < r.y + r.height; ty++) {
+            for (int tx = r.x / TILE; tx * TILE < r.x + r.width; tx++) {
+                Rectangle tb = tileBounds(tx, ty);
+                Rectangle part = tb.intersection(r);
+                if (!part.isEmpty()) v.visit(getTile(tx, ty), tb, part.x, part.y, part.width, part.height);
+            }
+        }
+    }
+
+    private IntBuffer mapping(int key) {
+        return mappings[key / TILES_PER_MAPPING];
+    }
+
+    private static int slot(int key) {
+        return (int) ((key % TILES_PER_MAPPING) * (TILE_BYTES / Integer.BYTES));
+    }
+
+    private final class View implements RenderedImage {
+        private final ColorModel cm;
+        private final SampleModel sm;
+
+        View(ColorModel cm) {
+            this.cm = cm;
+            this.sm = cm.createCompatibleSampleModel(TILE, TILE);
+        }
+
+        @Override public Vector<RenderedImage> getSources() { return null; }
+        @Override public Object getProperty(String name) { return Image.UndefinedProperty; }
+        @Override public String[] getPropertyNames() { return null; }
+        @Override public ColorModel getColorModel() { return cm; }
+        @Override public SampleModel getSampleModel() { return sm; }
+        @Override public int getWidth() { return width; }
+        @Override public int getHeight() { return height; }
+        @Override public int getMinX() { return 0; }
+        @Override public int getMinY() { return 0; }
+        @Override public int getNumXTiles() { return cols; }
+        @Override public int getNumYTiles() { return rows; }
+        @Override public int getMinTileX() { return 0; }
+        @Override public int getMinTileY() { return 0; }
+        @Override public int getTileWidth() { return TILE; }
+        @Override public int getTileHeight() { return TILE; }
+        @Override public int getTileGridXOffset() { return 0; }
+        @Override public int getTileGridYOffset() { return 0; }
+
+        @Override
+        public Raster getTile(int tx, int ty) {
+            return getData(tileBounds(tx, ty));
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(width, height));
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            Rectangle r = rect.intersection(new Rectangle(width, height));
+            int[] px = new int[r.width * r.height];
+            readRegion(r, px);
+            DataBufferInt db = new DataBufferInt(px, px.length);
+            SampleModel rsm = cm.createCompatibleSampleModel(r.width, r.height);
+            return Raster.createWritableRaster(rsm, db, new Point(r.x, r.y));
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            Raster data = getData(raster != null ? raster.getBounds() : new Rectangle(width, height));
+            if (raster == null) return (WritableRaster) data;
+            raster.setRect(data);
+            return raster;
+        }
+    }
+}
@@ -1,22 +1,50 @@
 package PhotoEditor;
 
 import javax.swing.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 class ToolPanel extends JPanel {
-    ToolPanel(CanvasPanel canvas, HistoryManager history, EditorFrame frame) {
+    private final EditGraph graph;
+    private final JobQueue jobs;
+    private JFileChooser lutChooser;
+
+    ToolPanel(CanvasPanel canvas, HistoryManager history, EditGraph graph, JobQueue jobs, EditorFrame frame) {
+        this.graph = graph;
+        this.jobs = jobs;
         setLayout(new GridLayout(0, 1, 6, 6));
         setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
 
+        BrushTool brush = new BrushTool(canvas, history, graph, jobs);
+        JPanel tools = new JPanel(new GridLayout(0, 2, 4, 4));
+        ButtonGroup group = new ButtonGroup();
+        addTool(tools, group, "Select", () -> canvas.setPaintTool(null)).setSelected(true);
+        addTool(tools, group, "Brush", () -> usePaintTool(canvas, brush, Stroke.Mode.BRUSH));
+        addTool(tools, group, "Eraser", () -> usePaintTool(canvas, brush, Stroke.Mode.ERASER));
+        addTool(tools, group, "Clone", () -> usePaintTool(canvas, brush, Stroke.Mode.CLONE));
+        add(tools);
+        add(createButton("Brush Settings…", () -> brushSettings(brush)));
         add(createButton("Crop", () -> cropImage(canvas, history)));
-        add(createButton("Rotate 90°", () -> apply(canvas, history, img -> Filters.rotate(img, Math.PI / 2))));
-        add(createButton("Flip H", () -> apply(canvas, history, Filters::flipHorizontal)));
-        add(createButton("Flip V", () -> apply(canvas, history, Filters::flipVertical)));
-        add(createButton("Grayscale", () -> apply(canvas, history, Filters::toGrayscale)));
-        add(createButton("Sepia", () -> apply(canvas, history, Filters::toSepia)));
-        add(createButton("Blur", () -> apply(canvas, history, Filters::blur3x3)));
-        add(createButton("Sharpen", () -> apply(canvas, history, Filters::sharpen3x3)));
+        add(createButton("Resize…", () -> resizeImage(canvas, history)));
+        add(createButton("Rotate 90°", () -> apply(canvas, history, "rotate:90")));
+        add(createButton("Flip H", () -> apply(canvas, history, "flipH")));
+        add(createButton("Flip V", () -> apply(canvas, history, "flipV")));
+        add(createButton("Grayscale", () -> apply(canvas, history, "grayscale")));
+        add(createButton("Sepia", () -> apply(canvas, history, "sepia")));
+        add(createButton("Blur", () -> apply(canvas, history, "blur")));
+        add(createButton("Sharpen", () -> apply(canvas, history, "sharpen")));
+        add(createButton("Auto Levels", () -> apply(canvas, history, "autolevels")));
+        add(createButton("Auto Contrast", () -> apply(canvas, history, "autocontrast")));
+        add(createButton("Gaussian Blur…", () -> gaussianBlur(canvas, history)));
+        add(createButton("Unsharp Mask…", () -> unsharpMask(canvas, history)));
+        add(createButton("Color LUT…", () -> colorLut(canvas, history)));
         add(createButton("Reset", () -> resetImage(canvas, history)));
     }
 
@@ -26,29 +54,308 @@ class ToolPanel extends JPanel {
         return button;
     }
 
+    private JToggleButton addTool(JPanel tools, ButtonGroup group, String label, Runnable action) {
+        JToggleButton button = new JToggleButton(label);
+        button.addActionListener(e -> action.run());
+        group.add(button);
+        tools.add(button);
+        return button;
+    }
+
+    private static void usePaintTool(CanvasPanel canvas, BrushTool brush, Stroke.Mode mode) {
+        brush.setMode(mode);
+        canvas.setPaintTool(brush);
+    }
+
+    private void brushSettings(BrushTool brush) {
+        JSpinner radius = new JSpinner(new SpinnerNumberModel(brush.radius(), 0.5, 1000.0, 1.0));
+        JSpinner hardness = new JSpinner(new SpinnerNumberModel((int) Math.round(brush.hardness() * 100), 0, 100, 5));
+        JSpinner flow = new JSpinner(new SpinnerNumberModel(brush.flow(), 1, 100, 5));
+        JButton color = new JButton(" ");
+        color.setBackground(brush.color());
+        color.addActionListener(e -> {
+            Color c = JColorChooser.showDialog(this, "Brush Colour", color.getBackground());
+            if (c != null) color.setBackground(c);
+        });
+        if (showOptions("Brush", "Radius (px):", radius, "Hardness (%):", hardness,
+                "Flow (%):", flow, "Colour:", color)) {
+            brush.setBrush((Double) radius.getValue(), (Integer) hardness.getValue() / 100.0,
+                    (Integer) flow.getValue(), color.getBackground());
+        }
+    }
+
+    private void gaussianBlur(CanvasPanel canvas, HistoryManager history) {
+        if (!canvas.hasImage()) return;
+        JSpinner radius = new JSpinner(new SpinnerNumberModel(10.0, 0.5, 250.0, 0.5));
+        JComboBox<BoxBlur.Edge> edge = new JComboBox<>(BoxBlur.Edge.values());
+        if (showOptions("Gaussian Blur", "Radius (px):", radius, "Edges:", edge)) {
+            double r = (Double) radius.getValue();
+            BoxBlur.Edge e = (BoxBlur.Edge) edge.getSelectedItem();
+            apply(canvas, history, "gaussian:" + r + ":" + e.name().toLowerCase());
+        }
+    }
+
+    private void unsharpMask(CanvasPanel canvas, HistoryManager history) {
+        if (!canvas.hasImage()) return;
+        JSpinner radius = new JSpinner(new SpinnerNumberModel(3.0, 0.5, 250.0, 0.5));
+        JSpinner amount = new JSpinner(new SpinnerNumberModel(1.0, 0.0, 5.0, 0.1));
+        JSpinner threshold = new JSpinner(new SpinnerNumberModel(0, 0, 255, 1));
+        JComboBox<BoxBlur.Edge> edge = new JComboBox<>(BoxBlur.Edge.values());
+        if (showOptions("Unsharp Mask", "Radius (px):", radius, "Amount:", amount,
+                "Threshold:", threshold, "Edges:", edge)) {
+            double r = (Double) radius.getValue(), a = (Double) amount.getValue();
+            int t = (Integer) threshold.getValue();
+            BoxBlur.Edge e = (BoxBlur.Edge) edge.getSelectedItem();
+            apply(canvas, history, "unsharp:" + r + ":" + a + ":" + t + ":" + e.name().toLowerCase());
+        }
+    }
+
+    // The file is parsed here so errors are shown before the step is added; applying it
+    // then finds the parsed table in the CubeLut cache.
+    private void colorLut(CanvasPanel canvas, HistoryManager history) {
+        if (!canvas.hasImage()) return;
+        if (lutChooser == null) {
+            lutChooser = new JFileChooser();
+            lutChooser.setFileFilter(new FileNameExtensionFilter("3D LUT (.cube)", "cube"));
+        }
+        if (lutChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        File file = lutChooser.getSelectedFile();
+        try {
+            CubeLut.load(file.toPath());
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this, "Cannot read " + file.getName() + ": " + ex.getMessage(),
+                    "Color LUT", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        apply(canvas, history, OpSpec.lut(file.getAbsolutePath()));
+    }
+
+    // Label/field pairs laid out in a two-column OK/Cancel dialog.
+    private boolean showOptions(String title, Object... labelsAndFields) {
+        JPanel form = new JPanel(new GridLayout(0, 2, 6, 6));
+        for (Object o : labelsAndFields) {
+            form.add(o instanceof String text ? new JLabel(text) : (Component) o);
+        }
+        return JOptionPane.showConfirmDialog(this, form, title, JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE) == JOptionPane.OK_OPTION;
+    }
+
     private void cropImage(CanvasPanel canvas, HistoryManager history) {
         Rectangle selection = canvas.getSelectionImageSpace();
+        if (canvas.getTiledImage() != null) {
+            JOptionPane.showMessageDialog(this, "Crop is not available for tiled images.");
+            return;
+        }
         if (selection == null || canvas.getImage() == null) {
             JOptionPane.showMessageDialog(this, "Drag to select an area first.");
             return;
         }
-        history.push(Utils.deepCopy(canvas.getImage()));
-        BufferedImage cropped = canvas.getImage().getSubimage(
-                selection.x, selection.y, selection.width, selection.height
-        );
-        canvas.setImage(Utils.toARGB(cropped));
-        canvas.clearSelection();
-        canvas.zoomToFit();
+        if (graph.isEmpty()) return;
+        String spec = "crop:" + selection.x + ":" + selection.y + ":" + selection.width + ":" + selection.height;
+        EditGraph.Step step = EditGraph.Step.of(spec);
+        submitSteps(jobs, canvas, history, graph, "Crop", appending(step), null, () -> {
+            canvas.clearSelection();
+            canvas.zoomToFit();
+        });
+    }
+
+    // Always the whole image, whatever is selected; the selection would no longer fit.
+    private void resizeImage(CanvasPanel canvas, HistoryManager history) {
+        if (canvas.getTiledImage() != null) {
+            JOptionPane.showMessageDialog(this, "Resize is not available for tiled images.");
+            return;
+        }
+        if (graph.isEmpty() || canvas.getImage() == null) return;
+        int w0 = canvas.getImage().getWidth(), h0 = canvas.getImage().getHeight();
+        JSpinner width = new JSpinner(new SpinnerNumberModel(w0, 1, 65535, 1));
+        JSpinner height = new JSpinner(new SpinnerNumberModel(h0, 1, 65535, 1));
+        JCheckBox keepAspect = new JCheckBox("Keep aspect ratio", true);
+        JComboBox<Resampler.Kernel> kernel = new JComboBox<>(Resampler.Kernel.values());
+        kernel.setSelectedItem(Resampler.Kernel.LANCZOS3);
+        width.addChangeListener(e -> {
+            if (keepAspect.isSelected()) {
+                height.setValue(Math.max(1, (int) Math.round((Integer) width.getValue() * (double) h0 / w0)));
+            }
+        });
+        if (!showOptions("Resize", "Width (px):", width, "Height (px):", height, "", keepAspect,
+                "Kernel:", kernel)) {
+            return;
+        }
+        String spec = "resize:" + width.getValue() + ":" + height.getValue() + ":"
+                + ((Resampler.Kernel) kernel.getSelectedItem()).name().toLowerCase();
+        submitSteps(jobs, canvas, history, graph, "Resize", appending(EditGraph.Step.of(spec)), null, () -> {
+            canvas.clearSelection();
+            canvas.zoomToFit();
+        });
     }
 
     private void resetImage(CanvasPanel canvas, HistoryManager history) {
-        BufferedImage base = history.resetToFirst();
-        if (base != null) canvas.setImage(base);
+        if (graph.isEmpty()) return;
+        submitSteps(jobs, canvas, history, graph, "Reset", steps -> List.of(), null, null);
     }
 
-    private void apply(CanvasPanel canvas, HistoryManager history, Filters.Op operation) {
-        if (canvas.getImage() == null) return;
-        history.push(Utils.deepCopy(canvas.getImage()));
-        canvas.setImage(operation.apply(canvas.getImage()));
+    private void apply(CanvasPanel canvas, HistoryManager history, String spec) {
+        apply(jobs, canvas, history, graph, spec, this);
+    }
+
+    /**
+     * Queues {@code spec} as the next edit: on the tiled image, on the selection, or as a
+     * new step over the whole image. A spec that does not parse is reported right away.
+     */
+    static void apply(JobQueue jobs, CanvasPanel canvas, HistoryManager history, EditGraph graph,
+                      String spec, Component parent) {
+        if (canvas.getTiledImage() != null) {
+            applyTiled(jobs, canvas, spec, parent);
+            return;
+        }
+        if (graph.isEmpty()) return;
+        Rectangle selection = canvas.getSelectionImageSpace();
+        if (selection != null) {
+            applyToSelection(jobs, canvas, history, graph, spec, selection, parent);
+            return;
+        }
+        EditGraph.Step step;
+        try {
+            step = EditGraph.Step.of(spec);
+        } catch (IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(parent, ex.getMessage());
+            return;
+        }
+        submitSteps(jobs, canvas, history, graph, spec, appending(step), null, null);
+    }
+
+    static UnaryOperator<List<EditGraph.Step>> appending(EditGraph.Step step) {
+        return steps -> {
+            List<EditGraph.Step> next = new ArrayList<>(steps);
+            next.add(step);
+            return next;
+        };
+    }
+
+    private record Rendered(List<EditGraph.Step> steps, List<Layer> layers, BufferedImage copy,
+                            Compositor.Pending composite) {}
+
+    private record Filtered(Rectangle region, int[] pixels) {}
+
+    /**
+     * Queues a change of the graph's steps. The job renders the changed steps, and with
+     * layers also composites the tiles that change, and only once that is done are they
+     * made the document's steps, put on the canvas and recorded as one history state,
+     * followed by {@code then}. A cancelled or failed job
+     * leaves steps, canvas and history as they were. {@code change} is given the steps as
+     * the jobs before this one left them.
+     */
+    static void submitSteps(JobQueue jobs, CanvasPanel canvas, HistoryManager history, EditGraph graph,
+                            String label, UnaryOperator<List<EditGraph.Step>> change, Rectangle bgChanged,
+                            Runnable then) {
+        submit(jobs, canvas, graph, label, change, UnaryOperator.identity(), bgChanged, dirty -> {
+            history.record(canvas.getImage(), dirty, graph.state());
+            if (then != null) then.run();
+        });
+    }
+
+    /**
+     * Queues a change of the graph's layers the way {@link #submitSteps} does a change of
+     * its steps, except that nothing is recorded: {@code committed} is given the region
+     * of the canvas that changed, or null when it got a new image, and decides that.
+     */
+    static void submitLayers(JobQueue jobs, CanvasPanel canvas, EditGraph graph, String label,
+                             UnaryOperator<List<Layer>> change, Consumer<Rectangle> committed) {
+        submit(jobs, canvas, graph, label, UnaryOperator.identity(), change, null, committed);
+    }
+
+    private static void submit(JobQueue jobs, CanvasPanel canvas, EditGraph graph, String label,
+                               UnaryOperator<List<EditGraph.Step>> stepChange,
+                               UnaryOperator<List<Layer>> layerChange, Rectangle bgChanged,
+                               Consumer<Rectangle> committed) {
+        jobs.submit(label, () -> {
+            List<EditGraph.Step> steps = List.copyOf(stepChange.apply(graph.steps()));
+            List<Layer> layers = List.copyOf(layerChange.apply(graph.layers()));
+            BufferedImage bg = graph.render(steps);
+            // Without layers the canvas gets its own copy, made here rather than on the EDT.
+            if (layers.isEmpty()) return new Rendered(steps, layers, Utils.deepCopy(bg), null);
+            // A shared canvas image is never composited into; the layers go onto a new one.
+            BufferedImage current = canvas.isImageShared() ? null : canvas.getImage();
+            Compositor compositor = graph.compositor();
+            // Without layers the canvas shows the bare background, so the first layer
+            // only composites the tiles it covers.
+            if (graph.layers().isEmpty() && current != null && current != compositor.image()) {
+                compositor.adopt(current, graph.renderIfCached(), List.of());
+            }
+            return new Rendered(steps, layers, null, compositor.prepare(current, bg, bgChanged, layers));
+        }, r -> {
+            graph.set(r.steps(), r.layers());
+            Rectangle dirty = null;
+            if (r.copy() != null) {
+                graph.compositor().reset();
+                canvas.setImage(r.copy());
+            } else {
+                dirty = graph.compositor().commit(r.composite(), canvas.getImage());
+                if (dirty == null) {
+                    canvas.setImage(graph.compositor().image());
+                } else if (!dirty.isEmpty()) {
+                    canvas.imageUpdated(dirty);
+                }
+            }
+            committed.accept(dirty);
+        });
+    }
+
+    // Filters just the selection, so both the work and the new history state are
+    // proportional to the selection rather than the image. The job computes the new
+    // pixels aside and the canvas image only changes when it commits.
+    static void applyToSelection(JobQueue jobs, CanvasPanel canvas, HistoryManager history, EditGraph graph,
+                                 String spec, Rectangle selection, Component parent) {
+        EditGraph.Step step;
+        try {
+            step = EditGraph.Step.of(
+                    spec + "@" + selection.x + ":" + selection.y + ":" + selection.width + ":" + selection.height);
+        } catch (IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(parent, ex.getMessage());
+            return;
+        }
+        if (!graph.layers().isEmpty()) {
+            // The canvas shows the layers flattened, so the step goes to the background
+            // and only the tiles under the selection are composited again.
+            submitSteps(jobs, canvas, history, graph, spec, appending(step), selection, null);
+            return;
+        }
+        Filters.Op op = OpSpec.parse(spec);
+        jobs.submit(spec, () -> {
+            BufferedImage img = canvas.getImage();
+            Rectangle r = selection.intersection(new Rectangle(img.getWidth(), img.getHeight()));
+            if (r.isEmpty()) return new Filtered(r, null);
+            return new Filtered(r, Metrics.time(Metrics.Kind.FILTER, OpSpec.name(spec) + "@selection", r.width, r.height,
+                    () -> Filters.filterRegion(img, r, op)));
+        }, f -> {
+            Rectangle dirty = f.region();
+            if (!dirty.isEmpty()) Pixels.write(canvas.writableImage(), dirty.x, dirty.y, dirty.width, dirty.height, f.pixels());
+            graph.setSteps(appending(step).apply(graph.steps()));
+            canvas.imageUpdated(dirty);
+            history.record(canvas.getImage(), dirty, graph.state());
+        });
+    }
+
+    // Tiled images are filtered tile by tile, which only works for operations whose
+    // output pixels depend on a bounded neighbourhood. With a selection only the pixels
+    // inside it change. They carry no undo history.
+    static void applyTiled(JobQueue jobs, CanvasPanel canvas, String spec, Component parent) {
+        Filters.Op operation;
+        try {
+            operation = OpSpec.parse(spec);
+        } catch (IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(parent, ex.getMessage());
+            return;
+        }
+        if (operation.halo() < 0) {
+            JOptionPane.showMessageDialog(parent, "This operation is not available for tiled images.");
+            return;
+        }
+        Rectangle selection = canvas.getSelectionImageSpace();
+        jobs.submit(spec, () -> {
+            TiledImage tiled = canvas.getTiledImage();
+            return Metrics.time(Metrics.Kind.FILTER, OpSpec.name(spec) + "@tiled", tiled.getWidth(), tiled.getHeight(),
+                    () -> tiled.map(operation, selection));
+        }, canvas::setTiledImage);
     }
 }
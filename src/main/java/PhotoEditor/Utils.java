@@ -1,5 +1,4 @@
 package PhotoEditor;
-import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
@@ -25,10 +24,18 @@ class Utils {
         WritableRaster raster = bi.copyData(null);
         return new BufferedImage(cm, raster, premultiplied, null);
     }
+    static BufferedImage createCompatible(BufferedImage bi) {
+        ColorModel cm = bi.getColorModel();
+        WritableRaster raster = cm.createCompatibleWritableRaster(bi.getWidth(), bi.getHeight());
+        return new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
+    }
     static int clamp(int v) {
         return Math.max(0, Math.min(255, v));
     }
     static void saveImage(BufferedImage img, File f) throws IOException {
+        saveImage(img, f, ExportOptions.DEFAULT);
+    }
+    static void saveImage(BufferedImage img, File f, ExportOptions options) throws IOException {
         String name = f.getName().toLowerCase();
         String format;
         if (name.endsWith(".jpg") || name.endsWith(".jpeg")) {
@@ -39,6 +46,15 @@ class Utils {
             f = new File(f.getParentFile(), f.getName() + ".png");
             format = "png";
         }
-        ImageIO.write(img, format, f);
+        ImageLoader.write(img, format, f, options, p -> {}, () -> false);
+    }
+    static BufferedImage withoutAlpha(BufferedImage src) {
+        BufferedImage out = new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = out.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, src.getWidth(), src.getHeight());
+        g.drawImage(src, 0, 0, null);
+        g.dispose();
+        return out;
     }
 }
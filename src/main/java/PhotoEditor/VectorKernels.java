@@ -0,0 +1,141 @@
+package PhotoEditor;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD versions of the {@link PointOp} stages on {@code jdk.incubator.vector}, using the
+ * widest species the CPU supports. Only loaded by {@link PointOp} once the incubator
+ * module is known to be in the boot layer; each method handles whole vectors and
+ * returns how many pixels it did, leaving the tail to the scalar code.
+ *
+ * <p>Lookup tables and saturation give exactly the scalar results: saturation performs
+ * the same float operations in the same order. Colour matrices are evaluated in float
+ * instead of double and can differ from the scalar path by one level per channel.
+ */
+final class VectorKernels implements PointOp.Kernels {
+    private static final VectorSpecies<Integer> I = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> F = I.withLanes(float.class);
+
+    @Override
+    public String describe() {
+        return I.length() + " x 32-bit lanes (" + I.vectorBitSize() + "-bit)";
+    }
+
+    @Override
+    public int lut(int[] r, int[] g, int[] b, int[] src, int srcOff, int[] dst, int dstOff, int len) {
+        int n = I.loopBound(len);
+        int[] ri = new int[I.length()], gi = new int[I.length()], bi = new int[I.length()];
+        for (int i = 0; i < n; i += I.length()) {
+            IntVector p = IntVector.fromArray(I, src, srcOff + i);
+            p.lanewise(VectorOperators.LSHR, 16).and(0xFF).intoArray(ri, 0);
+            p.lanewise(VectorOperators.LSHR, 8).and(0xFF).intoArray(gi, 0);
+            p.and(0xFF).intoArray(bi, 0);
+            p.and(0xFF000000)
+                    .or(IntVector.fromArray(I, r, 0, ri, 0).lanewise(VectorOperators.LSHL, 16))
+                    .or(IntVector.fromArray(I, g, 0, gi, 0).lanewise(VectorOperators.LSHL, 8))
+                    .or(IntVector.fromArray(I, b, 0, bi, 0))
+                    .intoArray(dst, dstOff + i);
+        }
+        return n;
+    }
+
+    @Override
+    public int matrix(float[] m, int[] src, int srcOff, int[] dst, int dstOff, int len) {
+        int n = I.loopBound(len);
+        FloatVector[] c = new FloatVector[12];
+        for (int k = 0; k < 12; k++) c[k] = FloatVector.broadcast(F, m[k]);
+        for (int i = 0; i < n; i += I.length()) {
+            IntVector p = IntVector.fromArray(I, src, srcOff + i);
+            FloatVector r = channel(p, 16), g = channel(p, 8), b = channel(p, 0);
+            p.and(0xFF000000)
+                    .or(row(c[0], c[1], c[2], c[3], r, g, b).lanewise(VectorOperators.LSHL, 16))
+                    .or(row(c[4], c[5], c[6], c[7], r, g, b).lanewise(VectorOperators.LSHL, 8))
+                    .or(row(c[8], c[9], c[10], c[11], r, g, b))
+                    .intoArray(dst, dstOff + i);
+        }
+        return n;
+    }
+
+    // One output channel: (int) (cr r + cg g + cb b + add), clamped to 0..255.
+    private static IntVector row(FloatVector cr, FloatVector cg, FloatVector cb, FloatVector add,
+                                 FloatVector r, FloatVector g, FloatVector b) {
+        FloatVector v = r.mul(cr).add(g.mul(cg)).add(b.mul(cb)).add(add);
+        return ((IntVector) v.convert(VectorOperators.F2I, 0)).max(0).min(255);
+    }
+
+    private static FloatVector channel(IntVector p, int shift) {
+        return (FloatVector) p.lanewise(VectorOperators.LSHR, shift).and(0xFF).convert(VectorOperators.I2F, 0);
+    }
+
+    // Filters.scaleSaturation lane by lane, with its branches turned into masks.
+    @Override
+    public int saturation(float factor, int[] src, int srcOff, int[] dst, int dstOff, int len) {
+        int n = I.loopBound(len);
+        FloatVector zero = FloatVector.zero(F), one = FloatVector.broadcast(F, 1f);
+        FloatVector two = FloatVector.broadcast(F, 2f), four = FloatVector.broadcast(F, 4f);
+        FloatVector six = FloatVector.broadcast(F, 6f), c255 = FloatVector.broadcast(F, 255f);
+        FloatVector scale = FloatVector.broadcast(F, factor);
+        for (int i = 0; i < n; i += I.length()) {
+            IntVector p = IntVector.fromArray(I, src, srcOff + i);
+            IntVector r = p.lanewise(VectorOperators.LSHR, 16).and(0xFF);
+            IntVector g = p.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+            IntVector b = p.and(0xFF);
+            IntVector cmax = r.max(g.max(b)), cmin = r.min(g.min(b));
+            FloatVector cmaxF = toFloat(cmax), range = toFloat(cmax.sub(cmin));
+
+            FloatVector brightness = cmaxF.div(c255);
+            FloatVector saturation = range.div(cmaxF).blend(zero, cmax.compare(VectorOperators.EQ, 0).cast(F));
+            FloatVector redc = toFloat(cmax.sub(r)).div(range);
+            FloatVector greenc = toFloat(cmax.sub(g)).div(range);
+            FloatVector bluec = toFloat(cmax.sub(b)).div(range);
+            FloatVector hue = four.add(greenc).sub(redc);
+            hue = hue.blend(two.add(redc).sub(bluec), g.compare(VectorOperators.EQ, cmax).cast(F));
+            hue = hue.blend(bluec.sub(greenc), r.compare(VectorOperators.EQ, cmax).cast(F));
+            hue = hue.div(six);
+            hue = hue.add(one, hue.compare(VectorOperators.LT, zero));
+            hue = hue.blend(zero, saturation.compare(VectorOperators.EQ, zero));
+
+            FloatVector s = saturation.mul(scale).min(one).max(zero);
+            FloatVector hh = hue.sub(floor(hue)).mul(six);
+            FloatVector f = hh.sub(floor(hh));
+            IntVector v = round(brightness.mul(c255));
+            IntVector pp = round(brightness.mul(one.sub(s)).mul(c255));
+            IntVector q = round(brightness.mul(one.sub(s.mul(f))).mul(c255));
+            IntVector t = round(brightness.mul(one.sub(s.mul(one.sub(f)))).mul(c255));
+
+            // Sectors 0..5 of the hue circle pick (red, green, blue) from v, p, q and t.
+            IntVector sector = (IntVector) hh.convert(VectorOperators.F2I, 0);
+            VectorMask<Integer> s0 = sector.compare(VectorOperators.EQ, 0), s1 = sector.compare(VectorOperators.EQ, 1);
+            VectorMask<Integer> s2 = sector.compare(VectorOperators.EQ, 2), s3 = sector.compare(VectorOperators.EQ, 3);
+            VectorMask<Integer> s4 = sector.compare(VectorOperators.EQ, 4), s5 = sector.compare(VectorOperators.EQ, 5);
+            IntVector none = IntVector.zero(I);
+            IntVector outR = none.blend(v, s0).blend(q, s1).blend(pp, s2).blend(pp, s3).blend(t, s4).blend(v, s5);
+            IntVector outG = none.blend(t, s0).blend(v, s1).blend(v, s2).blend(q, s3).blend(pp, s4).blend(pp, s5);
+            IntVector outB = none.blend(pp, s0).blend(pp, s1).blend(t, s2).blend(v, s3).blend(v, s4).blend(q, s5);
+            p.and(0xFF000000)
+                    .or(outR.lanewise(VectorOperators.LSHL, 16))
+                    .or(outG.lanewise(VectorOperators.LSHL, 8))
+                    .or(outB)
+                    .intoArray(dst, dstOff + i);
+        }
+        return n;
+    }
+
+    private static FloatVector toFloat(IntVector v) {
+        return (FloatVector) v.convert(VectorOperators.I2F, 0);
+    }
+
+    // Only used on non-negative values, where truncation is the floor.
+    private static FloatVector floor(FloatVector v) {
+        return toFloat((IntVector) v.convert(VectorOperators.F2I, 0));
+    }
+
+    // (int) (x + 0.5f)
+    private static IntVector round(FloatVector v) {
+        return (IntVector) v.add(0.5f).convert(VectorOperators.F2I, 0);
+    }
+}